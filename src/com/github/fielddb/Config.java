@@ -46,6 +46,8 @@ public class Config {
   public static final String DEFAULT_UPLOAD_AUDIO_VIDEO_URL = PrivateConstants.DEFAULT_UPLOAD_AUDIO_VIDEO_URL;
   public static final String DEFAULT_SAMPLE_DATA_URL = PrivateConstants.DEFAULT_DATA_SERVER_URL + "/" + DEFAULT_CORPUS
       + "/_design/learnx/_view/byTag";
+  public static final String DEFAULT_SAMPLE_DATA_CHANGES_URL = PrivateConstants.DEFAULT_DATA_SERVER_URL + "/"
+      + DEFAULT_CORPUS + "/_changes";
 
   public static final String EMPTYSTRING = "";
   public static final String ENGLISH = "en";
@@ -55,6 +57,7 @@ public class Config {
   public static final String EXTRA_EXPERIMENT_TRIAL_INFORMATION = "experimenttrialinfo";
   public static final String EXTRA_HTML5_JAVASCRIPT_INTERFACE = "javascriptinterface";
   public static final String EXTRA_HTML5_SUB_EXPERIMENT_INITIAL_URL = "subexperimenturl";
+  public static final String EXTRA_INCREMENTAL_SYNC = "incrementalsync";
   public static final String EXTRA_LANGUAGE = "language";
   public static final String EXTRA_MAX_PICTURE_SIZE = "maxpicturesize";
   public static final String EXTRA_OUTPUT_DIR = "outputdir";
@@ -26,6 +26,9 @@ import android.util.Log;
 import com.github.fielddb.database.FieldDBUserContentProvider;
 import com.github.fielddb.database.UserContentProvider.UserTable;
 import com.github.fielddb.model.User;
+import com.github.fielddb.model.UserRowMapper;
+import com.github.fielddb.service.DatabaseMaintenanceService;
+import com.github.fielddb.service.UploadAudioVideoService;
 import com.github.fielddb.service.RegisterUserService;
 
 /**
@@ -51,6 +54,9 @@ public class FieldDBApplication extends Application {
     // (new File(Config.DEFAULT_OUTPUT_DIRECTORY)).mkdirs();
     initBugReporter();
     initUser();
+    DatabaseMaintenanceService.schedule(this);
+    /* Uploads left in the outbox the last time the app ran */
+    UploadAudioVideoService.startDrain(this);
 
     if (mUpdateSampleData != null) {
       getApplicationContext().startService(mUpdateSampleData);
@@ -139,20 +145,9 @@ public class FieldDBApplication extends Application {
     String _id = "";
     String username = "default";
     if (cursor.getCount() > 0) {
-      _id = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_ID));
-      String _rev = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_REV));
-      username = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_USERNAME));
-      String firstname = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_FIRSTNAME));
-      String lastname = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_LASTNAME));
-      String email = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_EMAIL));
-      String gravatar = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_GRAVATAR));
-      String affiliation = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_AFFILIATION));
-      String researchInterest = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_RESEARCH_INTEREST));
-      String description = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_DESCRIPTION));
-      String subtitle = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_SUBTITLE));
-      String actualJSON = "";
-      mUser = new User(_id, _rev, username, firstname, lastname, email, gravatar, affiliation, researchInterest,
-          description, subtitle, null, actualJSON);
+      mUser = new UserRowMapper().map(cursor);
+      _id = mUser.get_id();
+      username = mUser.getUsername();
       BugReporter.putCustomData("username", username);
       Config.CURRENT_USERNAME = username;
     } else {
@@ -168,7 +163,7 @@ public class FieldDBApplication extends Application {
 
     BugReporter.putCustomData("dbname", Config.DEFAULT_CORPUS);
 
-    Log.d(Config.TAG, cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_USERNAME)));
+    Log.d(Config.TAG, username);
     cursor.close();
 
     if (mUser.get_rev() == null || "".equals(mUser.get_rev())) {
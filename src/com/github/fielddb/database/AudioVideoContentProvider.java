@@ -4,26 +4,28 @@ import java.util.ArrayList;
 import java.util.Locale;
 
 import com.github.fielddb.Config;
+import com.github.fielddb.database.DatumContentProvider.DatumMediaTable;
 
-import android.content.ContentProvider;
 import android.content.ContentResolver;
 import android.content.ContentValues;
-import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
-import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
 
-public class AudioVideoContentProvider extends ContentProvider {
-  private AudioVideoSQLiteHelper database;
+public class AudioVideoContentProvider extends FieldDBContentProvider {
+  private FieldDBDatabase database;
   // Used for the UriMacher
   private static final int ITEMS = 10;
   private static final int ITEM_ID = 20;
+  private static final int UPLOAD = 30;
+  private static final int OUTBOX = 40;
+  private static final int OUTBOX_ITEM = 50;
 
   private static final String AUTHORITY = "com.github.fielddb." + Config.APP_TYPE.toLowerCase(new Locale("en")) + "."
       + Config.DATA_IS_ABOUT_LANGUAGE_NAME_ASCII.toLowerCase(new Locale("en")) + "." + AudioVideoTable.TABLE_NAME;
@@ -33,18 +35,63 @@ public class AudioVideoContentProvider extends ContentProvider {
       + "s";
   public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/"
       + AudioVideoTable.TABLE_NAME;
+  public static final Uri UPLOADS_URI = Uri.parse("content://" + AUTHORITY + "/" + BASE_PATH + "/uploads");
+  public static final Uri OUTBOX_URI = Uri.parse("content://" + AUTHORITY + "/" + BASE_PATH + "/outbox");
+
+  /* How long a file no datum uses anymore is kept, in case it gets used again */
+  public static long UNLINKED_RETENTION_MILLIS = 7L * 24 * 60 * 60 * 1000;
 
   private static final UriMatcher sURIMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
   static {
     sURIMatcher.addURI(AUTHORITY, BASE_PATH, ITEMS);
+    /* Must be added before the item uri, otherwise "uploads" is matched as a filename */
+    sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/uploads/*", UPLOAD);
+    sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/outbox", OUTBOX);
+    sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/outbox/*", OUTBOX_ITEM);
     sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/*", ITEM_ID);
   }
 
   @Override
-  public int delete(Uri arg0, String arg1, String[] arg2) {
-    // TODO Auto-generated method stub
-    return 0;
+  public int delete(Uri uri, String selection, String[] selectionArgs) {
+    int uriType = sURIMatcher.match(uri);
+    SQLiteDatabase sqlDB = database.getWritableDatabase();
+    int rowsDeleted = 0;
+    switch (uriType) {
+    case ITEMS:
+      rowsDeleted = sqlDB.delete(AudioVideoTable.TABLE_NAME, selection, selectionArgs);
+      break;
+    case ITEM_ID:
+      /* Items are looked up by filename, as in query */
+      String filename = uri.getLastPathSegment();
+      if (TextUtils.isEmpty(selection)) {
+        rowsDeleted = sqlDB.delete(AudioVideoTable.TABLE_NAME, AudioVideoTable.COLUMN_FILENAME + " = ?",
+            new String[] { filename });
+      } else {
+        ArrayList<String> args = new ArrayList<String>();
+        args.add(filename);
+        if (selectionArgs != null) {
+          for (String arg : selectionArgs) {
+            args.add(arg);
+          }
+        }
+        rowsDeleted = sqlDB.delete(AudioVideoTable.TABLE_NAME, AudioVideoTable.COLUMN_FILENAME + " = ? and "
+            + selection, args.toArray(new String[args.size()]));
+      }
+      break;
+    case UPLOAD:
+      return sqlDB.delete(UploadProgressTable.TABLE_NAME, UploadProgressTable.COLUMN_FILENAME + " = ?",
+          new String[] { uri.getLastPathSegment() });
+    case OUTBOX_ITEM:
+      return sqlDB.delete(UploadOutboxTable.TABLE_NAME, UploadOutboxTable.COLUMN_FILENAME + " = ?",
+          new String[] { uri.getLastPathSegment() });
+    default:
+      throw new IllegalArgumentException("Unknown Delete URI: " + uri);
+    }
+    if (rowsDeleted > 0) {
+      notifyChange(uri);
+    }
+    return rowsDeleted;
   }
 
   @Override
@@ -56,20 +103,97 @@ public class AudioVideoContentProvider extends ContentProvider {
   @Override
   public Uri insert(Uri id, ContentValues values) {
     Log.d(Config.TAG, "insert " + id.toString());
+    if (sURIMatcher.match(id) == OUTBOX) {
+      return this.enqueueUpload(values);
+    }
+    FieldDBJsonCodec.encodeContentValues(values);
     SQLiteDatabase db = database.getWritableDatabase();
     long insertedRowId = db.insert(AudioVideoTable.TABLE_NAME, null, values);
     Log.d(Config.TAG, "insertedRowId " + insertedRowId);
+    if (insertedRowId < 0) {
+      return null;
+    }
     return id;
   }
 
   @Override
   public boolean onCreate() {
-    this.database = new AudioVideoSQLiteHelper(getContext());
+    this.database = FieldDBDatabase.getInstance(getContext());
     return true;
   }
 
+  /**
+   * Adds the file to the upload outbox, unless it is already waiting there (its
+   * attempts and backoff are then kept).
+   *
+   * @return the uri of the file in the outbox
+   */
+  protected Uri enqueueUpload(ContentValues values) {
+    String filename = values.getAsString(UploadOutboxTable.COLUMN_FILENAME);
+    if (TextUtils.isEmpty(filename)) {
+      throw new IllegalArgumentException("The upload outbox needs a " + UploadOutboxTable.COLUMN_FILENAME);
+    }
+    long now = System.currentTimeMillis();
+    if (!values.containsKey(UploadOutboxTable.COLUMN_NEXT_ATTEMPT_AT)) {
+      values.put(UploadOutboxTable.COLUMN_NEXT_ATTEMPT_AT, now);
+    }
+    values.put(UploadOutboxTable.COLUMN_ATTEMPTS, 0);
+    values.put(UploadOutboxTable.COLUMN_CREATED_AT, now);
+    SQLiteDatabase db = database.getWritableDatabase();
+    if (db.insertWithOnConflict(UploadOutboxTable.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE) < 0
+        && Config.D) {
+      Log.d(Config.TAG, filename + " is already waiting to be uploaded");
+    }
+    return getOutboxUri(filename);
+  }
+
+  /**
+   * Purges the media files which datum used to refer to but haven't for
+   * UNLINKED_RETENTION_MILLIS (their datum have been purged from the trash).
+   * Files which no datum ever used, such as the sample files, are kept.
+   */
+  @Override
+  protected int purge(SQLiteDatabase db, Bundle extras) {
+    /* Until the datum_media backfill is done, most files look unused */
+    if (FieldDBMigrator.hasPendingBackfills(db)) {
+      Log.d(Config.TAG, "Not purging the audio/video files, the datum media are still being backfilled");
+      return 0;
+    }
+    long retention = extras.getLong(EXTRA_RETENTION_MILLIS, UNLINKED_RETENTION_MILLIS);
+    long unlinkedBefore = System.currentTimeMillis() - retention;
+    return db.delete(AudioVideoTable.TABLE_NAME, AudioVideoTable.COLUMN_UNLINKED_AT + " IS NOT NULL AND CAST("
+        + AudioVideoTable.COLUMN_UNLINKED_AT + " AS INTEGER) < ? AND " + AudioVideoTable.COLUMN_FILENAME
+        + " NOT IN (SELECT " + DatumMediaTable.COLUMN_FILENAME + " FROM " + DatumMediaTable.TABLE_NAME + ")",
+        new String[] { "" + unlinkedBefore });
+  }
+
+  @Override
+  protected SQLiteOpenHelper getDatabaseHelper() {
+    return database;
+  }
+
+  @Override
+  protected Uri getContentUri() {
+    return CONTENT_URI;
+  }
+
+  /**
+   * @return the uri of the upload progress of the file
+   */
+  public static Uri getUploadUri(String filename) {
+    return UPLOADS_URI.buildUpon().appendPath(filename).build();
+  }
+
+  /**
+   * @return the uri of the file in the upload outbox
+   */
+  public static Uri getOutboxUri(String filename) {
+    return OUTBOX_URI.buildUpon().appendPath(filename).build();
+  }
+
   @Override
   public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+    long startTime = System.currentTimeMillis();
 
     // Using SQLiteQueryBuilder instead of query() method
     SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
@@ -80,6 +204,7 @@ public class AudioVideoContentProvider extends ContentProvider {
     // Set the table
     queryBuilder.setTables(AudioVideoTable.TABLE_NAME);
 
+    String limit = null;
     int uriType = sURIMatcher.match(uri);
     switch (uriType) {
     case ITEMS:
@@ -88,12 +213,31 @@ public class AudioVideoContentProvider extends ContentProvider {
       // Adding the ID to the original query
       queryBuilder.appendWhere(AudioVideoTable.COLUMN_FILENAME + "='" + uri.getLastPathSegment() + "'");
       break;
+    case UPLOAD:
+      queryBuilder.setTables(UploadProgressTable.TABLE_NAME);
+      queryBuilder.appendWhere(UploadProgressTable.COLUMN_FILENAME + " = ");
+      queryBuilder.appendWhereEscapeString(uri.getLastPathSegment());
+      break;
+    case OUTBOX:
+      queryBuilder.setTables(UploadOutboxTable.TABLE_NAME);
+      Long limitParameter = getNumberQueryParameter(uri, DatumContentProvider.QUERY_PARAMETER_LIMIT, 1,
+          Integer.MAX_VALUE);
+      if (limitParameter != null) {
+        limit = "" + limitParameter;
+      }
+      break;
+    case OUTBOX_ITEM:
+      queryBuilder.setTables(UploadOutboxTable.TABLE_NAME);
+      queryBuilder.appendWhere(UploadOutboxTable.COLUMN_FILENAME + " = ");
+      queryBuilder.appendWhereEscapeString(uri.getLastPathSegment());
+      break;
     default:
       throw new IllegalArgumentException("Unknown URI: " + uri);
     }
 
-    SQLiteDatabase db = database.getWritableDatabase();
-    Cursor cursor = queryBuilder.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+    SQLiteDatabase db = database.getReadableDatabase();
+    Cursor cursor = queryBuilder.query(db, projection, selection, selectionArgs, null, null, sortOrder, limit);
+    logQueryTime(uri, cursor, startTime);
     // Make sure that potential listeners are getting notified
     cursor.setNotificationUri(getContext().getContentResolver(), uri);
 
@@ -102,6 +246,7 @@ public class AudioVideoContentProvider extends ContentProvider {
 
   @Override
   public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    FieldDBJsonCodec.encodeContentValues(values);
 
     int uriType = sURIMatcher.match(uri);
     SQLiteDatabase sqlDB = database.getWritableDatabase();
@@ -120,98 +265,144 @@ public class AudioVideoContentProvider extends ContentProvider {
             + selection, selectionArgs);
       }
       break;
+    case UPLOAD:
+      /* Upload progress is bookkeeping, nobody observes it */
+      values.put(UploadProgressTable.COLUMN_FILENAME, uri.getLastPathSegment());
+      values.put(UploadProgressTable.COLUMN_UPDATED_AT, System.currentTimeMillis());
+      if (sqlDB.insertWithOnConflict(UploadProgressTable.TABLE_NAME, null, values,
+          SQLiteDatabase.CONFLICT_REPLACE) > 0) {
+        return 1;
+      }
+      return 0;
+    case OUTBOX_ITEM:
+      /* Like the upload progress, the outbox is not observed */
+      return sqlDB.update(UploadOutboxTable.TABLE_NAME, values, UploadOutboxTable.COLUMN_FILENAME + " = ?",
+          new String[] { uri.getLastPathSegment() });
     default:
       throw new IllegalArgumentException("Unknown Update URI: " + uri);
     }
-    getContext().getContentResolver().notifyChange(uri, null);
+    if (rowsUpdated > 0) {
+      notifyChange(uri);
+    }
     return rowsUpdated;
   }
 
-  public static class AudioVideoSQLiteHelper extends SQLiteOpenHelper {
-    private static final String DATABASE_NAME = AudioVideoTable.TABLE_NAME + ".db";
-    private static final int DATABASE_VERSION = 1;
+  public static class AudioVideoTable extends FieldDBTable {
+    public static final String TABLE_NAME = "audiovideo";
 
-    public AudioVideoSQLiteHelper(Context context) {
-      super(context, DATABASE_NAME, null, DATABASE_VERSION);
-    }
+    public static final String COLUMN_FILENAME = "filename";
+    public static final String COLUMN_URL = "url";
+    public static final String COLUMN_DESCRIPTION = "description";
+    /* When the last datum which used the file stopped using it, set by the triggers below */
+    public static final String COLUMN_UNLINKED_AT = "unlinked_at";
+
+    public static String[] version1Columns = { COLUMN_FILENAME, COLUMN_URL, COLUMN_DESCRIPTION };
+
+    public static String[] version5Columns = { COLUMN_FILENAME, COLUMN_URL, COLUMN_DESCRIPTION, COLUMN_UNLINKED_AT };
+
+    public static String[] currentColumns = version5Columns;
 
-    @Override
-    public void onCreate(SQLiteDatabase db) {
-      try {
-        AudioVideoTable.setColumns();
-        db.execSQL(AudioVideoTable.generateCreateTableSQLStatement(AudioVideoTable.TABLE_NAME));
-      } catch (SQLException e) {
-        e.printStackTrace();
-      } catch (Exception e) {
-        e.printStackTrace();
+    public static void setColumns() {
+      AudioVideoTable.columns = FieldDBTable.getBaseColumns();
+      for (String column : currentColumns) {
+        AudioVideoTable.columns.add(column);
       }
     }
 
-    @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-      /*
-       * export user database http://stackoverflow.com/questions/805363/how
-       * -do-i-rename-a-column-in-a-sqlite-database-table The SQLite ALTER TABLE
-       * documentation can be found here. If you add new columns you can use
-       * ALTER TABLE to insert them into a live table. If you rename or remove
-       * columns you can use ALTER TABLE to rename the old table, then create
-       * the new table and then populate the new table with the contents of the
-       * old table.
-       */
-      String copyTableToBackup = "ALTER TABLE " + AudioVideoTable.TABLE_NAME + " RENAME TO "
-          + AudioVideoTable.TABLE_NAME + "backup1;";
-      db.execSQL(copyTableToBackup);
-
-      Log.w(Config.TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
-          + ", will try to copy all old data");
-      db.execSQL("DROP TABLE IF EXISTS " + AudioVideoTable.TABLE_NAME);
-
-      /* Re-create table using current schema, and remove the sample data */
-      onCreate(db);
-      try {
-        String clearSampleData = "DELETE FROM " + AudioVideoTable.TABLE_NAME + ";";
-        db.execSQL(clearSampleData);
-      } catch (Exception e) {
-        Log.w(Config.TAG, "Problem upgrading, unable to clear sample data." + e);
-      }
-      ArrayList<String> previousColumns = FieldDBTable.getBaseColumns();
-      String[] knownColumns = AudioVideoTable.version1Columns;
+    /**
+     * Marks a file as unlinked when the last datum_media row using it is
+     * deleted, and as linked again when a datum uses it again.
+     */
+    public static ArrayList<String> generateUnlinkTriggerSQLStatements() {
+      ArrayList<String> statements = new ArrayList<String>();
+      statements.add("CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_unlinked AFTER DELETE ON "
+          + DatumMediaTable.TABLE_NAME + " WHEN NOT EXISTS (SELECT 1 FROM " + DatumMediaTable.TABLE_NAME + " WHERE "
+          + DatumMediaTable.COLUMN_FILENAME + " = old." + DatumMediaTable.COLUMN_FILENAME + ") BEGIN UPDATE "
+          + TABLE_NAME + " SET " + COLUMN_UNLINKED_AT + " = CAST(strftime('%s', 'now') AS INTEGER) * 1000 WHERE "
+          + COLUMN_FILENAME + " = old." + DatumMediaTable.COLUMN_FILENAME + "; END;");
+      statements.add("CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_linked AFTER INSERT ON "
+          + DatumMediaTable.TABLE_NAME + " BEGIN UPDATE " + TABLE_NAME + " SET " + COLUMN_UNLINKED_AT + " = NULL WHERE "
+          + COLUMN_FILENAME + " = new." + DatumMediaTable.COLUMN_FILENAME + " AND " + COLUMN_UNLINKED_AT
+          + " IS NOT NULL; END;");
+      return statements;
+    }
 
-      /* Add other versions to this if statement */
-      if (oldVersion == 1) {
-        knownColumns = AudioVideoTable.version1Columns;
-      }
+    public static ArrayList<FieldDBIndex> getIndexes() {
+      ArrayList<FieldDBIndex> indexes = FieldDBTable.getBaseIndexes(TABLE_NAME);
+      indexes.add(new FieldDBIndex(TABLE_NAME + "_filename", false, null, COLUMN_FILENAME));
+      return indexes;
+    }
 
-      /* Copy the data from previous columns over */
-      for (String column : knownColumns) {
-        previousColumns.add(column);
+    public static void createTables(SQLiteDatabase db) throws Exception {
+      setColumns();
+      db.execSQL(generateCreateTableSQLStatement(TABLE_NAME));
+      FieldDBTable.createIndexes(db, TABLE_NAME, getIndexes());
+      for (String statement : generateUnlinkTriggerSQLStatements()) {
+        db.execSQL(statement);
       }
-      try {
-        db.execSQL(AudioVideoTable.generateUpgradeTableSQLStatement(AudioVideoTable.TABLE_NAME, previousColumns));
-      } catch (Exception e) {
-        Log.w(Config.TAG, "Problem upgrading, unable to copy user data." + e);
+      for (String statement : UploadProgressTable.generateCreateTableSQLStatements()) {
+        db.execSQL(statement);
+      }
+      for (String statement : UploadOutboxTable.generateCreateTableSQLStatements()) {
+        db.execSQL(statement);
       }
     }
-
   }
 
-  public static class AudioVideoTable extends FieldDBTable {
-    public static final String TABLE_NAME = "audiovideo";
+  /**
+   * How far the chunked upload of each recording got: the upload session and
+   * the number of bytes the server has acknowledged. It is updated after each
+   * chunk so an upload continues where it stopped, even after the app was
+   * killed. The size and modification time of the file tell if it changed
+   * since, in which case the upload starts again.
+   */
+  public static class UploadProgressTable {
+    public static final String TABLE_NAME = "upload_progress";
 
     public static final String COLUMN_FILENAME = "filename";
-    public static final String COLUMN_URL = "url";
-    public static final String COLUMN_DESCRIPTION = "description";
+    public static final String COLUMN_UPLOAD_ID = "upload_id";
+    public static final String COLUMN_SIZE = "size";
+    public static final String COLUMN_MODIFIED = "modified";
+    public static final String COLUMN_OFFSET = "offset";
+    public static final String COLUMN_UPDATED_AT = "updated_at";
+
+    public static ArrayList<String> generateCreateTableSQLStatements() {
+      ArrayList<String> statements = new ArrayList<String>();
+      statements.add("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + "(" + COLUMN_FILENAME + " text PRIMARY KEY , "
+          + COLUMN_UPLOAD_ID + " text , " + COLUMN_SIZE + " integer , " + COLUMN_MODIFIED + " integer , "
+          + COLUMN_OFFSET + " integer , " + COLUMN_UPDATED_AT + " integer );");
+      return statements;
+    }
+  }
 
-    public static String[] version1Columns = { COLUMN_FILENAME, COLUMN_URL, COLUMN_DESCRIPTION };
 
-    public static String[] currentColumns = version1Columns;
+  /**
+   * The recordings waiting to be uploaded, one row per file so recording (or
+   * asking to upload) the same file twice only uploads it once. A failed upload
+   * stays in the outbox with its attempts counted and is tried again at
+   * next_attempt_at, see UploadAudioVideoService.
+   */
+  public static class UploadOutboxTable {
+    public static final String TABLE_NAME = "upload_outbox";
 
-    public static void setColumns() {
-      AudioVideoTable.columns = FieldDBTable.getBaseColumns();
-      for (String column : currentColumns) {
-        AudioVideoTable.columns.add(column);
-      }
+    public static final String COLUMN_FILENAME = "filename";
+    public static final String COLUMN_PATH = "path";
+    public static final String COLUMN_USERNAME = "username";
+    public static final String COLUMN_DEVICE_DETAILS = "device_details";
+    public static final String COLUMN_ATTEMPTS = "attempts";
+    public static final String COLUMN_NEXT_ATTEMPT_AT = "next_attempt_at";
+    public static final String COLUMN_LAST_ERROR = "last_error";
+    public static final String COLUMN_CREATED_AT = "created_at";
+
+    public static ArrayList<String> generateCreateTableSQLStatements() {
+      ArrayList<String> statements = new ArrayList<String>();
+      statements.add("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + "(" + COLUMN_FILENAME + " text PRIMARY KEY , "
+          + COLUMN_PATH + " text , " + COLUMN_USERNAME + " text , " + COLUMN_DEVICE_DETAILS + " text , "
+          + COLUMN_ATTEMPTS + " integer DEFAULT 0 , " + COLUMN_NEXT_ATTEMPT_AT + " integer , " + COLUMN_LAST_ERROR
+          + " text , " + COLUMN_CREATED_AT + " integer );");
+      statements.add("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_next_attempt_at ON " + TABLE_NAME + " ("
+          + COLUMN_NEXT_ATTEMPT_AT + ");");
+      return statements;
     }
   }
-
 }
@@ -1,52 +1,282 @@
 package com.github.fielddb.database;
 
+import java.util.ArrayList;
+
+import com.github.fielddb.Config;
 import com.github.fielddb.R;
 import com.github.fielddb.lessons.ui.DatumListFragment.Callbacks;
 import com.github.fielddb.lessons.ui.DatumPreviewViewHolder;
-import com.github.fielddb.model.Datum;
+import com.github.fielddb.model.DatumPreview;
+import com.github.fielddb.model.DatumPreviewRowMapper;
 
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.support.v7.widget.RecyclerView;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
+/**
+ * Shows the datum previews of a {@link DatumWindowLoader}.
+ *
+ * The loader's cursor is the first page (or, after the datum changed, every
+ * row loaded so far), the following pages are loaded in the background as the
+ * user scrolls. When the loader delivers a new cursor it is swapped in by
+ * comparing the row keys of the two cursors, so only the rows which were
+ * inserted, removed or changed are rebound.
+ */
 public class CursorRecyclerViewAdapter extends RecyclerView.Adapter<DatumPreviewViewHolder> {
+  /* How close to the end of the loaded rows the list can get before the next page is loaded */
+  public static final int PAGE_PREFETCH_DISTANCE = 10;
+  /* Binds which take longer than this are logged in debug builds, they make the list skip frames */
+  public static final long SLOW_BIND_MILLIS = 8;
+
   // protected AdapterView.OnItemClickListener mOnItemClickListener;
   protected Cursor mCursor;
   protected Callbacks mClickCallbacks;
+  protected DatumPageLoader mPageLoader;
+  protected ArrayList<Cursor> mPages = new ArrayList<Cursor>();
+  protected DatumPreviewRowMapper mPreviewMapper = new DatumPreviewRowMapper();
+  /* The key and content hash of each loaded row, across the pages */
+  protected int[] mRowKeys = new int[0];
+  protected int[] mRowHashes = new int[0];
+  /* Incremented on each swap, pages which were loaded for an older cursor are dropped */
+  protected int mGeneration = 0;
 
   public CursorRecyclerViewAdapter(Callbacks clickCallbacks, Cursor cursor) {
     super();
-    this.mCursor = cursor;
     this.mClickCallbacks = clickCallbacks;
+    if (cursor != null) {
+      mCursor = cursor;
+      mPages.add(cursor);
+      appendRowKeys(cursor);
+    }
+  }
+
+  /**
+   * Lets the adapter load the following pages as the user scrolls, the cursor
+   * passed to the constructor should be the first page.
+   *
+   * @param pageLoader
+   */
+  public void setPageLoader(DatumPageLoader pageLoader) {
+    this.mPageLoader = pageLoader;
+    if (mPageLoader != null && mCursor != null) {
+      mPageLoader.setLoadedPage(mCursor);
+    }
+  }
+
+  /**
+   * Replaces the rows with the loader's new cursor, which covers the rows
+   * loaded so far. The cursor belongs to the loader, the pages the adapter
+   * loaded itself are closed.
+   *
+   * @param cursor
+   *          the new first page or window, or null when the loader is reset
+   */
+  public void swapCursor(Cursor cursor) {
+    Cursor current = mPages.size() > 0 ? mPages.get(0) : null;
+    if (cursor == current) {
+      return;
+    }
+    mGeneration++;
+    int[] oldKeys = mRowKeys;
+    int[] oldHashes = mRowHashes;
+    int oldCount = getItemCount();
+
+    for (int i = 1; i < mPages.size(); i++) {
+      mPages.get(i).close();
+    }
+    mPages.clear();
+    mPreviewMapper.unbind();
+    mRowKeys = new int[0];
+    mRowHashes = new int[0];
+    mCursor = cursor;
+    if (cursor != null) {
+      mPages.add(cursor);
+      appendRowKeys(cursor);
+    }
+    if (mPageLoader != null) {
+      if (cursor != null) {
+        mPageLoader.setLoadedPage(cursor);
+      } else {
+        mPageLoader.reset();
+      }
+    }
+    this.dispatchChanges(oldKeys, oldHashes, oldCount);
+  }
+
+  /**
+   * Notifies the rows which differ between the old keys and the current ones.
+   * The rows at the start and at the end which have the same keys are kept
+   * (and rebound only if their content changed), the rows in between are
+   * changed, inserted or removed.
+   */
+  protected void dispatchChanges(int[] oldKeys, int[] oldHashes, int oldCount) {
+    int newCount = getItemCount();
+    int common = Math.min(oldCount, newCount);
+    int prefix = 0;
+    while (prefix < common && oldKeys[prefix] == mRowKeys[prefix]) {
+      prefix++;
+    }
+    int suffix = 0;
+    while (suffix < common - prefix && oldKeys[oldCount - 1 - suffix] == mRowKeys[newCount - 1 - suffix]) {
+      suffix++;
+    }
+
+    for (int i = 0; i < prefix; i++) {
+      if (oldHashes[i] != mRowHashes[i]) {
+        notifyItemChanged(i);
+      }
+    }
+    int oldMiddle = oldCount - prefix - suffix;
+    int newMiddle = newCount - prefix - suffix;
+    int changedMiddle = Math.min(oldMiddle, newMiddle);
+    if (changedMiddle > 0) {
+      notifyItemRangeChanged(prefix, changedMiddle);
+    }
+    if (newMiddle > oldMiddle) {
+      notifyItemRangeInserted(prefix + changedMiddle, newMiddle - oldMiddle);
+    } else if (oldMiddle > newMiddle) {
+      notifyItemRangeRemoved(prefix + changedMiddle, oldMiddle - newMiddle);
+    }
+    for (int i = 0; i < suffix; i++) {
+      if (oldHashes[oldCount - 1 - i] != mRowHashes[newCount - 1 - i]) {
+        notifyItemChanged(newCount - 1 - i);
+      }
+    }
+    if (Config.D) {
+      Log.d(Config.TAG, "Swapped " + oldCount + " datum for " + newCount + ", kept " + prefix + " + " + suffix
+          + " rows in place");
+    }
+  }
+
+  protected void appendRowKeys(Cursor page) {
+    if (!(page instanceof KeyedCursor)) {
+      /* Rows without keys are never matched, so they are always rebound */
+      int count = page.getCount();
+      int[] keys = new int[count];
+      int[] hashes = new int[count];
+      for (int i = 0; i < count; i++) {
+        keys[i] = mRowKeys.length + i;
+        hashes[i] = -1;
+      }
+      mRowKeys = concat(mRowKeys, keys);
+      mRowHashes = concat(mRowHashes, hashes);
+      return;
+    }
+    mRowKeys = concat(mRowKeys, ((KeyedCursor) page).getRowKeys());
+    mRowHashes = concat(mRowHashes, ((KeyedCursor) page).getRowHashes());
+  }
+
+  protected static int[] concat(int[] first, int[] second) {
+    int[] both = new int[first.length + second.length];
+    System.arraycopy(first, 0, both, 0, first.length);
+    System.arraycopy(second, 0, both, first.length, second.length);
+    return both;
   }
 
   public void onDestroy() {
+    for (int i = 1; i < mPages.size(); i++) {
+      mPages.get(i).close();
+    }
     mCursor = null;
+    mPages.clear();
+    mPreviewMapper.unbind();
+    mRowKeys = new int[0];
+    mRowHashes = new int[0];
   }
 
   @Override
   public int getItemCount() {
-    if (mCursor == null) {
-      return 0;
+    return mRowKeys.length;
+  }
+
+  protected void loadNextPageIfNeeded(int position) {
+    if (mPageLoader == null || position < getItemCount() - PAGE_PREFETCH_DISTANCE || !mPageLoader.hasNextPage()) {
+      return;
     }
-    return 3;
+    final int generation = mGeneration;
+    new AsyncTask<Void, Void, Cursor>() {
+      @Override
+      protected Cursor doInBackground(Void... params) {
+        return mPageLoader.loadNextPage();
+      }
+
+      @Override
+      protected void onPostExecute(Cursor page) {
+        if (page == null) {
+          return;
+        }
+        if (mCursor == null || generation != mGeneration) {
+          /* The page follows rows which have been swapped out, start again from the current ones */
+          page.close();
+          if (mCursor != null && mPages.size() == 1) {
+            mPageLoader.setLoadedPage(mCursor);
+          }
+          return;
+        }
+        if (page.getCount() == 0) {
+          page.close();
+          return;
+        }
+        int positionStart = getItemCount();
+        mPages.add(page);
+        appendRowKeys(page);
+        mCursor = new MergeCursor(mPages.toArray(new Cursor[mPages.size()]));
+        if (Config.D) {
+          Log.d(Config.TAG, "Loaded a page of " + page.getCount() + " datum, the list now has " + getItemCount());
+        }
+        notifyItemRangeInserted(positionStart, page.getCount());
+      }
+    }.execute();
   }
 
+  /**
+   * Binds the row by copying its columns into the holder's preview, which is
+   * reused from one bind to the next.
+   */
   @Override
   public void onBindViewHolder(DatumPreviewViewHolder itemHolder, int position) {
-    mCursor.moveToPosition(position);
-    // TODO consider not using the whole Datum model for the previews
-    Datum datum = new Datum(mCursor);
-
-    itemHolder.setOrthography(datum.getOrthography());
-    itemHolder.setTranslation(datum.getTranslation());
-    itemHolder.setIcon(datum.getMainImageFile());
+    long startTime = Config.D ? SystemClock.uptimeMillis() : 0;
+    loadNextPageIfNeeded(position);
+    Cursor row = moveToRow(position);
+    if (row == null) {
+      return;
+    }
+    DatumPreview preview = mPreviewMapper.map(row, itemHolder.getPreview());
 
+    itemHolder.setOrthography(preview.getOrthography());
+    itemHolder.setTranslation(preview.getTranslation());
+    itemHolder.setIcon(preview.getMainImageFile());
     itemHolder.setPosition(position);
-    itemHolder.setUri(Uri.withAppendedPath(DatumContentProvider.CONTENT_URI, datum.getId()));
+    if (Config.D && SystemClock.uptimeMillis() - startTime > SLOW_BIND_MILLIS) {
+      Log.d(Config.TAG, "Binding datum " + position + " took " + (SystemClock.uptimeMillis() - startTime) + "ms");
+    }
+  }
+
+  /**
+   * Positions the page which contains the row rather than the merged cursor.
+   * The pages are SQLite cursors which copy strings straight from their
+   * window into a buffer, the MergeCursor would build a String for each one.
+   *
+   * @return the page, on the row, or null if the position isn't loaded
+   */
+  protected Cursor moveToRow(int position) {
+    int pageStart = 0;
+    for (int i = 0; i < mPages.size(); i++) {
+      Cursor page = mPages.get(i);
+      int pageCount = page.getCount();
+      if (position < pageStart + pageCount) {
+        return page.moveToPosition(position - pageStart) ? page : null;
+      }
+      pageStart += pageCount;
+    }
+    return null;
   }
 
   @Override
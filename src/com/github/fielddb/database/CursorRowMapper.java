@@ -0,0 +1,89 @@
+package com.github.fielddb.database;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+/**
+ * Copies cursor rows into model objects.
+ *
+ * The column indices are looked up by name once per cursor (in bindColumns)
+ * rather than once per row, and a row can be mapped into an instance which is
+ * reused, so mapping a whole cursor only allocates the values themselves.
+ * Columns which aren't in the cursor's projection have an index of -1.
+ *
+ * A mapper isn't thread safe, each thread which maps rows holds its own. It
+ * keeps the last cursor it mapped until unbind() is called.
+ *
+ * @param <T>
+ *          the model the rows are mapped to
+ */
+public abstract class CursorRowMapper<T> {
+  /* The cursor the column indices were looked up in */
+  private Cursor mBoundCursor;
+
+  /**
+   * Looks up the indices of the columns the mapper uses.
+   */
+  protected abstract void bindColumns(Cursor cursor);
+
+  /**
+   * @return an empty instance for fillRow to fill
+   */
+  protected abstract T newRow();
+
+  /**
+   * Copies the current row into the instance, every field the mapper knows
+   * about is set (to null if its column isn't in the cursor) so the instance
+   * doesn't keep values from the previous row.
+   */
+  protected abstract void fillRow(Cursor cursor, T row);
+
+  public T map(Cursor cursor) {
+    return this.map(cursor, null);
+  }
+
+  /**
+   * Maps the row the cursor is on.
+   *
+   * @param cursor
+   * @param reuse
+   *          an instance to fill, or null to create a new one
+   * @return the filled instance
+   */
+  public T map(Cursor cursor, T reuse) {
+    if (cursor != mBoundCursor) {
+      this.bindColumns(cursor);
+      mBoundCursor = cursor;
+    }
+    T row = reuse == null ? this.newRow() : reuse;
+    this.fillRow(cursor, row);
+    return row;
+  }
+
+  /**
+   * Forgets the cursor the column indices were looked up in, call it once the
+   * cursor is closed so a mapper which is kept doesn't keep the cursor too.
+   */
+  public void unbind() {
+    mBoundCursor = null;
+  }
+
+  public static String getString(Cursor cursor, int columnIndex) {
+    if (columnIndex < 0) {
+      return null;
+    }
+    return cursor.getString(columnIndex);
+  }
+
+  /**
+   * Copies a column into a reusable buffer, a null value or a column which
+   * isn't in the projection is copied as an empty buffer.
+   */
+  public static void copyString(Cursor cursor, int columnIndex, CharArrayBuffer buffer) {
+    if (columnIndex < 0 || cursor.isNull(columnIndex)) {
+      buffer.sizeCopied = 0;
+      return;
+    }
+    cursor.copyStringToBuffer(columnIndex, buffer);
+  }
+}
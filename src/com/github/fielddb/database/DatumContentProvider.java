@@ -1,30 +1,38 @@
 package com.github.fielddb.database;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.UUID;
 
 import com.github.fielddb.Config;
+import com.github.fielddb.database.AudioVideoContentProvider.AudioVideoTable;
 
-import android.content.ContentProvider;
+import android.annotation.SuppressLint;
 import android.content.ContentResolver;
 import android.content.ContentValues;
-import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
-import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcelable;
 import android.text.TextUtils;
 import android.util.Log;
 
-public class DatumContentProvider extends ContentProvider {
-  private DatumSQLiteHelper database;
+public class DatumContentProvider extends FieldDBContentProvider {
+  private FieldDBDatabase database;
   // Used for the UriMacher
   private static final int ITEMS = 10;
   private static final int ITEM_ID = 20;
+  private static final int SEARCH = 30;
+  private static final int MEDIA_FOR_DATUM = 40;
+  private static final int DATUMS_FOR_FILE = 50;
+  private static final int ITEMS_WITH_MEDIA = 60;
+  private static final int CHECKPOINT = 70;
 
   private static String mAppType = Config.APP_TYPE;
   private static String mDataIsAboutLanguageName = Config.DATA_IS_ABOUT_LANGUAGE_NAME_ASCII;
@@ -35,18 +43,49 @@ public class DatumContentProvider extends ContentProvider {
   public static Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/" + BASE_PATH);
   public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + DatumTable.TABLE_NAME + "s";
   public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + DatumTable.TABLE_NAME;
+  public static Uri SEARCH_URI = Uri.parse("content://" + AUTHORITY + "/" + BASE_PATH + "/search");
+  public static Uri WITH_MEDIA_URI = Uri.parse("content://" + AUTHORITY + "/" + BASE_PATH + "/withmedia");
+  public static Uri CHECKPOINTS_URI = Uri.parse("content://" + AUTHORITY + "/" + BASE_PATH + "/checkpoints");
+  public static final String QUERY_PARAMETER_LIMIT = "limit";
+  public static final String QUERY_PARAMETER_AFTER = "after";
+  public static final String QUERY_PARAMETER_INCLUDE_TRASHED = "includeTrashed";
+  public static final int DEFAULT_PAGE_SIZE = 50;
+  public static final int DEFAULT_SEARCH_LIMIT = 50;
+  public static final String METHOD_UPSERT = "upsert";
+  public static final String EXTRA_VALUES = "values";
+  public static final String EXTRA_INSERTED = "inserted";
+  public static final String EXTRA_UPDATED = "updated";
+  public static final String EXTRA_UNCHANGED = "unchanged";
+  public static final String EXTRA_SAVED_IDS = "savedIds";
+  public static final String EXTRA_DELETED_IDS = "deletedIds";
+  public static final String EXTRA_TRASHED = "trashed";
+  public static final String EXTRA_CHECKPOINT_SOURCE = "checkpointSource";
+  public static final String EXTRA_CHECKPOINT_SINCE = "checkpointSince";
+  /* SQLite refuses statements with more than 999 parameters */
+  public static int MAX_QUERY_PARAMETERS = 500;
 
   private static final UriMatcher sURIMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+  private static HashMap<String, String> sWithMediaProjectionMap;
 
   static {
     sURIMatcher.addURI(AUTHORITY, BASE_PATH, ITEMS);
+    /* Must be added before the item uri, otherwise "search" is matched as an id */
+    sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/search/*", SEARCH);
+    sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/media/*", DATUMS_FOR_FILE);
+    sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/withmedia", ITEMS_WITH_MEDIA);
+    sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/checkpoints/*", CHECKPOINT);
     sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/*", ITEM_ID);
+    sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/*/media", MEDIA_FOR_DATUM);
   }
 
+  /* How long a synced datum stays in the trash before it is purged */
+  public static long TRASH_RETENTION_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
   @Override
   public int delete(Uri uri, String selection, String[] selectionArgs) {
     ContentValues values = new ContentValues();
     values.put(DatumTable.COLUMN_TRASHED, "deleted");
+    values.put(DatumTable.COLUMN_TRASHED_AT, System.currentTimeMillis());
     int rowsUpdated = this.update(uri, values, selection, selectionArgs);
     return rowsUpdated;
   }
@@ -71,9 +110,20 @@ public class DatumContentProvider extends ContentProvider {
         values.put(DatumTable.COLUMN_ID, id);
       }
     }
+    FieldDBJsonCodec.encodeContentValues(values);
     Log.d(Config.TAG, "insert " + id.toString());
     SQLiteDatabase db = database.getWritableDatabase();
-    long insertedRowId = db.insert(DatumTable.TABLE_NAME, null, values);
+    long insertedRowId;
+    db.beginTransaction();
+    try {
+      insertedRowId = db.insert(DatumTable.TABLE_NAME, null, values);
+      if (insertedRowId > 0) {
+        DatumMediaTable.replaceMedia(db, id, values);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
     Log.d(Config.TAG, "insertedRowId " + insertedRowId);
     if (insertedRowId > 0) {
       uri = Uri.withAppendedPath(uri, id);
@@ -85,12 +135,29 @@ public class DatumContentProvider extends ContentProvider {
 
   @Override
   public boolean onCreate() {
-    this.database = new DatumSQLiteHelper(getContext());
+    this.database = FieldDBDatabase.getInstance(getContext());
     return true;
   }
 
+  @Override
+  protected SQLiteOpenHelper getDatabaseHelper() {
+    return database;
+  }
+
+  @Override
+  protected Uri getContentUri() {
+    return CONTENT_URI;
+  }
+
   @Override
   public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+    long startTime = System.currentTimeMillis();
+    if (sURIMatcher.match(uri) == SEARCH) {
+      Cursor cursor = this.search(uri, projection, selection, selectionArgs, sortOrder);
+      logQueryTime(uri, cursor, startTime);
+      cursor.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+      return cursor;
+    }
 
     // Using SQLiteQueryBuilder instead of query() method
     SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
@@ -101,14 +168,78 @@ public class DatumContentProvider extends ContentProvider {
     // Set the table
     queryBuilder.setTables(DatumTable.TABLE_NAME);
 
+    String limit = null;
     int uriType = sURIMatcher.match(uri);
     switch (uriType) {
+    case MEDIA_FOR_DATUM:
+      queryBuilder.setTables(DatumMediaTable.TABLE_NAME + " LEFT JOIN " + AudioVideoTable.TABLE_NAME + " ON "
+          + AudioVideoTable.TABLE_NAME + "." + AudioVideoTable.COLUMN_FILENAME + " = " + DatumMediaTable.TABLE_NAME
+          + "." + DatumMediaTable.COLUMN_FILENAME);
+      queryBuilder.setProjectionMap(getMediaProjectionMap());
+      queryBuilder.appendWhere(DatumMediaTable.TABLE_NAME + "." + DatumMediaTable.COLUMN_DATUM_ID + " = ");
+      queryBuilder.appendWhereEscapeString(uri.getPathSegments().get(1));
+      if (TextUtils.isEmpty(sortOrder)) {
+        sortOrder = DatumMediaTable.COLUMN_KIND + " , " + DatumMediaTable.COLUMN_ORDINAL;
+      }
+      break;
+    case ITEMS_WITH_MEDIA:
+      /*
+       * One row per media file of each datum (or one row with null media
+       * columns if it has none), with the file's url and description, read in
+       * a single query now that the tables are in the same database.
+       */
+      queryBuilder.setTables(DatumTable.TABLE_NAME + " LEFT JOIN " + DatumMediaTable.TABLE_NAME + " ON "
+          + DatumTable.TABLE_NAME + "." + DatumTable.COLUMN_ID + " = " + DatumMediaTable.TABLE_NAME + "."
+          + DatumMediaTable.COLUMN_DATUM_ID + " LEFT JOIN " + AudioVideoTable.TABLE_NAME + " ON "
+          + AudioVideoTable.TABLE_NAME + "." + AudioVideoTable.COLUMN_FILENAME + " = " + DatumMediaTable.TABLE_NAME
+          + "." + DatumMediaTable.COLUMN_FILENAME);
+      queryBuilder.setProjectionMap(getWithMediaProjectionMap());
+      queryBuilder.appendWhere(DatumTable.TABLE_NAME + "." + DatumTable.COLUMN_TRASHED + " IS NULL");
+      if (TextUtils.isEmpty(sortOrder)) {
+        sortOrder = DatumTable.TABLE_NAME + "." + DatumTable.COLUMN_ANDROID_ID + " , " + DatumMediaTable.COLUMN_KIND
+            + " , " + DatumMediaTable.COLUMN_ORDINAL;
+      }
+      break;
+    case DATUMS_FOR_FILE:
+      queryBuilder.setTables(DatumTable.TABLE_NAME + " JOIN " + DatumMediaTable.TABLE_NAME + " ON "
+          + DatumTable.TABLE_NAME + "." + DatumTable.COLUMN_ID + " = " + DatumMediaTable.TABLE_NAME + "."
+          + DatumMediaTable.COLUMN_DATUM_ID);
+      queryBuilder.setDistinct(true);
+      if (!"true".equals(uri.getQueryParameter(QUERY_PARAMETER_INCLUDE_TRASHED))) {
+        queryBuilder.appendWhere(DatumTable.COLUMN_TRASHED + " IS NULL AND ");
+      }
+      queryBuilder.appendWhere(DatumMediaTable.COLUMN_FILENAME + " = ");
+      queryBuilder.appendWhereEscapeString(uri.getLastPathSegment());
+      projection = expandComputedColumns(projection);
+      break;
     case ITEMS:
+      projection = expandComputedColumns(projection);
       // queryBuilder.appendWhere(DatumTable.COLUMN_TRASHED +
       // " LIKE 'deleted'");
       queryBuilder.appendWhere(DatumTable.COLUMN_TRASHED + " IS NULL");
+      Long pageSize = getNumberQueryParameter(uri, QUERY_PARAMETER_LIMIT, 1, Integer.MAX_VALUE);
+      if (pageSize != null) {
+        /*
+         * Keyset pagination: pages are always in android_id order and start
+         * after the last android_id of the previous page, so each page is a
+         * short index range scan no matter how deep the caller has paged.
+         */
+        limit = "" + pageSize;
+        Long after = getNumberQueryParameter(uri, QUERY_PARAMETER_AFTER, Long.MIN_VALUE, Long.MAX_VALUE);
+        if (after != null) {
+          queryBuilder.appendWhere(" AND " + DatumTable.COLUMN_ANDROID_ID + " > " + after);
+        }
+        sortOrder = DatumTable.COLUMN_ANDROID_ID + " ASC";
+        projection = addSortKeyColumn(projection);
+      }
+      break;
+    case CHECKPOINT:
+      queryBuilder.setTables(SyncCheckpointTable.TABLE_NAME);
+      queryBuilder.appendWhere(SyncCheckpointTable.COLUMN_SOURCE + " = ");
+      queryBuilder.appendWhereEscapeString(uri.getLastPathSegment());
       break;
     case ITEM_ID:
+      projection = expandComputedColumns(projection);
       // Adding the ID to the original query
       queryBuilder.appendWhere(DatumTable.COLUMN_ID + "='" + uri.getLastPathSegment() + "'");
       break;
@@ -116,107 +247,452 @@ public class DatumContentProvider extends ContentProvider {
       throw new IllegalArgumentException("Unknown URI: " + uri);
     }
 
-    SQLiteDatabase db = database.getWritableDatabase();
-    Cursor cursor = queryBuilder.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+    SQLiteDatabase db = database.getReadableDatabase();
+    Cursor cursor = queryBuilder.query(db, projection, selection, selectionArgs, null, null, sortOrder, limit);
+    logQueryTime(uri, cursor, startTime);
+    if (limit != null) {
+      /* Any change to the datum can change which rows are in a page */
+      cursor.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+      return new PagedCursor(cursor, DatumTable.COLUMN_ANDROID_ID, Integer.parseInt(limit));
+    }
+    if (uriType == ITEMS_WITH_MEDIA) {
+      /* The rows change with any datum or media, which are all under the datum uri */
+      cursor.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+      return cursor;
+    }
     // Make sure that potential listeners are getting notified
     cursor.setNotificationUri(getContext().getContentResolver(), uri);
 
     return cursor;
   }
 
+  @SuppressLint("NewApi")
   @Override
-  public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-
-    int uriType = sURIMatcher.match(uri);
-    SQLiteDatabase sqlDB = database.getWritableDatabase();
-    int rowsUpdated = 0;
-    switch (uriType) {
-    case ITEMS:
-      rowsUpdated = sqlDB.update(DatumTable.TABLE_NAME, values, selection, selectionArgs);
-      break;
-    case ITEM_ID:
-      String id = uri.getLastPathSegment();
-      if (TextUtils.isEmpty(selection)) {
-        rowsUpdated = sqlDB.update(DatumTable.TABLE_NAME, values, DatumTable.COLUMN_ID + "='" + id + "'", null);
-      } else {
-        rowsUpdated = sqlDB.update(DatumTable.TABLE_NAME, values, DatumTable.COLUMN_ID + "='" + id + "' and "
-            + selection, selectionArgs);
+  public Bundle call(String method, String arg, Bundle extras) {
+    if (METHOD_UPSERT.equals(method)) {
+      Parcelable[] rows = extras == null ? null : extras.getParcelableArray(EXTRA_VALUES);
+      ContentValues[] values = new ContentValues[rows == null ? 0 : rows.length];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = (ContentValues) rows[i];
       }
-      break;
-    default:
-      throw new IllegalArgumentException("Unknown Update URI: " + uri);
+      return this.upsert(values, extras == null ? null : extras.getStringArray(EXTRA_DELETED_IDS),
+          extras == null ? null : extras.getString(EXTRA_CHECKPOINT_SOURCE),
+          extras == null ? null : extras.getString(EXTRA_CHECKPOINT_SINCE));
     }
-    getContext().getContentResolver().notifyChange(uri, null);
-    return rowsUpdated;
+    return super.call(method, arg, extras);
   }
 
-  public static class DatumSQLiteHelper extends SQLiteOpenHelper {
-    private static final String DATABASE_NAME = DatumTable.TABLE_NAME + ".db";
-    private static final int DATABASE_VERSION = 1;
+  /**
+   * Saves datum downloaded from the server. The saved revision of every datum
+   * in the batch is read with one query on the _id index, then the datum
+   * which aren't saved yet are inserted and the ones whose _rev changed are
+   * updated, all in one transaction. Datum whose _rev is the same are left
+   * alone. A batch of the _changes feed also moves the datum deleted on the
+   * server to the trash and saves the feed's checkpoint, in the same
+   * transaction.
+   *
+   * @param rows
+   *          the datum, with their _id and _rev
+   * @param deletedIds
+   *          the datum deleted on the server, or null
+   * @param checkpointSource
+   *          the feed the batch is from, or null if it isn't from a feed
+   * @param checkpointSince
+   *          the seq of the batch's last change
+   * @return how many were inserted, updated, unchanged and trashed, and the
+   *         ids of the datum which were saved
+   */
+  protected Bundle upsert(ContentValues[] rows, String[] deletedIds, String checkpointSource,
+      String checkpointSince) {
+    long startTime = System.currentTimeMillis();
+    int insertedCount = 0;
+    int updatedCount = 0;
+    int unchangedCount = 0;
+    int trashedCount = 0;
+    ArrayList<String> savedIds = new ArrayList<String>();
 
-    public DatumSQLiteHelper(Context context) {
-      super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    SQLiteDatabase db = database.getWritableDatabase();
+    boolean successful = false;
+    getChangeNotifier().beginBatch();
+    db.beginTransaction();
+    try {
+      HashMap<String, String> savedRevisions = getSavedRevisions(db, rows);
+      for (ContentValues row : rows) {
+        String id = row.getAsString(DatumTable.COLUMN_ID);
+        String rev = row.getAsString(DatumTable.COLUMN_REV);
+        if (id == null) {
+          continue;
+        }
+        if (!savedRevisions.containsKey(id)) {
+          if (this.insert(CONTENT_URI, row) == null) {
+            continue;
+          }
+          insertedCount++;
+        } else if (rev != null && rev.equals(savedRevisions.get(id))) {
+          unchangedCount++;
+          continue;
+        } else {
+          FieldDBJsonCodec.encodeContentValues(row);
+          db.update(DatumTable.TABLE_NAME, row, DatumTable.COLUMN_ID + " = ?", new String[] { id });
+          DatumMediaTable.replaceMedia(db, id, row);
+          updatedCount++;
+        }
+        /* The same datum can come twice in a batch */
+        savedRevisions.put(id, rev);
+        savedIds.add(id);
+      }
+      if (deletedIds != null && deletedIds.length > 0) {
+        trashedCount = trash(db, deletedIds);
+      }
+      if (checkpointSource != null && checkpointSince != null) {
+        ContentValues checkpoint = new ContentValues();
+        checkpoint.put(SyncCheckpointTable.COLUMN_SOURCE, checkpointSource);
+        checkpoint.put(SyncCheckpointTable.COLUMN_SINCE, checkpointSince);
+        checkpoint.put(SyncCheckpointTable.COLUMN_UPDATED_AT, System.currentTimeMillis());
+        db.insertWithOnConflict(SyncCheckpointTable.TABLE_NAME, null, checkpoint, SQLiteDatabase.CONFLICT_REPLACE);
+      }
+      if (insertedCount + updatedCount + trashedCount > 0) {
+        notifyChange(CONTENT_URI);
+      }
+      db.setTransactionSuccessful();
+      successful = true;
+    } finally {
+      db.endTransaction();
+      getChangeNotifier().endBatch(successful);
+    }
+
+    Log.d(Config.TAG, "upsert of " + rows.length + " datum inserted " + insertedCount + ", updated " + updatedCount
+        + ", left " + unchangedCount + " unchanged and trashed " + trashedCount + " in "
+        + (System.currentTimeMillis() - startTime) + "ms");
+    Bundle result = new Bundle();
+    result.putInt(EXTRA_INSERTED, insertedCount);
+    result.putInt(EXTRA_UPDATED, updatedCount);
+    result.putInt(EXTRA_UNCHANGED, unchangedCount);
+    result.putInt(EXTRA_TRASHED, trashedCount);
+    result.putStringArrayList(EXTRA_SAVED_IDS, savedIds);
+    return result;
+  }
+
+  /**
+   * Moves the datum to the trash, the way delete does, unless they are in the
+   * trash already.
+   *
+   * @return how many datum were moved to the trash
+   */
+  protected static int trash(SQLiteDatabase db, String[] ids) {
+    ContentValues values = new ContentValues();
+    values.put(DatumTable.COLUMN_TRASHED, "deleted");
+    values.put(DatumTable.COLUMN_TRASHED_AT, System.currentTimeMillis());
+    int trashedCount = 0;
+    for (int from = 0; from < ids.length; from += MAX_QUERY_PARAMETERS) {
+      int to = Math.min(ids.length, from + MAX_QUERY_PARAMETERS);
+      StringBuilder placeholders = new StringBuilder();
+      for (int i = from; i < to; i++) {
+        placeholders.append(i == from ? "?" : " , ?");
+      }
+      String[] batch = new String[to - from];
+      System.arraycopy(ids, from, batch, 0, batch.length);
+      trashedCount += db.update(DatumTable.TABLE_NAME, values, DatumTable.COLUMN_TRASHED + " IS NULL AND "
+          + DatumTable.COLUMN_ID + " IN (" + placeholders + ")", batch);
     }
+    return trashedCount;
+  }
 
-    @Override
-    public void onCreate(SQLiteDatabase db) {
+  /**
+   * @return the _rev of each of the rows' datum which is already saved, by
+   *         _id, trashed datum included
+   */
+  protected static HashMap<String, String> getSavedRevisions(SQLiteDatabase db, ContentValues[] rows) {
+    HashMap<String, String> savedRevisions = new HashMap<String, String>();
+    String[] projection = { DatumTable.COLUMN_ID, DatumTable.COLUMN_REV };
+    for (int from = 0; from < rows.length; from += MAX_QUERY_PARAMETERS) {
+      int to = Math.min(rows.length, from + MAX_QUERY_PARAMETERS);
+      ArrayList<String> ids = new ArrayList<String>();
+      StringBuilder placeholders = new StringBuilder();
+      for (int i = from; i < to; i++) {
+        String id = rows[i].getAsString(DatumTable.COLUMN_ID);
+        if (id == null) {
+          continue;
+        }
+        placeholders.append(ids.size() == 0 ? "?" : " , ?");
+        ids.add(id);
+      }
+      if (ids.size() == 0) {
+        continue;
+      }
+      Cursor cursor = db.query(DatumTable.TABLE_NAME, projection, DatumTable.COLUMN_ID + " IN (" + placeholders
+          + ")", ids.toArray(new String[ids.size()]), null, null, null);
       try {
-        DatumTable.setColumns();
-        db.execSQL(DatumTable.generateCreateTableSQLStatement(DatumTable.TABLE_NAME));
+        while (cursor.moveToNext()) {
+          savedRevisions.put(cursor.getString(0), cursor.getString(1));
+        }
+      } finally {
+        cursor.close();
+      }
+    }
+    return savedRevisions;
+  }
 
-      } catch (SQLException e) {
-        e.printStackTrace();
-      } catch (Exception e) {
-        e.printStackTrace();
+  /**
+   * Purges the datum in the trash which never reached the server (they have
+   * no _rev, so there is nothing left to sync) or which have been in the trash
+   * longer than the retention. Triggers remove their search and media rows.
+   */
+  @Override
+  protected int purge(SQLiteDatabase db, Bundle extras) {
+    long retention = extras.getLong(EXTRA_RETENTION_MILLIS, TRASH_RETENTION_MILLIS);
+    long trashedBefore = System.currentTimeMillis() - retention;
+    String tombstones = DatumTable.COLUMN_TRASHED + " IS NOT NULL AND (" + DatumTable.COLUMN_REV + " IS NULL OR CAST("
+        + DatumTable.COLUMN_TRASHED_AT + " AS INTEGER) < ?)";
+    return db.delete(DatumTable.TABLE_NAME, tombstones, new String[] { "" + trashedBefore });
+  }
+
+  /**
+   * Replaces the columns which are not stored in the datum table with the
+   * expressions which compute them.
+   */
+  protected String[] expandComputedColumns(String[] projection) {
+    if (projection == null) {
+      return null;
+    }
+    String[] expanded = new String[projection.length];
+    for (int i = 0; i < projection.length; i++) {
+      if (DatumTable.COLUMN_MAIN_IMAGE_FILE.equals(projection[i])) {
+        expanded[i] = DatumMediaTable.generateMainImageFileSQLExpression() + " AS " + DatumTable.COLUMN_MAIN_IMAGE_FILE;
+      } else {
+        expanded[i] = projection[i];
       }
     }
+    return expanded;
+  }
 
-    @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-      /*
-       * export user database http://stackoverflow.com/questions/805363/how
-       * -do-i-rename-a-column-in-a-sqlite-database-table The SQLite ALTER TABLE
-       * documentation can be found here. If you add new columns you can use
-       * ALTER TABLE to insert them into a live table. If you rename or remove
-       * columns you can use ALTER TABLE to rename the old table, then create
-       * the new table and then populate the new table with the contents of the
-       * old table.
-       */
-      String copyTableToBackup = "ALTER TABLE " + DatumTable.TABLE_NAME + " RENAME TO " + DatumTable.TABLE_NAME
-          + "backup1;";
-      db.execSQL(copyTableToBackup);
+  /**
+   * Qualifies the columns of the media joins, the datum_media and audiovideo
+   * tables both have a filename column.
+   */
+  protected static HashMap<String, String> getMediaProjectionMap() {
+    HashMap<String, String> map = new HashMap<String, String>();
+    for (String column : new String[] { DatumMediaTable.COLUMN_DATUM_ID, DatumMediaTable.COLUMN_FILENAME,
+        DatumMediaTable.COLUMN_KIND, DatumMediaTable.COLUMN_ORDINAL }) {
+      map.put(column, DatumMediaTable.TABLE_NAME + "." + column + " AS " + column);
+    }
+    map.put(AudioVideoTable.COLUMN_URL, AudioVideoTable.TABLE_NAME + "." + AudioVideoTable.COLUMN_URL + " AS "
+        + AudioVideoTable.COLUMN_URL);
+    map.put(AudioVideoTable.COLUMN_DESCRIPTION, AudioVideoTable.TABLE_NAME + "." + AudioVideoTable.COLUMN_DESCRIPTION
+        + " AS " + AudioVideoTable.COLUMN_DESCRIPTION);
+    return map;
+  }
 
-      Log.w(Config.TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
-          + ", will try to copy all old data");
-      db.execSQL("DROP TABLE IF EXISTS " + DatumTable.TABLE_NAME);
+  /**
+   * The media columns plus the datum columns, which also share names with the
+   * audiovideo table (_id, actualJSON...).
+   */
+  protected static synchronized HashMap<String, String> getWithMediaProjectionMap() {
+    if (sWithMediaProjectionMap != null) {
+      return sWithMediaProjectionMap;
+    }
+    HashMap<String, String> map = getMediaProjectionMap();
+    ArrayList<String> datumColumns = FieldDBTable.getBaseColumns();
+    for (String column : DatumTable.currentColumns) {
+      datumColumns.add(column);
+    }
+    for (String column : datumColumns) {
+      map.put(column, DatumTable.TABLE_NAME + "." + column + " AS " + column);
+    }
+    map.put(DatumTable.COLUMN_MAIN_IMAGE_FILE, DatumMediaTable.generateMainImageFileSQLExpression() + " AS "
+        + DatumTable.COLUMN_MAIN_IMAGE_FILE);
+    sWithMediaProjectionMap = map;
+    return map;
+  }
 
-      /* Re-create table using current schema, and remove the sample data */
-      onCreate(db);
-      try {
-        String clearSampleData = "DELETE FROM " + DatumTable.TABLE_NAME + ";";
-        db.execSQL(clearSampleData);
-      } catch (Exception e) {
-        Log.w(Config.TAG, "Problem upgrading, unable to clear sample data." + e);
+  protected String[] addSortKeyColumn(String[] projection) {
+    if (projection == null) {
+      return null;
+    }
+    for (String column : projection) {
+      if (DatumTable.COLUMN_ANDROID_ID.equals(column)) {
+        return projection;
       }
+    }
+    String[] projectionWithSortKey = new String[projection.length + 1];
+    System.arraycopy(projection, 0, projectionWithSortKey, 0, projection.length);
+    projectionWithSortKey[projection.length] = DatumTable.COLUMN_ANDROID_ID;
+    return projectionWithSortKey;
+  }
+
+  /**
+   * @param source
+   *          the feed the checkpoint is for, for example its url
+   * @return the uri to read and update the checkpoint with
+   */
+  public static Uri getCheckpointUri(String source) {
+    return CHECKPOINTS_URI.buildUpon().appendPath(source).build();
+  }
+
+  /**
+   * Builds the uri of a page of datum.
+   *
+   * @param after
+   *          the next page token of the previous page, or null for the first
+   *          page
+   * @param limit
+   *          the number of datum in a page
+   * @return content://.../datums?after=after&limit=limit
+   */
+  public static Uri getPageUri(String after, int limit) {
+    Uri.Builder builder = CONTENT_URI.buildUpon();
+    if (after != null) {
+      builder.appendQueryParameter(QUERY_PARAMETER_AFTER, after);
+    }
+    builder.appendQueryParameter(QUERY_PARAMETER_LIMIT, "" + limit);
+    return builder.build();
+  }
+
+  /**
+   * @return content://.../datums/{datumId}/media, the datum's media files with
+   *         their url and description, in order
+   */
+  public static Uri getMediaUri(String datumId) {
+    return CONTENT_URI.buildUpon().appendPath(datumId).appendPath("media").build();
+  }
 
-      ArrayList<String> previousColumns = FieldDBTable.getBaseColumns();
-      String[] knownColumns = DatumTable.version1Columns;
+  /**
+   * @return content://.../datums/media/{filename}, the datum which use the
+   *         file
+   */
+  public static Uri getDatumsForFileUri(String filename) {
+    return CONTENT_URI.buildUpon().appendPath("media").appendPath(filename).build();
+  }
 
-      /* Add other versions to this if statement */
-      if (oldVersion == 1) {
-        knownColumns = DatumTable.version1Columns;
+  /**
+   * Full text search over the interlinear fields, using the datum_fts index
+   * which triggers keep in sync with the datum table. Each word the user typed
+   * is treated as a prefix, results are ranked by how many times they matched
+   * and come with a snippet showing the match in context.
+   *
+   * content://.../datums/search/{words}?limit=50
+   */
+  protected Cursor search(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+    String matchExpression = DatumTable.generateSearchMatchExpression(uri.getLastPathSegment());
+    if ("".equals(matchExpression)) {
+      throw new IllegalArgumentException("Nothing to search for: " + uri);
+    }
+    int limit = DEFAULT_SEARCH_LIMIT;
+    Long limitParameter = getNumberQueryParameter(uri, QUERY_PARAMETER_LIMIT, 1, Integer.MAX_VALUE);
+    if (limitParameter != null) {
+      limit = limitParameter.intValue();
+    }
+
+    final StringBuilder sb = new StringBuilder("SELECT ");
+    if (projection == null) {
+      sb.append(DatumTable.TABLE_NAME + ".* , ");
+    } else {
+      for (String column : projection) {
+        if (DatumTable.COLUMN_SNIPPET.equals(column)) {
+          continue;
+        }
+        /* Columns exist in both tables, use the datum ones */
+        if (column.matches("[A-Za-z_]+")) {
+          sb.append(DatumTable.TABLE_NAME + ".");
+        }
+        sb.append(column);
+        sb.append(" , ");
       }
+    }
+    sb.append("snippet(" + DatumTable.SEARCH_TABLE_NAME + ", '<b>', '</b>', '...', -1, 12) AS "
+        + DatumTable.COLUMN_SNIPPET);
+    sb.append(" FROM " + DatumTable.SEARCH_TABLE_NAME + " JOIN " + DatumTable.TABLE_NAME + " ON "
+        + DatumTable.TABLE_NAME + "." + DatumTable.COLUMN_ANDROID_ID + " = " + DatumTable.SEARCH_TABLE_NAME
+        + ".docid");
+    sb.append(" WHERE " + DatumTable.SEARCH_TABLE_NAME + " MATCH ? AND " + DatumTable.TABLE_NAME + "."
+        + DatumTable.COLUMN_TRASHED + " IS NULL");
+    if (!TextUtils.isEmpty(selection)) {
+      sb.append(" AND (" + selection + ")");
+    }
+    if (TextUtils.isEmpty(sortOrder)) {
+      /* offsets() lists 4 numbers per matched term, so a longer list means more matches */
+      sb.append(" ORDER BY length(offsets(" + DatumTable.SEARCH_TABLE_NAME + ")) DESC, " + DatumTable.TABLE_NAME
+          + "." + DatumTable.COLUMN_ANDROID_ID);
+    } else {
+      sb.append(" ORDER BY " + sortOrder);
+    }
+    sb.append(" LIMIT " + limit + ";");
 
-      /* Copy the data from previous columns over */
-      for (String column : knownColumns) {
-        previousColumns.add(column);
+    ArrayList<String> args = new ArrayList<String>();
+    args.add(matchExpression);
+    if (selectionArgs != null) {
+      for (String arg : selectionArgs) {
+        args.add(arg);
       }
-      try {
-        db.execSQL(DatumTable.generateUpgradeTableSQLStatement(DatumTable.TABLE_NAME, previousColumns));
-      } catch (Exception e) {
-        Log.w(Config.TAG, "Problem upgrading, unable to copy datum data." + e);
+    }
+
+    SQLiteDatabase db = database.getReadableDatabase();
+    return db.rawQuery(sb.toString(), args.toArray(new String[args.size()]));
+  }
+
+  @Override
+  public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    FieldDBJsonCodec.encodeContentValues(values);
+
+    int uriType = sURIMatcher.match(uri);
+    SQLiteDatabase sqlDB = database.getWritableDatabase();
+    int rowsUpdated = 0;
+    sqlDB.beginTransaction();
+    try {
+      switch (uriType) {
+      case ITEMS:
+        /* The ids are read before the update, which can change the rows the selection matches */
+        ArrayList<String> updatedIds = new ArrayList<String>();
+        if (DatumMediaTable.hasMediaColumns(values)) {
+          Cursor ids = sqlDB.query(DatumTable.TABLE_NAME, new String[] { DatumTable.COLUMN_ID }, selection,
+              selectionArgs, null, null, null);
+          try {
+            while (ids.moveToNext()) {
+              updatedIds.add(ids.getString(0));
+            }
+          } finally {
+            ids.close();
+          }
+        }
+        rowsUpdated = sqlDB.update(DatumTable.TABLE_NAME, values, selection, selectionArgs);
+        if (rowsUpdated > 0) {
+          for (String updatedId : updatedIds) {
+            DatumMediaTable.replaceMedia(sqlDB, updatedId, values);
+          }
+        }
+        break;
+      case ITEM_ID:
+        String id = uri.getLastPathSegment();
+        if (TextUtils.isEmpty(selection)) {
+          rowsUpdated = sqlDB.update(DatumTable.TABLE_NAME, values, DatumTable.COLUMN_ID + "='" + id + "'", null);
+        } else {
+          rowsUpdated = sqlDB.update(DatumTable.TABLE_NAME, values, DatumTable.COLUMN_ID + "='" + id + "' and "
+              + selection, selectionArgs);
+        }
+        if (rowsUpdated > 0) {
+          DatumMediaTable.replaceMedia(sqlDB, id, values);
+        }
+        break;
+      case CHECKPOINT:
+        values.put(SyncCheckpointTable.COLUMN_SOURCE, uri.getLastPathSegment());
+        values.put(SyncCheckpointTable.COLUMN_UPDATED_AT, System.currentTimeMillis());
+        if (sqlDB.insertWithOnConflict(SyncCheckpointTable.TABLE_NAME, null, values,
+            SQLiteDatabase.CONFLICT_REPLACE) > 0) {
+          rowsUpdated = 1;
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown Update URI: " + uri);
       }
+      sqlDB.setTransactionSuccessful();
+    } finally {
+      sqlDB.endTransaction();
+    }
+    /* Checkpoints are bookkeeping, the datum lists don't need to reload */
+    if (rowsUpdated > 0 && uriType != CHECKPOINT) {
+      notifyChange(uri);
     }
+    return rowsUpdated;
   }
 
   public static class DatumTable extends FieldDBTable {
@@ -237,13 +713,27 @@ public class DatumContentProvider extends ContentProvider {
     public static final String COLUMN_VALIDATION_STATUS = "validationStatus";
     public static final String COLUMN_ENTERED_BY_USER = "enteredByUser";
     public static final String COLUMN_MODIFIED_BY_USER = "modifiedByUser";
+    public static final String COLUMN_TRASHED_AT = "trashed_at";
+
+    public static final String SEARCH_TABLE_NAME = TABLE_NAME + "_fts";
+    public static final String COLUMN_SNIPPET = "snippet";
+    /* Not stored, computed from the datum_media table */
+    public static final String COLUMN_MAIN_IMAGE_FILE = "mainImageFile";
 
     public static String[] version1Columns = { COLUMN_UTTERANCE, COLUMN_MORPHEMES, COLUMN_GLOSS, COLUMN_TRANSLATION,
         COLUMN_ORTHOGRAPHY, COLUMN_CONTEXT, COLUMN_IMAGE_FILES, COLUMN_AUDIO_VIDEO_FILES, COLUMN_LOCATIONS,
         COLUMN_REMINDERS, COLUMN_TAGS, COLUMN_COMMENTS, COLUMN_VALIDATION_STATUS, COLUMN_ENTERED_BY_USER,
         COLUMN_MODIFIED_BY_USER };
 
-    public static String[] currentColumns = version1Columns;
+    public static String[] version6Columns = { COLUMN_UTTERANCE, COLUMN_MORPHEMES, COLUMN_GLOSS, COLUMN_TRANSLATION,
+        COLUMN_ORTHOGRAPHY, COLUMN_CONTEXT, COLUMN_IMAGE_FILES, COLUMN_AUDIO_VIDEO_FILES, COLUMN_LOCATIONS,
+        COLUMN_REMINDERS, COLUMN_TAGS, COLUMN_COMMENTS, COLUMN_VALIDATION_STATUS, COLUMN_ENTERED_BY_USER,
+        COLUMN_MODIFIED_BY_USER, COLUMN_TRASHED_AT };
+
+    public static String[] currentColumns = version6Columns;
+
+    public static String[] searchableColumns = { COLUMN_UTTERANCE, COLUMN_MORPHEMES, COLUMN_GLOSS,
+        COLUMN_TRANSLATION, COLUMN_ORTHOGRAPHY, COLUMN_CONTEXT };
 
     public static void setColumns() {
       DatumTable.columns = FieldDBTable.getBaseColumns();
@@ -251,6 +741,217 @@ public class DatumContentProvider extends ContentProvider {
         DatumTable.columns.add(column);
       }
     }
+
+    public static ArrayList<FieldDBIndex> getIndexes() {
+      ArrayList<FieldDBIndex> indexes = FieldDBTable.getBaseIndexes(TABLE_NAME);
+      /* The list only shows datum which are not in the trash */
+      indexes.add(new FieldDBIndex(TABLE_NAME + "_live", false, COLUMN_TRASHED + " IS NULL", COLUMN_TRASHED,
+          COLUMN_ANDROID_ID));
+      return indexes;
+    }
+
+    /**
+     * Creates the datum table with its indexes, its search table, its
+     * datum_media table and the sync checkpoints.
+     */
+    public static void createTables(SQLiteDatabase db) throws Exception {
+      setColumns();
+      db.execSQL(generateCreateTableSQLStatement(TABLE_NAME));
+      FieldDBTable.createIndexes(db, TABLE_NAME, getIndexes());
+      for (String statement : generateCreateSearchTableSQLStatements()) {
+        db.execSQL(statement);
+      }
+      for (String statement : DatumMediaTable.generateCreateTableSQLStatements()) {
+        db.execSQL(statement);
+      }
+      FieldDBTable.createIndexes(db, DatumMediaTable.TABLE_NAME, DatumMediaTable.getIndexes());
+      for (String statement : SyncCheckpointTable.generateCreateTableSQLStatements()) {
+        db.execSQL(statement);
+      }
+    }
+
+    /**
+     * The search table is a full text index of the searchable columns, its
+     * docid is the datum's android_id. Triggers keep it in sync with the datum
+     * table so the providers don't need to know about it.
+     */
+    @SuppressLint("NewApi")
+    public static ArrayList<String> generateCreateSearchTableSQLStatements() {
+      /* fts4 is faster but needs Android 3.0, fts3 has the same query syntax */
+      String module = Build.VERSION.SDK_INT >= 11 ? "fts4" : "fts3";
+      String columns = TextUtils.join(" , ", searchableColumns);
+      String newValues = "new." + TextUtils.join(" , new.", searchableColumns);
+      String insertNewRow = "INSERT INTO " + SEARCH_TABLE_NAME + "(docid , " + columns + ") VALUES (new."
+          + COLUMN_ANDROID_ID + " , " + newValues + "); ";
+      String deleteOldRow = "DELETE FROM " + SEARCH_TABLE_NAME + " WHERE docid = old." + COLUMN_ANDROID_ID + "; ";
+
+      ArrayList<String> statements = new ArrayList<String>();
+      statements.add("CREATE VIRTUAL TABLE IF NOT EXISTS " + SEARCH_TABLE_NAME + " USING " + module + "(" + columns
+          + ");");
+      statements.add("CREATE TRIGGER IF NOT EXISTS " + SEARCH_TABLE_NAME + "_insert AFTER INSERT ON " + TABLE_NAME
+          + " BEGIN " + insertNewRow + "END;");
+      statements.add("CREATE TRIGGER IF NOT EXISTS " + SEARCH_TABLE_NAME + "_update AFTER UPDATE OF " + columns
+          + " ON " + TABLE_NAME + " BEGIN " + deleteOldRow + insertNewRow + "END;");
+      statements.add("CREATE TRIGGER IF NOT EXISTS " + SEARCH_TABLE_NAME + "_delete AFTER DELETE ON " + TABLE_NAME
+          + " BEGIN " + deleteOldRow + "END;");
+      return statements;
+    }
+
+    public static String generatePopulateSearchTableSQLStatement() {
+      String columns = TextUtils.join(" , ", searchableColumns);
+      return "INSERT INTO " + SEARCH_TABLE_NAME + "(docid , " + columns + ") SELECT " + COLUMN_ANDROID_ID + " , "
+          + columns + " FROM " + TABLE_NAME + ";";
+    }
+
+    /**
+     * Turns what the user typed into an fts match expression: every word must
+     * match, as a prefix so that results show up while the user is typing.
+     * Quoting the words keeps fts operators (OR, NEAR, -, etc) from being
+     * interpreted.
+     */
+    public static String generateSearchMatchExpression(String userQuery) {
+      if (userQuery == null) {
+        return "";
+      }
+      final StringBuilder sb = new StringBuilder();
+      for (String word : userQuery.replaceAll("[\"*]", " ").trim().split("\\s+")) {
+        if ("".equals(word)) {
+          continue;
+        }
+        if (sb.length() > 0) {
+          sb.append(" ");
+        }
+        sb.append("\"" + word + "*\"");
+      }
+      return sb.toString();
+    }
+  }
+
+  /**
+   * The files used by each datum, one row per file. The imageFiles and
+   * audioVideoFiles columns remain the source of truth (they are what gets
+   * synced), the provider rewrites a datum's rows here whenever they change,
+   * so the files can be queried with an index in both directions.
+   */
+  public static class DatumMediaTable {
+    public static final String TABLE_NAME = "datum_media";
+
+    public static final String COLUMN_DATUM_ID = "datum_id";
+    public static final String COLUMN_FILENAME = "filename";
+    public static final String COLUMN_KIND = "kind";
+    public static final String COLUMN_ORDINAL = "ordinal";
+
+    public static final String KIND_IMAGE = "image";
+    public static final String KIND_AUDIO_VIDEO = "audioVideo";
+
+    public static ArrayList<String> generateCreateTableSQLStatements() {
+      ArrayList<String> statements = new ArrayList<String>();
+      statements.add("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + "(" + COLUMN_DATUM_ID + " text , "
+          + COLUMN_FILENAME + " text , " + COLUMN_KIND + " text , " + COLUMN_ORDINAL + " integer );");
+      statements.add("CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_delete AFTER DELETE ON "
+          + DatumTable.TABLE_NAME + " BEGIN DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_DATUM_ID + " = old."
+          + DatumTable.COLUMN_ID + "; END;");
+      return statements;
+    }
+
+    public static ArrayList<FieldDBIndex> getIndexes() {
+      ArrayList<FieldDBIndex> indexes = new ArrayList<FieldDBIndex>();
+      indexes.add(new FieldDBIndex(TABLE_NAME + "_datum", false, null, COLUMN_DATUM_ID, COLUMN_KIND, COLUMN_ORDINAL));
+      indexes.add(new FieldDBIndex(TABLE_NAME + "_filename", false, null, COLUMN_FILENAME, COLUMN_DATUM_ID));
+      return indexes;
+    }
+
+    /**
+     * The main image is the last image which was added to the datum, this is
+     * a single seek in the datum_media_datum index.
+     */
+    public static String generateMainImageFileSQLExpression() {
+      return "(SELECT " + COLUMN_FILENAME + " FROM " + TABLE_NAME + " WHERE " + TABLE_NAME + "." + COLUMN_DATUM_ID
+          + " = " + DatumTable.TABLE_NAME + "." + DatumTable.COLUMN_ID + " AND " + COLUMN_KIND + " = '" + KIND_IMAGE
+          + "' ORDER BY " + COLUMN_ORDINAL + " DESC LIMIT 1)";
+    }
+
+    public static boolean hasMediaColumns(ContentValues values) {
+      return values.containsKey(DatumTable.COLUMN_IMAGE_FILES)
+          || values.containsKey(DatumTable.COLUMN_AUDIO_VIDEO_FILES);
+    }
+
+    /**
+     * Rewrites the datum's rows for the file columns which are in the values.
+     */
+    public static void replaceMedia(SQLiteDatabase db, String datumId, ContentValues values) {
+      if (values.containsKey(DatumTable.COLUMN_IMAGE_FILES)) {
+        replaceMedia(db, datumId, KIND_IMAGE, values.getAsString(DatumTable.COLUMN_IMAGE_FILES));
+      }
+      if (values.containsKey(DatumTable.COLUMN_AUDIO_VIDEO_FILES)) {
+        replaceMedia(db, datumId, KIND_AUDIO_VIDEO, values.getAsString(DatumTable.COLUMN_AUDIO_VIDEO_FILES));
+      }
+    }
+
+    public static void replaceMedia(SQLiteDatabase db, String datumId, String kind, String filenames) {
+      db.delete(TABLE_NAME, COLUMN_DATUM_ID + " = ? AND " + COLUMN_KIND + " = ?", new String[] { datumId, kind });
+      if (filenames == null) {
+        return;
+      }
+      int ordinal = 0;
+      ContentValues row = new ContentValues();
+      for (String filename : filenames.split(",")) {
+        filename = filename.trim();
+        if ("".equals(filename)) {
+          continue;
+        }
+        row.put(COLUMN_DATUM_ID, datumId);
+        row.put(COLUMN_FILENAME, filename);
+        row.put(COLUMN_KIND, kind);
+        row.put(COLUMN_ORDINAL, ordinal);
+        db.insert(TABLE_NAME, null, row);
+        ordinal++;
+      }
+    }
+
+    /**
+     * A backfill which splits the file columns of the existing datum into
+     * rows.
+     */
+    public static FieldDBMigration fillFromFileColumns(int version) {
+      return new FieldDBMigration(version, FieldDBMigration.BACKFILL, DatumTable.TABLE_NAME, "fillDatumMedia") {
+        @Override
+        protected void backfillChunk(SQLiteDatabase db, long after, long upTo) {
+          String[] projection = { DatumTable.COLUMN_ID, DatumTable.COLUMN_IMAGE_FILES,
+              DatumTable.COLUMN_AUDIO_VIDEO_FILES };
+          Cursor cursor = db.query(DatumTable.TABLE_NAME, projection, DatumTable.COLUMN_ANDROID_ID + " > ? AND "
+              + DatumTable.COLUMN_ANDROID_ID + " <= ?", new String[] { "" + after, "" + upTo }, null, null, null);
+          try {
+            while (cursor.moveToNext()) {
+              replaceMedia(db, cursor.getString(0), KIND_IMAGE, cursor.getString(1));
+              replaceMedia(db, cursor.getString(0), KIND_AUDIO_VIDEO, cursor.getString(2));
+            }
+          } finally {
+            cursor.close();
+          }
+        }
+      };
+    }
   }
 
+  /**
+   * Where each incremental sync got to in the _changes feed of its source. A
+   * checkpoint is written in the same batch as the changes it covers, so a
+   * sync which is interrupted starts again after the last batch which was
+   * saved, and never skips changes which weren't.
+   */
+  public static class SyncCheckpointTable {
+    public static final String TABLE_NAME = "sync_checkpoint";
+
+    public static final String COLUMN_SOURCE = "source";
+    public static final String COLUMN_SINCE = "since";
+    public static final String COLUMN_UPDATED_AT = "updated_at";
+
+    public static ArrayList<String> generateCreateTableSQLStatements() {
+      ArrayList<String> statements = new ArrayList<String>();
+      statements.add("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + "(" + COLUMN_SOURCE + " text PRIMARY KEY , "
+          + COLUMN_SINCE + " text , " + COLUMN_UPDATED_AT + " integer );");
+      return statements;
+    }
+  }
 }
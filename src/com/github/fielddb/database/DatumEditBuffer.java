@@ -0,0 +1,86 @@
+package com.github.fielddb.database;
+
+import com.github.fielddb.Config;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Write-behind buffer for the edits to one datum.
+ *
+ * The editor puts every change into the buffer, changes to the same field
+ * replace each other, and the buffer writes them all in one update once the
+ * user has stopped typing for IDLE_FLUSH_DELAY ms. The owner must also call
+ * flush() when it might be killed (onPause, onSaveInstanceState) so no edits
+ * are lost.
+ *
+ * Must be used from the main thread.
+ */
+public class DatumEditBuffer {
+  public static long IDLE_FLUSH_DELAY = 1500;
+
+  protected ContentResolver mContentResolver;
+  protected Uri mUri;
+  protected ContentValues mPendingValues = new ContentValues();
+  protected int mPendingEditCount = 0;
+  protected Handler mHandler = new Handler(Looper.getMainLooper());
+  protected Runnable mFlushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  public DatumEditBuffer(ContentResolver contentResolver, Uri uri) {
+    this.mContentResolver = contentResolver;
+    this.mUri = uri;
+  }
+
+  /**
+   * Buffers the new value of a field and restarts the idle timer.
+   *
+   * @param column
+   * @param value
+   */
+  public void put(String column, String value) {
+    mPendingValues.put(column, value);
+    mPendingEditCount++;
+    mHandler.removeCallbacks(mFlushRunnable);
+    mHandler.postDelayed(mFlushRunnable, IDLE_FLUSH_DELAY);
+  }
+
+  public boolean hasPendingEdits() {
+    return mPendingValues.size() > 0;
+  }
+
+  /**
+   * Writes the buffered fields in one update.
+   *
+   * @return the number of rows updated
+   */
+  public int flush() {
+    mHandler.removeCallbacks(mFlushRunnable);
+    if (!hasPendingEdits()) {
+      return 0;
+    }
+    ContentValues values = mPendingValues;
+    int editCount = mPendingEditCount;
+    mPendingValues = new ContentValues();
+    mPendingEditCount = 0;
+
+    int updated = 0;
+    try {
+      updated = mContentResolver.update(mUri, values, null, null);
+    } catch (Exception e) {
+      Log.e(Config.TAG, "Unable to save the edits to " + mUri, e);
+    }
+    if (Config.D) {
+      Log.d(Config.TAG, "Saved " + editCount + " edits to " + values.size() + " fields of " + mUri + " in one update");
+    }
+    return updated;
+  }
+}
@@ -0,0 +1,134 @@
+package com.github.fielddb.database;
+
+import com.github.fielddb.Config;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Loads a query of datum one page at a time using the keyset paginated datum
+ * uri. Pages are loaded with {@link #loadNextPage()} which runs the query, so
+ * it should not be called on the main thread.
+ */
+public class DatumPageLoader {
+  protected ContentResolver mContentResolver;
+  protected String[] mProjection;
+  protected String mSelection;
+  protected String[] mSelectionArgs;
+  protected int mPageSize;
+  protected String mNextPageToken;
+  protected int mLoadedRowCount;
+  protected boolean mHasNextPage = true;
+  protected boolean mIsLoading = false;
+
+  public DatumPageLoader(ContentResolver contentResolver, String[] projection, String selection,
+      String[] selectionArgs, int pageSize) {
+    this.mContentResolver = contentResolver;
+    this.mProjection = projection;
+    this.mSelection = selection;
+    this.mSelectionArgs = selectionArgs;
+    this.mPageSize = pageSize;
+  }
+
+  /**
+   * Starts again from the first page, for example after the data changed.
+   */
+  public synchronized void reset() {
+    mNextPageToken = null;
+    mHasNextPage = true;
+    mLoadedRowCount = 0;
+  }
+
+  /**
+   * Remembers where the next page starts, for the first page or the window of
+   * pages when they were loaded somewhere else (for example by a
+   * {@link DatumWindowLoader}).
+   *
+   * @param page
+   */
+  public synchronized void setLoadedPage(Cursor page) {
+    mLoadedRowCount = 0;
+    this.addLoadedPage(page);
+  }
+
+  protected synchronized void addLoadedPage(Cursor page) {
+    mNextPageToken = PagedCursor.getNextPageToken(page);
+    mHasNextPage = mNextPageToken != null;
+    if (page != null) {
+      mLoadedRowCount += page.getCount();
+    }
+  }
+
+  /**
+   * @return the next page, or null if there are no more pages, a page is
+   *         already being loaded or the page couldn't be loaded (in which case
+   *         the same page is loaded by the next call)
+   */
+  public Cursor loadNextPage() {
+    String after;
+    synchronized (this) {
+      if (!mHasNextPage || mIsLoading) {
+        return null;
+      }
+      mIsLoading = true;
+      after = mNextPageToken;
+    }
+    Cursor page = null;
+    try {
+      page = mContentResolver.query(DatumContentProvider.getPageUri(after, mPageSize), mProjection, mSelection,
+          mSelectionArgs, null);
+      if (page != null) {
+        page = this.wrap(page);
+      }
+    } catch (Exception e) {
+      Log.e(Config.TAG, "Unable to load the page after " + after, e);
+    }
+    synchronized (this) {
+      mIsLoading = false;
+      if (page != null) {
+        addLoadedPage(page);
+      }
+    }
+    return page;
+  }
+
+  /**
+   * Keys the rows by id, and by the rest of the projection for their content.
+   */
+  public KeyedCursor wrap(Cursor page) {
+    return new KeyedCursor(page, DatumContentProvider.DatumTable.COLUMN_ID, mProjection);
+  }
+
+  public synchronized boolean hasNextPage() {
+    return mHasNextPage && !mIsLoading;
+  }
+
+  public int getPageSize() {
+    return mPageSize;
+  }
+
+  /**
+   * @return how many rows the pages loaded so far have
+   */
+  public synchronized int getLoadedRowCount() {
+    return mLoadedRowCount;
+  }
+
+  public String[] getProjection() {
+    return mProjection;
+  }
+
+  public String getSelection() {
+    return mSelection;
+  }
+
+  public String[] getSelectionArgs() {
+    return mSelectionArgs;
+  }
+
+  public Uri getFirstPageUri() {
+    return DatumContentProvider.getPageUri(null, mPageSize);
+  }
+}
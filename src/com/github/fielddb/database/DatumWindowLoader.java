@@ -0,0 +1,44 @@
+package com.github.fielddb.database;
+
+import com.github.fielddb.Config;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v4.content.CursorLoader;
+import android.util.Log;
+
+/**
+ * Loads the datum the list has paged through so far in the background.
+ *
+ * The first load is the first page. The following pages are loaded by the
+ * {@link DatumPageLoader} as the user scrolls, and when the datum change the
+ * loader reloads all the rows loaded so far in one query, so the list keeps
+ * its place. The cursors it delivers are {@link KeyedCursor}s so the adapter
+ * can swap them in without rebinding every row.
+ */
+public class DatumWindowLoader extends CursorLoader {
+  protected DatumPageLoader mPageLoader;
+
+  public DatumWindowLoader(Context context, DatumPageLoader pageLoader) {
+    super(context, pageLoader.getFirstPageUri(), pageLoader.getProjection(), pageLoader.getSelection(), pageLoader
+        .getSelectionArgs(), null);
+    this.mPageLoader = pageLoader;
+  }
+
+  @Override
+  public Cursor loadInBackground() {
+    long startTime = System.currentTimeMillis();
+    int windowSize = Math.max(mPageLoader.getPageSize(), mPageLoader.getLoadedRowCount());
+    setUri(DatumContentProvider.getPageUri(null, windowSize));
+    Cursor cursor = super.loadInBackground();
+    if (cursor == null) {
+      return null;
+    }
+    KeyedCursor keyedCursor = mPageLoader.wrap(cursor);
+    if (Config.D) {
+      Log.d(Config.TAG, "Loaded a window of " + keyedCursor.getCount() + " datum in "
+          + (System.currentTimeMillis() - startTime) + "ms");
+    }
+    return keyedCursor;
+  }
+}
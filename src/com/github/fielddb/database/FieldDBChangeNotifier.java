@@ -0,0 +1,174 @@
+package com.github.fielddb.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import com.github.fielddb.Config;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Coalesces the change notifications of a content provider.
+ *
+ * Every notification makes each observing CursorLoader run its query again,
+ * so instead of notifying on each write the provider marks uris as dirty:
+ * <ul>
+ * <li>inside a batch (bulkInsert, applyBatch) the dirty uris are collected and
+ * notified once when the batch ends,</li>
+ * <li>outside of a batch they are collected for DEBOUNCE_DELAY ms and then
+ * notified together.</li>
+ * </ul>
+ * Notifying a uri also reaches the observers of the uris below it, so a dirty
+ * item uri is dropped if its collection uri is also dirty.
+ */
+public class FieldDBChangeNotifier {
+  public static long DEBOUNCE_DELAY = 100;
+
+  protected ContentResolver mContentResolver;
+  protected Handler mHandler = new Handler(Looper.getMainLooper());
+  protected final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+  protected LinkedHashSet<Uri> mPendingUris = new LinkedHashSet<Uri>();
+  protected int mPendingChangeCount = 0;
+  protected Runnable mFlushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  protected static class Batch {
+    int depth = 0;
+    int changeCount = 0;
+    LinkedHashSet<Uri> dirtyUris = new LinkedHashSet<Uri>();
+  }
+
+  public FieldDBChangeNotifier(ContentResolver contentResolver) {
+    this.mContentResolver = contentResolver;
+  }
+
+  /**
+   * Starts collecting the changes made on this thread, batches can be nested,
+   * the notifications are sent when the outer batch ends.
+   */
+  public void beginBatch() {
+    Batch batch = mBatch.get();
+    if (batch == null) {
+      batch = new Batch();
+      mBatch.set(batch);
+    }
+    batch.depth++;
+  }
+
+  /**
+   * @param successful
+   *          false if the batch's transaction was rolled back, in which case
+   *          nothing changed and nothing is notified
+   */
+  public void endBatch(boolean successful) {
+    Batch batch = mBatch.get();
+    if (batch == null) {
+      return;
+    }
+    batch.depth--;
+    if (batch.depth > 0) {
+      return;
+    }
+    mBatch.set(null);
+    if (successful) {
+      notifyNow(batch.dirtyUris, batch.changeCount);
+    }
+  }
+
+  public boolean isInBatch() {
+    return mBatch.get() != null;
+  }
+
+  public void notifyChange(Uri uri) {
+    Batch batch = mBatch.get();
+    if (batch != null) {
+      batch.dirtyUris.add(uri);
+      batch.changeCount++;
+      return;
+    }
+    synchronized (this) {
+      mPendingUris.add(uri);
+      mPendingChangeCount++;
+      if (mPendingChangeCount > 1) {
+        /* Already scheduled, this change will go out with the others */
+        return;
+      }
+    }
+    mHandler.postDelayed(mFlushRunnable, DEBOUNCE_DELAY);
+  }
+
+  /**
+   * Sends the pending notifications of the changes made outside of a batch.
+   */
+  public void flush() {
+    mHandler.removeCallbacks(mFlushRunnable);
+    LinkedHashSet<Uri> uris;
+    int changeCount;
+    synchronized (this) {
+      uris = mPendingUris;
+      changeCount = mPendingChangeCount;
+      mPendingUris = new LinkedHashSet<Uri>();
+      mPendingChangeCount = 0;
+    }
+    notifyNow(uris, changeCount);
+  }
+
+  protected void notifyNow(Collection<Uri> dirtyUris, int changeCount) {
+    if (dirtyUris.size() == 0) {
+      return;
+    }
+    List<Uri> uris = coalesce(dirtyUris);
+    for (Uri uri : uris) {
+      mContentResolver.notifyChange(uri, null);
+    }
+    if (Config.D) {
+      Log.d(Config.TAG, "Coalesced " + changeCount + " changes into " + uris.size() + " notifications");
+    }
+  }
+
+  /**
+   * @return the uris which are not below another of the uris
+   */
+  public static List<Uri> coalesce(Collection<Uri> dirtyUris) {
+    List<Uri> uris = new ArrayList<Uri>();
+    for (Uri uri : dirtyUris) {
+      boolean coveredByAncestor = false;
+      for (Uri other : dirtyUris) {
+        if (isAncestor(other, uri)) {
+          coveredByAncestor = true;
+          break;
+        }
+      }
+      if (!coveredByAncestor) {
+        uris.add(uri);
+      }
+    }
+    return uris;
+  }
+
+  protected static boolean isAncestor(Uri ancestor, Uri uri) {
+    if (ancestor.equals(uri) || !equals(ancestor.getAuthority(), uri.getAuthority())) {
+      return false;
+    }
+    List<String> ancestorSegments = ancestor.getPathSegments();
+    List<String> segments = uri.getPathSegments();
+    if (ancestorSegments.size() >= segments.size()) {
+      return false;
+    }
+    return segments.subList(0, ancestorSegments.size()).equals(ancestorSegments);
+  }
+
+  protected static boolean equals(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+}
@@ -0,0 +1,244 @@
+package com.github.fielddb.database;
+
+import java.util.ArrayList;
+
+import com.github.fielddb.Config;
+
+import android.annotation.SuppressLint;
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Batch support shared by the FieldDB content providers.
+ *
+ * Rows passed to bulkInsert or applyBatch are written in a single SQLite
+ * transaction (one journal sync instead of one per row), and observers get one
+ * change notification per changed uri once the whole batch has been committed
+ * rather than one per row. Changes outside of a batch are debounced by the
+ * {@link FieldDBChangeNotifier}.
+ */
+public abstract class FieldDBContentProvider extends ContentProvider {
+  public static final String METHOD_RUN_MAINTENANCE = "runMaintenance";
+  public static final String EXTRA_RETENTION_MILLIS = "retentionMillis";
+  public static final String EXTRA_ROWS_PURGED = "rowsPurged";
+  public static final String EXTRA_BYTES_RECLAIMED = "bytesReclaimed";
+  public static final String EXTRA_DURATION = "duration";
+  /* How many free pages an incremental vacuum gives back to the file system per run */
+  public static int INCREMENTAL_VACUUM_PAGES = 2000;
+
+  private FieldDBChangeNotifier mChangeNotifier;
+
+  protected abstract SQLiteOpenHelper getDatabaseHelper();
+
+  protected abstract Uri getContentUri();
+
+  @Override
+  public int bulkInsert(Uri uri, ContentValues[] values) {
+    if (values == null || values.length == 0) {
+      return 0;
+    }
+    long startTime = System.currentTimeMillis();
+    int insertedCount = 0;
+
+    SQLiteDatabase db = getDatabaseHelper().getWritableDatabase();
+    boolean successful = false;
+    getChangeNotifier().beginBatch();
+    db.beginTransaction();
+    try {
+      for (ContentValues row : values) {
+        if (insert(uri, row) != null) {
+          insertedCount++;
+        }
+      }
+      if (insertedCount > 0) {
+        notifyChange(getContentUri());
+      }
+      db.setTransactionSuccessful();
+      successful = true;
+    } finally {
+      db.endTransaction();
+      getChangeNotifier().endBatch(successful);
+    }
+
+    Log.d(Config.TAG, "bulkInsert " + insertedCount + "/" + values.length + " rows into " + uri + " took "
+        + (System.currentTimeMillis() - startTime) + "ms");
+    return insertedCount;
+  }
+
+  @Override
+  public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+      throws OperationApplicationException {
+    if (operations == null || operations.size() == 0) {
+      return new ContentProviderResult[0];
+    }
+    long startTime = System.currentTimeMillis();
+    ContentProviderResult[] results;
+
+    SQLiteDatabase db = getDatabaseHelper().getWritableDatabase();
+    boolean successful = false;
+    getChangeNotifier().beginBatch();
+    db.beginTransaction();
+    try {
+      results = super.applyBatch(operations);
+      /* Inserts don't notify on their own */
+      notifyChange(getContentUri());
+      db.setTransactionSuccessful();
+      successful = true;
+    } finally {
+      db.endTransaction();
+      getChangeNotifier().endBatch(successful);
+    }
+
+    Log.d(Config.TAG, "applyBatch " + operations.size() + " operations on " + getContentUri() + " took "
+        + (System.currentTimeMillis() - startTime) + "ms");
+    return results;
+  }
+
+  /**
+   * Marks the uri as changed. If the change is part of a batch, observers are
+   * notified once the batch has been committed, otherwise after a short
+   * debounce together with the other changes made in the meantime.
+   *
+   * @param uri
+   */
+  protected void notifyChange(Uri uri) {
+    getChangeNotifier().notifyChange(uri);
+  }
+
+  protected synchronized FieldDBChangeNotifier getChangeNotifier() {
+    if (mChangeNotifier == null) {
+      mChangeNotifier = new FieldDBChangeNotifier(getContext().getContentResolver());
+    }
+    return mChangeNotifier;
+  }
+
+  /**
+   * In debug builds logs how long a query took, including filling the first
+   * cursor window (which is where SQLite actually runs the query). Running a
+   * sync while scrolling the list shows the read latency during an ingest.
+   */
+  protected void logQueryTime(Uri uri, Cursor cursor, long startTime) {
+    if (!Config.D || cursor == null) {
+      return;
+    }
+    int count = cursor.getCount();
+    Log.d(Config.TAG, "query " + uri + " returned " + count + " rows in " + (System.currentTimeMillis() - startTime)
+        + "ms");
+  }
+
+  @SuppressLint("NewApi")
+  @Override
+  public Bundle call(String method, String arg, Bundle extras) {
+    if (METHOD_RUN_MAINTENANCE.equals(method)) {
+      return this.runMaintenance(extras == null ? new Bundle() : extras);
+    }
+    return super.call(method, arg, extras);
+  }
+
+  /**
+   * Background maintenance, run by the DatabaseMaintenanceService. Providers
+   * purge their obsolete rows first (see purge) then the free pages are given
+   * back to the file system and the query planner statistics are refreshed.
+   *
+   * @param extras
+   * @return what was reclaimed and how long it took
+   */
+  protected Bundle runMaintenance(Bundle extras) {
+    long startTime = System.currentTimeMillis();
+    SQLiteDatabase db = getDatabaseHelper().getWritableDatabase();
+    long sizeBefore = getDatabaseSize(db);
+
+    int rowsPurged = 0;
+    db.beginTransaction();
+    try {
+      rowsPurged = this.purge(db, extras);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    if (rowsPurged > 0) {
+      notifyChange(getContentUri());
+    }
+
+    this.vacuum(db);
+    db.execSQL("ANALYZE;");
+
+    Bundle result = new Bundle();
+    result.putInt(EXTRA_ROWS_PURGED, rowsPurged);
+    result.putLong(EXTRA_BYTES_RECLAIMED, sizeBefore - getDatabaseSize(db));
+    result.putLong(EXTRA_DURATION, System.currentTimeMillis() - startTime);
+    Log.d(Config.TAG, "Maintenance of " + getContentUri() + " purged " + rowsPurged + " rows and reclaimed "
+        + result.getLong(EXTRA_BYTES_RECLAIMED) + " bytes in " + result.getLong(EXTRA_DURATION) + "ms");
+    return result;
+  }
+
+  /**
+   * Deletes the rows which are no longer needed, runs in a transaction.
+   *
+   * @return the number of rows deleted
+   */
+  protected int purge(SQLiteDatabase db, Bundle extras) {
+    return 0;
+  }
+
+  /**
+   * Gives some of the free pages back to the file system. Databases created
+   * before incremental vacuum was turned on are converted with one full VACUUM.
+   */
+  protected void vacuum(SQLiteDatabase db) {
+    long autoVacuum = DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum;", null);
+    if (autoVacuum != 2) {
+      Log.d(Config.TAG, "Turning on incremental vacuum for " + getContentUri());
+      db.execSQL("PRAGMA auto_vacuum = INCREMENTAL;");
+      db.execSQL("VACUUM;");
+      return;
+    }
+    /* Run through a cursor so the pragma is stepped until it is done */
+    Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + INCREMENTAL_VACUUM_PAGES + ");", null);
+    cursor.getCount();
+    cursor.close();
+  }
+
+  public static long getDatabaseSize(SQLiteDatabase db) {
+    return DatabaseUtils.longForQuery(db, "PRAGMA page_count;", null)
+        * DatabaseUtils.longForQuery(db, "PRAGMA page_size;", null);
+  }
+
+  /**
+   * @return the number in the uri's query parameter, or null if the uri
+   *         doesn't have the parameter
+   * @throws IllegalArgumentException
+   *           if the parameter isn't a number between min and max
+   */
+  public static Long getNumberQueryParameter(Uri uri, String name, long min, long max) {
+    String value = uri.getQueryParameter(name);
+    if (value == null || "".equals(value)) {
+      return null;
+    }
+    long number;
+    try {
+      number = Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("The " + name + " parameter is not a number: " + value);
+    }
+    if (number < min || number > max) {
+      throw new IllegalArgumentException("The " + name + " parameter must be between " + min + " and " + max + ": "
+          + value);
+    }
+    return number;
+  }
+
+  protected boolean isInBatch() {
+    return getChangeNotifier().isInBatch();
+  }
+}
@@ -0,0 +1,232 @@
+package com.github.fielddb.database;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import com.github.fielddb.Config;
+import com.github.fielddb.database.AudioVideoContentProvider.AudioVideoTable;
+import com.github.fielddb.database.AudioVideoContentProvider.UploadOutboxTable;
+import com.github.fielddb.database.AudioVideoContentProvider.UploadProgressTable;
+import com.github.fielddb.database.DatumContentProvider.DatumMediaTable;
+import com.github.fielddb.database.DatumContentProvider.DatumTable;
+import com.github.fielddb.database.DatumContentProvider.SyncCheckpointTable;
+import com.github.fielddb.database.UserContentProvider.UserTable;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * The one database which holds the datum, audio/video and user tables.
+ *
+ * All the content providers share this helper (and so one connection pool),
+ * which lets a query join a datum with its media metadata. Installs which
+ * still have the old per table databases (datum.db, audiovideo.db, user.db)
+ * have them copied in the first time the database is opened, after which the
+ * old files are deleted.
+ */
+public class FieldDBDatabase extends FieldDBSQLiteOpenHelper {
+  public static final String DATABASE_NAME = "fielddb.db";
+  public static final int DATABASE_VERSION = 5;
+  /* The tables which used to have their own database, named after the table */
+  public static final String[] LEGACY_TABLES = { DatumTable.TABLE_NAME, AudioVideoTable.TABLE_NAME,
+      UserTable.TABLE_NAME };
+
+  private static FieldDBDatabase sInstance;
+  protected Context mContext;
+
+  public static synchronized FieldDBDatabase getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new FieldDBDatabase(context.getApplicationContext());
+    }
+    return sInstance;
+  }
+
+  /**
+   * Only for the tests, which can't give the providers an isolated database
+   * through getInstance since it uses the application context. Closes the
+   * shared helper, and if there is a context empties its database and shares
+   * a helper on it instead. Without a context the next getInstance opens the
+   * application's database again.
+   */
+  public static synchronized void resetInstance(Context context) {
+    if (sInstance != null) {
+      sInstance.close();
+      sInstance = null;
+    }
+    if (context != null) {
+      context.deleteDatabase(DATABASE_NAME);
+      sInstance = new FieldDBDatabase(context);
+    }
+  }
+
+  protected FieldDBDatabase(Context context) {
+    super(context, DATABASE_NAME, DATABASE_VERSION);
+    this.mContext = context;
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    try {
+      DatumTable.createTables(db);
+      AudioVideoTable.createTables(db);
+      UserTable.createTables(db);
+      /* Installs which already have users keep them, see importLegacyDatabases */
+      if (!isLegacyDatabase(UserTable.TABLE_NAME)) {
+        db.insert(UserTable.TABLE_NAME, null, UserTable.createAnonymousUser());
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * The backfills which finish importing the old databases (they are recorded
+   * as pending by the import), then the schema changes since version 1.
+   */
+  @Override
+  protected ArrayList<FieldDBMigration> getMigrations() {
+    ArrayList<FieldDBMigration> migrations = new ArrayList<FieldDBMigration>();
+    migrations.add(DatumMediaTable.fillFromFileColumns(1));
+    for (String table : LEGACY_TABLES) {
+      migrations.add(FieldDBJsonCodec.compressExistingRows(1, table));
+    }
+    migrations.add(FieldDBMigration.sql(2, SyncCheckpointTable.TABLE_NAME, "createTable",
+        SyncCheckpointTable.generateCreateTableSQLStatements()));
+    migrations.add(FieldDBMigration.sql(3, UploadProgressTable.TABLE_NAME, "createTable",
+        UploadProgressTable.generateCreateTableSQLStatements()));
+    migrations.add(FieldDBMigration.sql(4, UploadOutboxTable.TABLE_NAME, "createTable",
+        UploadOutboxTable.generateCreateTableSQLStatements()));
+    migrations.add(FieldDBMigration.addColumn(5, AudioVideoTable.TABLE_NAME, AudioVideoTable.COLUMN_UNLINKED_AT,
+        "text"));
+    migrations.add(FieldDBMigration.sql(5, AudioVideoTable.TABLE_NAME, "unlinkTriggers",
+        AudioVideoTable.generateUnlinkTriggerSQLStatements()));
+    return migrations;
+  }
+
+  @Override
+  public void onOpen(SQLiteDatabase db) {
+    if (!db.isReadOnly()) {
+      this.importLegacyDatabases(db);
+    }
+    super.onOpen(db);
+  }
+
+  protected void importLegacyDatabases(SQLiteDatabase db) {
+    boolean imported = false;
+    for (String table : LEGACY_TABLES) {
+      if (!isLegacyDatabase(table)) {
+        continue;
+      }
+      String legacyName = table + ".db";
+      try {
+        this.importLegacyDatabase(db, mContext.getDatabasePath(legacyName), table);
+        mContext.deleteDatabase(legacyName);
+        imported = true;
+      } catch (Exception e) {
+        /* Keep the old file, the import will be tried again next time */
+        Log.e(Config.TAG, "Unable to import " + legacyName, e);
+      }
+    }
+    if (!imported) {
+      return;
+    }
+    FieldDBMigrator.createBookkeepingTable(db);
+    for (FieldDBMigration migration : getMigrations()) {
+      FieldDBMigrator.schedule(db, migration);
+    }
+  }
+
+  protected boolean isLegacyDatabase(String table) {
+    File legacyFile = mContext.getDatabasePath(table + ".db");
+    return legacyFile != null && legacyFile.exists();
+  }
+
+  /**
+   * Copies the rows of a table from its old database, keeping their
+   * android_id. Only the columns which exist in both versions of the table
+   * are copied. A row which is already there (same android_id or _id) is
+   * deleted before it is copied again, in the same transaction, so an import
+   * which was interrupted before the old file was deleted can simply be run
+   * again. The row is not replaced with CONFLICT_REPLACE: with recursive
+   * triggers off that doesn't fire the delete triggers, and the insert
+   * trigger would then add a second copy of the row to the search table.
+   */
+  protected void importLegacyDatabase(SQLiteDatabase db, File legacyFile, String table) {
+    long startTime = System.currentTimeMillis();
+    /*
+     * The old database is opened on its own rather than attached, attaching a
+     * database turns off write-ahead logging for the rest of the session.
+     */
+    SQLiteDatabase legacy = SQLiteDatabase.openDatabase(legacyFile.getPath(), null,
+        SQLiteDatabase.OPEN_READWRITE);
+    int rowCount = 0;
+    try {
+      ArrayList<String> legacyColumns = getColumns(legacy, table);
+      ArrayList<String> columns = new ArrayList<String>();
+      for (String column : getColumns(db, table)) {
+        if (legacyColumns.contains(column)) {
+          columns.add(column);
+        }
+      }
+      if (columns.size() == 0) {
+        return;
+      }
+
+      Cursor cursor = legacy.query(table, columns.toArray(new String[columns.size()]), null, null, null, null,
+          FieldDBTable.COLUMN_ANDROID_ID);
+      db.beginTransaction();
+      try {
+        ContentValues values = new ContentValues();
+        while (cursor.moveToNext()) {
+          values.clear();
+          DatabaseUtils.cursorRowToContentValues(cursor, values);
+          String id = values.getAsString(FieldDBTable.COLUMN_ID);
+          if (id == null) {
+            db.delete(table, FieldDBTable.COLUMN_ANDROID_ID + " = ?",
+                new String[] { values.getAsString(FieldDBTable.COLUMN_ANDROID_ID) });
+          } else {
+            db.delete(table, FieldDBTable.COLUMN_ANDROID_ID + " = ? OR " + FieldDBTable.COLUMN_ID + " = ?",
+                new String[] { values.getAsString(FieldDBTable.COLUMN_ANDROID_ID), id });
+          }
+          db.insertOrThrow(table, null, values);
+          rowCount++;
+        }
+        if (DatumTable.TABLE_NAME.equals(table)) {
+          /* Datum which were already in the trash start their retention now */
+          db.execSQL("UPDATE " + DatumTable.TABLE_NAME + " SET " + DatumTable.COLUMN_TRASHED_AT + " = "
+              + System.currentTimeMillis() + " WHERE " + DatumTable.COLUMN_TRASHED + " IS NOT NULL AND "
+              + DatumTable.COLUMN_TRASHED_AT + " IS NULL;");
+        }
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+        cursor.close();
+      }
+    } finally {
+      legacy.close();
+    }
+    Log.d(Config.TAG, "Imported " + rowCount + " rows from " + legacyFile.getName() + " in "
+        + (System.currentTimeMillis() - startTime) + "ms");
+  }
+
+  public static ArrayList<String> getColumns(SQLiteDatabase db, String table) {
+    ArrayList<String> columns = new ArrayList<String>();
+    Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ");", null);
+    try {
+      int nameColumnIndex = cursor.getColumnIndexOrThrow("name");
+      while (cursor.moveToNext()) {
+        columns.add(cursor.getString(nameColumnIndex));
+      }
+    } finally {
+      cursor.close();
+    }
+    return columns;
+  }
+}
@@ -0,0 +1,45 @@
+package com.github.fielddb.database;
+
+/**
+ * Declares an index on a {@link FieldDBTable}. Tables list their indexes in
+ * getIndexes() and the SQLite helpers build them when the table is created or
+ * upgraded.
+ *
+ * A where clause makes it a partial index, which only covers the rows the
+ * providers actually query (for example the rows that are not in the trash).
+ */
+public class FieldDBIndex {
+  protected String name;
+  protected boolean unique;
+  protected String where;
+  protected String[] columns;
+
+  public FieldDBIndex(String name, boolean unique, String where, String... columns) {
+    super();
+    this.name = name;
+    this.unique = unique;
+    this.where = where;
+    this.columns = columns;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean isUnique() {
+    return unique;
+  }
+
+  public String getWhere() {
+    return where;
+  }
+
+  public boolean isPartial() {
+    return where != null && !"".equals(where);
+  }
+
+  public String[] getColumns() {
+    return columns;
+  }
+
+}
@@ -0,0 +1,206 @@
+package com.github.fielddb.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.github.fielddb.Config;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Encodes the actualJSON column, which holds the whole CouchDB document and is
+ * much bigger than the rest of the row.
+ *
+ * Encoded values start with a small header: two magic bytes, the codec, and
+ * the length in bytes of the original UTF-8 JSON (big endian int), followed by
+ * the deflated (or, when deflating doesn't help, raw) JSON. Values without the
+ * header are legacy uncompressed JSON and are returned as is.
+ */
+public class FieldDBJsonCodec {
+  public static final byte MAGIC_0 = 'F';
+  public static final byte MAGIC_1 = 'J';
+  public static final byte CODEC_NONE = 0;
+  public static final byte CODEC_DEFLATE = 1;
+  public static final int HEADER_LENGTH = 7;
+  /* Documents smaller than this don't compress enough to be worth it */
+  public static int MIN_COMPRESS_LENGTH = 128;
+
+  public static byte[] encode(String json) {
+    if (json == null) {
+      return null;
+    }
+    byte[] original;
+    try {
+      original = json.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      e.printStackTrace();
+      return null;
+    }
+    byte[] body = original;
+    byte codec = CODEC_NONE;
+    if (original.length >= MIN_COMPRESS_LENGTH) {
+      byte[] deflated = deflate(original);
+      if (deflated.length < original.length) {
+        body = deflated;
+        codec = CODEC_DEFLATE;
+      }
+    }
+    byte[] encoded = new byte[HEADER_LENGTH + body.length];
+    encoded[0] = MAGIC_0;
+    encoded[1] = MAGIC_1;
+    encoded[2] = codec;
+    encoded[3] = (byte) (original.length >>> 24);
+    encoded[4] = (byte) (original.length >>> 16);
+    encoded[5] = (byte) (original.length >>> 8);
+    encoded[6] = (byte) original.length;
+    System.arraycopy(body, 0, encoded, HEADER_LENGTH, body.length);
+    return encoded;
+  }
+
+  public static String decode(byte[] encoded) {
+    if (encoded == null) {
+      return null;
+    }
+    try {
+      if (!isEncoded(encoded)) {
+        return new String(encoded, "UTF-8");
+      }
+      int originalLength = ((encoded[3] & 0xff) << 24) | ((encoded[4] & 0xff) << 16) | ((encoded[5] & 0xff) << 8)
+          | (encoded[6] & 0xff);
+      if (encoded[2] == CODEC_NONE) {
+        return new String(encoded, HEADER_LENGTH, encoded.length - HEADER_LENGTH, "UTF-8");
+      }
+      if (encoded[2] != CODEC_DEFLATE) {
+        Log.e(Config.TAG, "Unknown actualJSON codec " + encoded[2]);
+        return null;
+      }
+      Inflater inflater = new Inflater();
+      inflater.setInput(encoded, HEADER_LENGTH, encoded.length - HEADER_LENGTH);
+      byte[] original = new byte[originalLength];
+      int inflatedLength = 0;
+      try {
+        while (inflatedLength < originalLength && !inflater.finished()) {
+          int count = inflater.inflate(original, inflatedLength, originalLength - inflatedLength);
+          if (count == 0 && inflater.needsInput()) {
+            break;
+          }
+          inflatedLength += count;
+        }
+      } finally {
+        inflater.end();
+      }
+      return new String(original, 0, inflatedLength, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      e.printStackTrace();
+    } catch (DataFormatException e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  public static boolean isEncoded(byte[] value) {
+    return value != null && value.length >= HEADER_LENGTH && value[0] == MAGIC_0 && value[1] == MAGIC_1;
+  }
+
+  protected static byte[] deflate(byte[] original) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    deflater.setInput(original);
+    deflater.finish();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(original.length / 2 + 16);
+    byte[] buffer = new byte[4096];
+    try {
+      while (!deflater.finished()) {
+        int count = deflater.deflate(buffer);
+        out.write(buffer, 0, count);
+      }
+    } finally {
+      deflater.end();
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Replaces a JSON string in the values with its encoded blob, so callers can
+   * keep putting the document in as a string.
+   *
+   * @param values
+   */
+  public static void encodeContentValues(ContentValues values) {
+    if (values == null) {
+      return;
+    }
+    Object json = values.get(FieldDBTable.COLUMN_ACTUAL_JSON);
+    if (json instanceof String) {
+      values.put(FieldDBTable.COLUMN_ACTUAL_JSON, encode((String) json));
+    }
+  }
+
+  /**
+   * Decodes the actualJSON of the current row, if it is in the projection.
+   * Callers who don't need the document should leave it out of their
+   * projection, so the blob isn't even copied into the cursor window.
+   *
+   * @param cursor
+   * @return the JSON or null
+   */
+  public static String getActualJSON(Cursor cursor) {
+    int columnIndex = cursor.getColumnIndex(FieldDBTable.COLUMN_ACTUAL_JSON);
+    if (columnIndex < 0 || cursor.isNull(columnIndex)) {
+      return null;
+    }
+    return decode(cursor.getBlob(columnIndex));
+  }
+
+  /**
+   * A backfill which encodes the rows which still have plain actualJSON
+   * (written before it was compressed), and logs how many bytes were saved.
+   *
+   * @param version
+   * @param TABLE_NAME
+   */
+  public static FieldDBMigration compressExistingRows(int version, final String TABLE_NAME) {
+    return new FieldDBMigration(version, FieldDBMigration.BACKFILL, TABLE_NAME, "compressActualJSON") {
+      long bytesBefore = 0;
+      long bytesAfter = 0;
+      int rowCount = 0;
+
+      @Override
+      protected void backfillChunk(SQLiteDatabase db, long after, long upTo) {
+        String[] projection = { FieldDBTable.COLUMN_ANDROID_ID, FieldDBTable.COLUMN_ACTUAL_JSON };
+        String selection = FieldDBTable.COLUMN_ANDROID_ID + " > ? AND " + FieldDBTable.COLUMN_ANDROID_ID + " <= ? AND "
+            + FieldDBTable.COLUMN_ACTUAL_JSON + " IS NOT NULL";
+        Cursor cursor = db.query(TABLE_NAME, projection, selection, new String[] { "" + after, "" + upTo }, null, null,
+            null);
+        try {
+          while (cursor.moveToNext()) {
+            byte[] value = cursor.getBlob(1);
+            if (isEncoded(value)) {
+              continue;
+            }
+            byte[] encoded = encode(decode(value));
+            ContentValues values = new ContentValues();
+            values.put(FieldDBTable.COLUMN_ACTUAL_JSON, encoded);
+            db.update(TABLE_NAME, values, FieldDBTable.COLUMN_ANDROID_ID + " = " + cursor.getLong(0), null);
+            bytesBefore += value.length;
+            bytesAfter += encoded.length;
+            rowCount++;
+          }
+        } finally {
+          cursor.close();
+        }
+      }
+
+      @Override
+      protected void backfillFinished() {
+        Log.d(Config.TAG, "Compressed the actualJSON of " + rowCount + " rows in " + TABLE_NAME + " from "
+            + bytesBefore + " to " + bytesAfter + " bytes, saved " + (bytesBefore - bytesAfter) + " bytes");
+      }
+    };
+  }
+}
@@ -0,0 +1,175 @@
+package com.github.fielddb.database;
+
+import java.util.ArrayList;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * One step of a table's schema migration, see {@link FieldDBMigrator}.
+ *
+ * Each step says what it does, so the cheapest way of doing it can be used:
+ * <ul>
+ * <li>ADD_COLUMN: ALTER TABLE ADD COLUMN, no rows are copied</li>
+ * <li>ADD_INDEX: builds the table's declared indexes</li>
+ * <li>SQL: runs statements which must be safe to run again (IF NOT EXISTS)</li>
+ * <li>BACKFILL: updates the existing rows a chunk at a time after the database
+ * has been opened, and resumes where it stopped if the app is killed</li>
+ * <li>REBUILD: copies the table into a new one, only for changes ALTER TABLE
+ * can't do (renaming or removing columns)</li>
+ * </ul>
+ */
+public class FieldDBMigration {
+  public static final String ADD_COLUMN = "addColumn";
+  public static final String ADD_INDEX = "addIndex";
+  public static final String BACKFILL = "backfill";
+  public static final String REBUILD = "rebuild";
+  public static final String SQL = "sql";
+
+  protected int version;
+  protected String type;
+  protected String tableName;
+  protected String name;
+  protected ArrayList<String> statements = new ArrayList<String>();
+  protected ArrayList<FieldDBIndex> indexes;
+  protected ArrayList<String> copiedColumns;
+
+  public FieldDBMigration(int version, String type, String tableName, String name) {
+    super();
+    this.version = version;
+    this.type = type;
+    this.tableName = tableName;
+    this.name = name;
+  }
+
+  public static FieldDBMigration addColumn(int version, String tableName, String column, String columnType) {
+    FieldDBMigration migration = new FieldDBMigration(version, ADD_COLUMN, tableName, column);
+    migration.statements.add("ALTER TABLE " + tableName + " ADD COLUMN " + column + " " + columnType + ";");
+    return migration;
+  }
+
+  public static FieldDBMigration addIndexes(int version, String tableName, ArrayList<FieldDBIndex> indexes) {
+    FieldDBMigration migration = new FieldDBMigration(version, ADD_INDEX, tableName, "indexes");
+    migration.indexes = indexes;
+    return migration;
+  }
+
+  public static FieldDBMigration sql(int version, String tableName, String name, ArrayList<String> statements) {
+    FieldDBMigration migration = new FieldDBMigration(version, SQL, tableName, name);
+    migration.statements = statements;
+    return migration;
+  }
+
+  /**
+   * @param setClause
+   *          the SET part of the UPDATE which fills in the rows, for example
+   *          "trashed_at = updated_at"
+   */
+  public static FieldDBMigration backfill(int version, String tableName, String name, String setClause) {
+    FieldDBMigration migration = new FieldDBMigration(version, BACKFILL, tableName, name);
+    migration.statements.add(setClause);
+    return migration;
+  }
+
+  /**
+   * @param createTableStatement
+   *          creates the table with its new schema
+   * @param copiedColumns
+   *          the columns which exist in both schemas
+   */
+  public static FieldDBMigration rebuild(int version, String tableName, String createTableStatement,
+      ArrayList<String> copiedColumns) {
+    FieldDBMigration migration = new FieldDBMigration(version, REBUILD, tableName, "rebuild");
+    migration.statements.add(createTableStatement);
+    migration.copiedColumns = copiedColumns;
+    return migration;
+  }
+
+  /**
+   * Runs the step, inside the upgrade transaction. Backfills are not run here
+   * but later by {@link FieldDBMigrator#runPendingBackfills}.
+   *
+   * @param db
+   * @throws Exception
+   */
+  public void migrate(SQLiteDatabase db) throws Exception {
+    if (ADD_COLUMN.equals(type)) {
+      if (!hasColumn(db, tableName, name)) {
+        db.execSQL(statements.get(0));
+      }
+    } else if (ADD_INDEX.equals(type)) {
+      FieldDBTable.createIndexes(db, tableName, indexes);
+    } else if (SQL.equals(type)) {
+      for (String statement : statements) {
+        db.execSQL(statement);
+      }
+    } else if (REBUILD.equals(type)) {
+      String backupTableName = tableName + "backup1";
+      db.execSQL("DROP TABLE IF EXISTS " + backupTableName + ";");
+      db.execSQL("ALTER TABLE " + tableName + " RENAME TO " + backupTableName + ";");
+      db.execSQL(statements.get(0));
+      db.execSQL(FieldDBTable.generateUpgradeTableSQLStatement(tableName, copiedColumns));
+      /* The old indexes followed the renamed table and go with it */
+      db.execSQL("DROP TABLE " + backupTableName + ";");
+    }
+  }
+
+  /**
+   * Backfills the rows whose android_id is in (after, upTo]. Override this for
+   * backfills which can't be done with an UPDATE.
+   *
+   * @param db
+   * @param after
+   * @param upTo
+   */
+  protected void backfillChunk(SQLiteDatabase db, long after, long upTo) {
+    db.execSQL("UPDATE " + tableName + " SET " + statements.get(0) + " WHERE " + FieldDBTable.COLUMN_ANDROID_ID
+        + " > " + after + " AND " + FieldDBTable.COLUMN_ANDROID_ID + " <= " + upTo + ";");
+  }
+
+  /**
+   * Called once all the rows have been backfilled.
+   */
+  protected void backfillFinished() {
+  }
+
+  public static boolean hasColumn(SQLiteDatabase db, String tableName, String column) {
+    Cursor cursor = db.rawQuery("PRAGMA table_info(" + tableName + ");", null);
+    try {
+      int nameColumnIndex = cursor.getColumnIndexOrThrow("name");
+      while (cursor.moveToNext()) {
+        if (column.equals(cursor.getString(nameColumnIndex))) {
+          return true;
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+    return false;
+  }
+
+  public boolean isDeferred() {
+    return BACKFILL.equals(type);
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public String getTableName() {
+    return tableName;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public String toString() {
+    return tableName + " v" + version + " " + type + " " + name;
+  }
+}
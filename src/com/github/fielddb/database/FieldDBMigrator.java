@@ -0,0 +1,192 @@
+package com.github.fielddb.database;
+
+import java.util.ArrayList;
+
+import com.github.fielddb.Config;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Runs the {@link FieldDBMigration} steps of a database in order and keeps
+ * track of them in a bookkeeping table.
+ *
+ * The steps between the old and the new version are run in onUpgrade, which
+ * SQLite runs in one transaction: if the app is killed the whole upgrade is
+ * rolled back and run again on the next start, which is why the steps have to
+ * be safe to repeat. Backfills, which touch every row, are only recorded as
+ * pending during the upgrade and are run after the database has been opened,
+ * one chunk per transaction, with the last backfilled android_id saved in the
+ * same transaction so they continue where they stopped.
+ */
+public class FieldDBMigrator {
+  public static final String TABLE_NAME = "fielddb_migrations";
+  public static final String COLUMN_TABLE_NAME = "table_name";
+  public static final String COLUMN_VERSION = "version";
+  public static final String COLUMN_TYPE = "type";
+  public static final String COLUMN_NAME = "name";
+  public static final String COLUMN_STATE = "state";
+  public static final String COLUMN_LAST_KEY = "last_key";
+  public static final String COLUMN_DURATION = "duration";
+  public static final String COLUMN_UPDATED_AT = "updated_at";
+
+  public static final String STATE_PENDING = "pending";
+  public static final String STATE_DONE = "done";
+
+  public static int BACKFILL_CHUNK_SIZE = 500;
+
+  public static void createBookkeepingTable(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + "(" + COLUMN_TABLE_NAME + " text , " + COLUMN_VERSION
+        + " integer , " + COLUMN_TYPE + " text , " + COLUMN_NAME + " text , " + COLUMN_STATE + " text , "
+        + COLUMN_LAST_KEY + " integer , " + COLUMN_DURATION + " integer , " + COLUMN_UPDATED_AT + " integer , "
+        + "PRIMARY KEY (" + COLUMN_TABLE_NAME + " , " + COLUMN_VERSION + " , " + COLUMN_NAME + "));");
+  }
+
+  /**
+   * Runs the migrations with a version in (oldVersion, newVersion], in the
+   * order they are listed.
+   */
+  public static void upgrade(SQLiteDatabase db, ArrayList<FieldDBMigration> migrations, int oldVersion,
+      int newVersion) {
+    long upgradeStartTime = System.currentTimeMillis();
+    createBookkeepingTable(db);
+    for (FieldDBMigration migration : migrations) {
+      if (migration.getVersion() <= oldVersion || migration.getVersion() > newVersion) {
+        continue;
+      }
+      if (migration.isDeferred()) {
+        record(db, migration, STATE_PENDING, -1, 0);
+        Log.d(Config.TAG, "Migration " + migration + " will run in the background");
+        continue;
+      }
+      long startTime = System.currentTimeMillis();
+      try {
+        migration.migrate(db);
+      } catch (Exception e) {
+        /* Leave the database at its old version rather than half migrated */
+        throw new RuntimeException("Migration " + migration + " failed", e);
+      }
+      long duration = System.currentTimeMillis() - startTime;
+      record(db, migration, STATE_DONE, -1, duration);
+      Log.d(Config.TAG, "Migration " + migration + " took " + duration + "ms");
+    }
+    Log.d(Config.TAG, "Upgraded from version " + oldVersion + " to " + newVersion + " in "
+        + (System.currentTimeMillis() - upgradeStartTime) + "ms");
+  }
+
+  /**
+   * Records a backfill as pending outside of an upgrade, for example after
+   * rows have been imported.
+   */
+  public static void schedule(SQLiteDatabase db, FieldDBMigration migration) {
+    if (!migration.isDeferred()) {
+      return;
+    }
+    record(db, migration, STATE_PENDING, -1, 0);
+  }
+
+  public static boolean hasPendingBackfills(SQLiteDatabase db) {
+    createBookkeepingTable(db);
+    return DatabaseUtils.longForQuery(db, "SELECT count(*) FROM " + TABLE_NAME + " WHERE " + COLUMN_STATE + " = ?",
+        new String[] { STATE_PENDING }) > 0;
+  }
+
+  /**
+   * Runs the backfills which were recorded as pending, continuing from the
+   * last chunk which was committed.
+   */
+  public static void runPendingBackfills(SQLiteDatabase db, ArrayList<FieldDBMigration> migrations) {
+    for (FieldDBMigration migration : migrations) {
+      if (!migration.isDeferred()) {
+        continue;
+      }
+      long lastKey = getPendingLastKey(db, migration);
+      if (lastKey == Long.MIN_VALUE) {
+        continue;
+      }
+      long startTime = System.currentTimeMillis();
+      int chunkCount = 0;
+      while (true) {
+        boolean finished;
+        db.beginTransaction();
+        try {
+          long upTo = getChunkEnd(db, migration.getTableName(), lastKey);
+          finished = upTo == Long.MIN_VALUE;
+          if (finished) {
+            record(db, migration, STATE_DONE, lastKey, System.currentTimeMillis() - startTime);
+          } else {
+            migration.backfillChunk(db, lastKey, upTo);
+            record(db, migration, STATE_PENDING, upTo, System.currentTimeMillis() - startTime);
+            lastKey = upTo;
+            chunkCount++;
+          }
+          db.setTransactionSuccessful();
+        } catch (Exception e) {
+          Log.e(Config.TAG, "Backfill " + migration + " failed after row " + lastKey + ", will retry next time", e);
+          return;
+        } finally {
+          db.endTransaction();
+        }
+        if (finished) {
+          break;
+        }
+      }
+      migration.backfillFinished();
+      Log.d(Config.TAG, "Backfill " + migration + " ran " + chunkCount + " chunks in "
+          + (System.currentTimeMillis() - startTime) + "ms");
+    }
+  }
+
+  /**
+   * @return the last android_id of the next chunk, or Long.MIN_VALUE if
+   *         there are no more rows
+   */
+  protected static long getChunkEnd(SQLiteDatabase db, String tableName, long after) {
+    Cursor cursor = db.query(tableName, new String[] { FieldDBTable.COLUMN_ANDROID_ID },
+        FieldDBTable.COLUMN_ANDROID_ID + " > ?", new String[] { "" + after }, null, null,
+        FieldDBTable.COLUMN_ANDROID_ID + " ASC", "" + BACKFILL_CHUNK_SIZE);
+    try {
+      if (!cursor.moveToLast()) {
+        return Long.MIN_VALUE;
+      }
+      return cursor.getLong(0);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * @return the last key of a pending backfill or Long.MIN_VALUE if it isn't
+   *         pending
+   */
+  protected static long getPendingLastKey(SQLiteDatabase db, FieldDBMigration migration) {
+    Cursor cursor = db.query(TABLE_NAME, new String[] { COLUMN_LAST_KEY }, COLUMN_TABLE_NAME + " = ? AND "
+        + COLUMN_VERSION + " = ? AND " + COLUMN_NAME + " = ? AND " + COLUMN_STATE + " = ?", new String[] {
+        migration.getTableName(), "" + migration.getVersion(), migration.getName(), STATE_PENDING }, null, null, null);
+    try {
+      if (!cursor.moveToFirst()) {
+        return Long.MIN_VALUE;
+      }
+      return cursor.getLong(0);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  protected static void record(SQLiteDatabase db, FieldDBMigration migration, String state, long lastKey,
+      long duration) {
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_TABLE_NAME, migration.getTableName());
+    values.put(COLUMN_VERSION, migration.getVersion());
+    values.put(COLUMN_TYPE, migration.getType());
+    values.put(COLUMN_NAME, migration.getName());
+    values.put(COLUMN_STATE, state);
+    values.put(COLUMN_LAST_KEY, lastKey);
+    values.put(COLUMN_DURATION, duration);
+    values.put(COLUMN_UPDATED_AT, System.currentTimeMillis());
+    db.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+  }
+}
@@ -0,0 +1,114 @@
+package com.github.fielddb.database;
+
+import java.util.ArrayList;
+
+import com.github.fielddb.Config;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Journal and connection settings shared by the FieldDB databases.
+ *
+ * The databases use write-ahead logging so that background sync writes don't
+ * block the list and detail reads (and autosave doesn't block sync). In WAL
+ * mode Android keeps a pool of read-only connections next to the primary
+ * connection, statements which only read are run on those, which is why the
+ * providers query through getReadableDatabase(). The size of the reader pool
+ * is decided by the platform (it is not part of the public SQLite API), the
+ * rest of the settings are here.
+ *
+ * Schema changes are declared as a list of {@link FieldDBMigration} steps by
+ * each helper and run by the {@link FieldDBMigrator}.
+ */
+public abstract class FieldDBSQLiteOpenHelper extends SQLiteOpenHelper {
+  /* Write-ahead logging needs Android 3.0 (API 11) */
+  public static boolean USE_WRITE_AHEAD_LOGGING = true;
+  /* In WAL mode NORMAL only syncs at checkpoints, and is still safe against corruption */
+  public static String SYNCHRONOUS_MODE = "NORMAL";
+  /* How many pages the WAL file can grow to before it is copied back into the database */
+  public static int WAL_AUTOCHECKPOINT_PAGES = 1000;
+
+  protected String mDatabaseName;
+
+  @SuppressLint("NewApi")
+  public FieldDBSQLiteOpenHelper(Context context, String name, int version) {
+    super(context, name, null, version);
+    this.mDatabaseName = name;
+    if (USE_WRITE_AHEAD_LOGGING && Build.VERSION.SDK_INT >= 16) {
+      setWriteAheadLoggingEnabled(true);
+    }
+  }
+
+  @SuppressLint("NewApi")
+  @Override
+  public void onOpen(SQLiteDatabase db) {
+    super.onOpen(db);
+    if (db.isReadOnly()) {
+      return;
+    }
+    /* Before Jelly Bean write-ahead logging can only be turned on once the database is open */
+    if (USE_WRITE_AHEAD_LOGGING && Build.VERSION.SDK_INT >= 11 && Build.VERSION.SDK_INT < 16) {
+      db.enableWriteAheadLogging();
+    }
+    try {
+      db.execSQL("PRAGMA synchronous = " + SYNCHRONOUS_MODE + ";");
+      if (USE_WRITE_AHEAD_LOGGING) {
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES + ";", null);
+      }
+    } catch (Exception e) {
+      Log.w(Config.TAG, "Problem configuring the database journal. " + e);
+    }
+    if (Config.D) {
+      Log.d(Config.TAG, "Opened " + mDatabaseName + " with journal mode " + getJournalMode(db));
+    }
+    this.runPendingBackfills(db);
+  }
+
+  /**
+   * @return the schema changes of each version after the first, in order
+   */
+  protected ArrayList<FieldDBMigration> getMigrations() {
+    return new ArrayList<FieldDBMigration>();
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    FieldDBMigrator.upgrade(db, getMigrations(), oldVersion, newVersion);
+  }
+
+  /**
+   * Backfills touch every row so they are run in the background once the
+   * database is open, rather than in onUpgrade where they would block the app
+   * from starting.
+   */
+  protected void runPendingBackfills(final SQLiteDatabase db) {
+    try {
+      if (!FieldDBMigrator.hasPendingBackfills(db)) {
+        return;
+      }
+    } catch (Exception e) {
+      Log.w(Config.TAG, "Unable to check for pending backfills. " + e);
+      return;
+    }
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        FieldDBMigrator.runPendingBackfills(db, getMigrations());
+      }
+    }, mDatabaseName + " backfill").start();
+  }
+
+  public static String getJournalMode(SQLiteDatabase db) {
+    try {
+      return DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode;", null);
+    } catch (Exception e) {
+      return "unknown";
+    }
+  }
+}
@@ -2,6 +2,13 @@ package com.github.fielddb.database;
 
 import java.util.ArrayList;
 
+import com.github.fielddb.Config;
+
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
 public abstract class FieldDBTable {
   public static final String COLUMN_ACTUAL_JSON = "actualJSON";
   public static final String COLUMN_ANDROID_ID = "android_id";
@@ -85,6 +92,94 @@ public abstract class FieldDBTable {
     return sb.toString();
   }
 
+  public static String generateCreateIndexSQLStatement(String TABLE_NAME, FieldDBIndex index,
+      boolean supportsPartialIndexes) {
+    final StringBuilder sb = new StringBuilder("CREATE ");
+    if (index.isUnique()) {
+      sb.append("UNIQUE ");
+    }
+    sb.append("INDEX IF NOT EXISTS ");
+    sb.append(index.getName());
+    sb.append(" ON ");
+    sb.append(TABLE_NAME);
+    sb.append("(");
+    boolean isFirst = true;
+    for (String column : index.getColumns()) {
+      if (!isFirst) {
+        sb.append(" , ");
+      } else {
+        isFirst = false;
+      }
+      sb.append(column);
+    }
+    sb.append(")");
+    if (index.isPartial() && supportsPartialIndexes) {
+      sb.append(" WHERE ");
+      sb.append(index.getWhere());
+    }
+    sb.append(";");
+
+    return sb.toString();
+  }
+
+  /**
+   * Builds the indexes on an existing table without rebuilding the table. If a
+   * unique index can't be built because an older install already has
+   * duplicates, a plain index is built instead so lookups are still indexed.
+   *
+   * @param db
+   * @param TABLE_NAME
+   * @param indexes
+   */
+  public static void createIndexes(SQLiteDatabase db, String TABLE_NAME, ArrayList<FieldDBIndex> indexes) {
+    boolean supportsPartialIndexes = supportsPartialIndexes(db);
+    for (FieldDBIndex index : indexes) {
+      if (index.isPartial() && index.isUnique() && !supportsPartialIndexes) {
+        Log.w(Config.TAG, "Skipping index " + index.getName() + ", this SQLite doesn't support partial indexes.");
+        continue;
+      }
+      try {
+        db.execSQL(generateCreateIndexSQLStatement(TABLE_NAME, index, supportsPartialIndexes));
+      } catch (SQLException e) {
+        if (!index.isUnique()) {
+          Log.w(Config.TAG, "Problem creating index " + index.getName() + e);
+          continue;
+        }
+        Log.w(Config.TAG, "Problem creating unique index " + index.getName() + ", using a plain index instead. " + e);
+        FieldDBIndex plainIndex = new FieldDBIndex(index.getName(), false, index.getWhere(), index.getColumns());
+        db.execSQL(generateCreateIndexSQLStatement(TABLE_NAME, plainIndex, supportsPartialIndexes));
+      }
+    }
+  }
+
+  public static void dropIndexes(SQLiteDatabase db, ArrayList<FieldDBIndex> indexes) {
+    for (FieldDBIndex index : indexes) {
+      db.execSQL("DROP INDEX IF EXISTS " + index.getName() + ";");
+    }
+  }
+
+  /**
+   * Partial indexes (CREATE INDEX ... WHERE) need SQLite 3.8.0 or newer, older
+   * devices get the same index without the where clause.
+   */
+  public static boolean supportsPartialIndexes(SQLiteDatabase db) {
+    try {
+      String[] version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version();", null).split("\\.");
+      int major = Integer.parseInt(version[0]);
+      int minor = Integer.parseInt(version[1]);
+      return major > 3 || (major == 3 && minor >= 8);
+    } catch (Exception e) {
+      Log.w(Config.TAG, "Unable to determine the SQLite version. " + e);
+      return false;
+    }
+  }
+
+  public static ArrayList<FieldDBIndex> getBaseIndexes(String TABLE_NAME) {
+    ArrayList<FieldDBIndex> indexes = new ArrayList<FieldDBIndex>();
+    indexes.add(new FieldDBIndex(TABLE_NAME + "_id_unique", true, null, COLUMN_ID));
+    return indexes;
+  }
+
   public static ArrayList<String> getBaseColumns() {
     ArrayList<String> columns = new ArrayList<String>();
     columns.add(COLUMN_ANDROID_ID);
@@ -0,0 +1,67 @@
+package com.github.fielddb.database;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+/**
+ * A cursor which knows a key and a content hash for each of its rows, so an
+ * adapter can tell which rows were inserted, removed or changed when it gets a
+ * new cursor without reading the rows again (see
+ * CursorRecyclerViewAdapter.swapCursor). Reading the keys goes through every
+ * row so the cursor should be wrapped on a background thread, where it was
+ * queried.
+ */
+public class KeyedCursor extends CursorWrapper {
+  protected int[] mRowKeys;
+  protected int[] mRowHashes;
+
+  /**
+   * @param cursor
+   * @param keyColumn
+   *          the column which identifies a row
+   * @param contentColumns
+   *          the columns which, if they change, make the row change, or null
+   *          for all of them
+   */
+  public KeyedCursor(Cursor cursor, String keyColumn, String[] contentColumns) {
+    super(cursor);
+    int count = cursor.getCount();
+    mRowKeys = new int[count];
+    mRowHashes = new int[count];
+    int keyColumnIndex = cursor.getColumnIndexOrThrow(keyColumn);
+    if (contentColumns == null) {
+      contentColumns = cursor.getColumnNames();
+    }
+    int[] contentColumnIndexes = new int[contentColumns.length];
+    for (int i = 0; i < contentColumns.length; i++) {
+      contentColumnIndexes[i] = cursor.getColumnIndex(contentColumns[i]);
+    }
+
+    int position = 0;
+    cursor.moveToPosition(-1);
+    while (cursor.moveToNext() && position < count) {
+      mRowKeys[position] = hash(cursor.getString(keyColumnIndex));
+      int rowHash = 17;
+      for (int columnIndex : contentColumnIndexes) {
+        if (columnIndex > -1) {
+          rowHash = 31 * rowHash + hash(cursor.getString(columnIndex));
+        }
+      }
+      mRowHashes[position] = rowHash;
+      position++;
+    }
+    cursor.moveToPosition(-1);
+  }
+
+  public int[] getRowKeys() {
+    return mRowKeys;
+  }
+
+  public int[] getRowHashes() {
+    return mRowHashes;
+  }
+
+  protected static int hash(String value) {
+    return value == null ? 0 : value.hashCode();
+  }
+}
@@ -0,0 +1,43 @@
+package com.github.fielddb.database;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.os.Bundle;
+
+/**
+ * One page of a keyset paginated query. The cursor's extras carry the token
+ * to pass as the after parameter to get the next page, there is no token on
+ * the last page.
+ */
+public class PagedCursor extends CursorWrapper {
+  public static final String EXTRA_NEXT_PAGE_TOKEN = "nextPageToken";
+
+  protected Bundle mExtras;
+
+  public PagedCursor(Cursor cursor, String sortKeyColumn, int limit) {
+    super(cursor);
+    mExtras = new Bundle();
+    if (cursor.getCount() < limit || !cursor.moveToLast()) {
+      return;
+    }
+    /* The last sort key of a full page is where the next page starts */
+    mExtras.putString(EXTRA_NEXT_PAGE_TOKEN, cursor.getString(cursor.getColumnIndexOrThrow(sortKeyColumn)));
+    cursor.moveToPosition(-1);
+  }
+
+  @Override
+  public Bundle getExtras() {
+    return mExtras;
+  }
+
+  /**
+   * @return the next page token of the cursor or null if it was the last page
+   *         (or not a paged cursor)
+   */
+  public static String getNextPageToken(Cursor cursor) {
+    if (cursor == null || cursor.getExtras() == null) {
+      return null;
+    }
+    return cursor.getExtras().getString(EXTRA_NEXT_PAGE_TOKEN);
+  }
+}
@@ -4,14 +4,11 @@ import java.util.ArrayList;
 
 import com.github.fielddb.Config;
 
-import android.content.ContentProvider;
 import android.content.ContentResolver;
 import android.content.ContentValues;
-import android.content.Context;
 import android.content.UriMatcher;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.database.Cursor;
-import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
@@ -19,8 +16,8 @@ import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
 
-public class UserContentProvider extends ContentProvider {
-  protected UserSQLiteHelper database;
+public class UserContentProvider extends FieldDBContentProvider {
+  protected FieldDBDatabase database;
   protected static String appVersion;
 
   // Used for the UriMacher
@@ -55,9 +52,13 @@ public class UserContentProvider extends ContentProvider {
   @Override
   public Uri insert(Uri id, ContentValues values) {
     Log.d(Config.TAG, "insert " + id.toString());
+    FieldDBJsonCodec.encodeContentValues(values);
     SQLiteDatabase db = database.getWritableDatabase();
     long insertedRowId = db.insert(UserTable.TABLE_NAME, null, values);
     Log.d(Config.TAG, "insertedRowId " + insertedRowId);
+    if (insertedRowId < 0) {
+      return null;
+    }
     return id;
   }
 
@@ -71,12 +72,23 @@ public class UserContentProvider extends ContentProvider {
       UserContentProvider.appVersion = "0";
     }
 
-    this.database = new UserSQLiteHelper(getContext());
+    this.database = FieldDBDatabase.getInstance(getContext());
     return true;
   }
 
+  @Override
+  protected SQLiteOpenHelper getDatabaseHelper() {
+    return database;
+  }
+
+  @Override
+  protected Uri getContentUri() {
+    return CONTENT_URI;
+  }
+
   @Override
   public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+    long startTime = System.currentTimeMillis();
 
     // Using SQLiteQueryBuilder instead of query() method
     SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
@@ -99,8 +111,9 @@ public class UserContentProvider extends ContentProvider {
       throw new IllegalArgumentException("Unknown URI: " + uri);
     }
 
-    SQLiteDatabase db = database.getWritableDatabase();
+    SQLiteDatabase db = database.getReadableDatabase();
     Cursor cursor = queryBuilder.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+    logQueryTime(uri, cursor, startTime);
     // Make sure that potential listeners are getting notified
     cursor.setNotificationUri(getContext().getContentResolver(), uri);
 
@@ -109,6 +122,7 @@ public class UserContentProvider extends ContentProvider {
 
   @Override
   public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    FieldDBJsonCodec.encodeContentValues(values);
 
     int uriType = sURIMatcher.match(uri);
     SQLiteDatabase sqlDB = database.getWritableDatabase();
@@ -129,77 +143,10 @@ public class UserContentProvider extends ContentProvider {
     default:
       throw new IllegalArgumentException("Unknown Update URI: " + uri);
     }
-    getContext().getContentResolver().notifyChange(uri, null);
-    return rowsUpdated;
-  }
-
-  public static class UserSQLiteHelper extends SQLiteOpenHelper {
-    protected static final String DATABASE_NAME = UserTable.TABLE_NAME + ".db";
-    protected static final int DATABASE_VERSION = 1;
-
-    public UserSQLiteHelper(Context context) {
-      super(context, DATABASE_NAME, null, DATABASE_VERSION);
-    }
-
-    @Override
-    public void onCreate(SQLiteDatabase db) {
-      try {
-        UserTable.setColumns();
-        db.execSQL(UserTable.generateCreateTableSQLStatement(UserTable.TABLE_NAME));
-        db.insert(UserTable.TABLE_NAME, null, UserTable.createAnonymousUser());
-      } catch (SQLException e) {
-        e.printStackTrace();
-      } catch (Exception e) {
-        e.printStackTrace();
-      }
-    }
-
-    @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-      /*
-       * export user database http://stackoverflow.com/questions/805363/how
-       * -do-i-rename-a-column-in-a-sqlite-database-table The SQLite ALTER TABLE
-       * documentation can be found here. If you add new columns you can use
-       * ALTER TABLE to insert them into a live table. If you rename or remove
-       * columns you can use ALTER TABLE to rename the old table, then create
-       * the new table and then populate the new table with the contents of the
-       * old table.
-       */
-      String copyTableToBackup = "ALTER TABLE " + UserTable.TABLE_NAME + " RENAME TO " + UserTable.TABLE_NAME
-          + "backup1;";
-      db.execSQL(copyTableToBackup);
-
-      Log.w(Config.TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
-          + ", will try to copy all old data");
-      db.execSQL("DROP TABLE IF EXISTS " + UserTable.TABLE_NAME);
-
-      /* Re-create table using current schema Remove the sample data */
-      onCreate(db);
-      try {
-        String clearSampleData = "DELETE FROM " + UserTable.TABLE_NAME + ";";
-        db.execSQL(clearSampleData);
-      } catch (Exception e) {
-        Log.w(Config.TAG, "Problem upgrading, unable to clear sample data." + e);
-      }
-
-      ArrayList<String> previousColumns = FieldDBTable.getBaseColumns();
-      String[] knownColumns = UserTable.version1Columns;
-
-      /* Add other versions to this if statement */
-      if (oldVersion == 1) {
-        knownColumns = UserTable.version1Columns;
-      }
-
-      /* Copy the data from previous columns over */
-      for (String column : knownColumns) {
-        previousColumns.add(column);
-      }
-      try {
-        db.execSQL(UserTable.generateUpgradeTableSQLStatement(UserTable.TABLE_NAME, previousColumns));
-      } catch (Exception e) {
-        Log.w(Config.TAG, "Problem upgrading, unable to copy user data." + e);
-      }
+    if (rowsUpdated > 0) {
+      notifyChange(uri);
     }
+    return rowsUpdated;
   }
 
   public static class UserTable extends FieldDBTable {
@@ -249,5 +196,17 @@ public class UserContentProvider extends ContentProvider {
         UserTable.columns.add(column);
       }
     }
+
+    public static ArrayList<FieldDBIndex> getIndexes() {
+      ArrayList<FieldDBIndex> indexes = FieldDBTable.getBaseIndexes(TABLE_NAME);
+      indexes.add(new FieldDBIndex(TABLE_NAME + "_username", false, null, COLUMN_USERNAME));
+      return indexes;
+    }
+
+    public static void createTables(SQLiteDatabase db) throws Exception {
+      setColumns();
+      db.execSQL(generateCreateTableSQLStatement(TABLE_NAME));
+      FieldDBTable.createIndexes(db, TABLE_NAME, getIndexes());
+    }
   }
 }
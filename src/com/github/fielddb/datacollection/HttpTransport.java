@@ -0,0 +1,331 @@
+package com.github.fielddb.datacollection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import com.github.fielddb.Config;
+import com.github.fielddb.R;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * The one HTTP transport the services share.
+ *
+ * The BKS keystore of the FieldDB servers is loaded once per process, into one
+ * SSLContext which trusts both its certificates and the system's. Every
+ * connection gets the same socket factory, so HttpURLConnection keeps the
+ * connections alive in its pool per host (up to MAX_CONNECTIONS_PER_HOST) and
+ * a new connection to a host resumes the TLS session of the previous one
+ * instead of doing a full handshake. The connections and handshakes are
+ * counted per host, see logStatistics.
+ */
+public class HttpTransport {
+  public static int MAX_CONNECTIONS_PER_HOST = 5;
+  public static int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+  public static int READ_TIMEOUT_MILLIS = 30 * 1000;
+  /* The upload server checks and saves a whole chunk before it replies */
+  public static int UPLOAD_READ_TIMEOUT_MILLIS = 60 * 1000;
+
+  private static HttpTransport sInstance;
+
+  protected SSLContext mSslContext;
+  protected CountingSocketFactory mSocketFactory;
+  /* Per host: connections opened, full handshakes, resumed handshakes */
+  protected HashMap<String, int[]> mStatistics = new HashMap<String, int[]>();
+  protected Set<String> mSessionIds = new HashSet<String>();
+
+  /**
+   * @param context
+   * @return the transport, which is created the first time
+   * @throws GeneralSecurityException
+   *           if the keystore can't be opened
+   * @throws IOException
+   *           if the keystore can't be read
+   */
+  public static synchronized HttpTransport getInstance(Context context) throws GeneralSecurityException,
+      IOException {
+    if (sInstance == null) {
+      sInstance = new HttpTransport(context.getApplicationContext());
+    }
+    return sInstance;
+  }
+
+  protected HttpTransport(Context context) throws GeneralSecurityException, IOException {
+    long startTime = System.currentTimeMillis();
+    KeyStore trustedSelfSignedCertificates = KeyStore.getInstance("BKS");
+    InputStream in = context.getResources().openRawResource(R.raw.sslkeystore);
+    try {
+      trustedSelfSignedCertificates.load(in, Config.KEYSTORE_PASS.toCharArray());
+    } finally {
+      in.close();
+    }
+    X509TrustManager trustManager = new EitherTrustManager(getTrustManager(trustedSelfSignedCertificates),
+        getTrustManager(null));
+    mSslContext = SSLContext.getInstance("TLS");
+    mSslContext.init(null, new TrustManager[] { trustManager }, null);
+    mSocketFactory = new CountingSocketFactory(mSslContext.getSocketFactory());
+
+    System.setProperty("http.keepAlive", "true");
+    System.setProperty("http.maxConnections", "" + MAX_CONNECTIONS_PER_HOST);
+    Log.d(Config.TAG, "Loaded the keystore for the HTTP transport in " + (System.currentTimeMillis() - startTime)
+        + "ms");
+  }
+
+  /**
+   * Opens a connection through the shared pool. To let the connection go back
+   * to the pool, read the whole response and close its stream, see release.
+   *
+   * @param url
+   * @return the connection, with the default timeouts
+   * @throws IOException
+   */
+  public HttpURLConnection open(URL url) throws IOException {
+    return this.open(url, READ_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Opens a connection through the shared pool, for the requests whose reply
+   * can take longer than READ_TIMEOUT_MILLIS, such as an uploaded chunk (see
+   * UPLOAD_READ_TIMEOUT_MILLIS).
+   *
+   * @param url
+   * @param readTimeoutMillis
+   * @return the connection, with the default connect timeout
+   * @throws IOException
+   */
+  public HttpURLConnection open(URL url, int readTimeoutMillis) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    if (connection instanceof HttpsURLConnection) {
+      ((HttpsURLConnection) connection).setSSLSocketFactory(mSocketFactory);
+    }
+    connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    connection.setReadTimeout(readTimeoutMillis);
+    return connection;
+  }
+
+  public HttpURLConnection open(String url) throws IOException {
+    return this.open(new URL(url));
+  }
+
+  /**
+   * Gives the connection back to the pool by reading what is left of its
+   * response, or of its error response, and closing it. Unlike disconnect(),
+   * which closes the socket, this lets the next request to the host reuse it.
+   *
+   * @param connection
+   *          which has been sent, its response may have been read already
+   */
+  public static void release(HttpURLConnection connection) {
+    InputStream in = null;
+    try {
+      in = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+      if (in != null) {
+        byte[] buffer = new byte[4096];
+        while (in.read(buffer) != -1) {
+          // the rest of the response is not needed
+        }
+      }
+    } catch (IOException e) {
+      /* The exchange failed or the response was read already, there is nothing left to drain */
+    } catch (IllegalStateException e) {
+      /* Some versions throw this when reading a response which was closed already */
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          // already closed
+        }
+      }
+    }
+  }
+
+  /**
+   * Logs the connections and handshakes made per host since the last call,
+   * then starts counting again.
+   *
+   * @param label
+   *          what the connections were for, for example a sync
+   * @return the number of full handshakes
+   */
+  public synchronized int logStatistics(String label) {
+    int fullHandshakes = 0;
+    for (Map.Entry<String, int[]> host : mStatistics.entrySet()) {
+      int[] counts = host.getValue();
+      fullHandshakes += counts[1];
+      Log.d(Config.TAG, label + ": " + counts[0] + " connections to " + host.getKey() + ", " + counts[1]
+          + " full TLS handshakes, " + counts[2] + " resumed");
+    }
+    mStatistics.clear();
+    return fullHandshakes;
+  }
+
+  protected synchronized void countConnection(String host) {
+    getStatistics(host)[0]++;
+  }
+
+  protected synchronized void countHandshake(String host, byte[] sessionId) {
+    if (mSessionIds.add(toHex(sessionId))) {
+      getStatistics(host)[1]++;
+    } else {
+      getStatistics(host)[2]++;
+    }
+  }
+
+  protected int[] getStatistics(String host) {
+    int[] counts = mStatistics.get(host);
+    if (counts == null) {
+      counts = new int[3];
+      mStatistics.put(host, counts);
+    }
+    return counts;
+  }
+
+  protected static X509TrustManager getTrustManager(KeyStore keyStore) throws GeneralSecurityException {
+    TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    tmf.init(keyStore);
+    for (TrustManager trustManager : tmf.getTrustManagers()) {
+      if (trustManager instanceof X509TrustManager) {
+        return (X509TrustManager) trustManager;
+      }
+    }
+    throw new GeneralSecurityException("No X509 trust manager");
+  }
+
+  public static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    if (bytes != null) {
+      for (byte b : bytes) {
+        hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+      }
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Trusts the servers which are signed by the FieldDB keystore, or failing
+   * that by the system's certificate authorities (the media can be on other
+   * servers).
+   */
+  protected static class EitherTrustManager implements X509TrustManager {
+    protected final X509TrustManager mKeystore;
+    protected final X509TrustManager mSystem;
+
+    public EitherTrustManager(X509TrustManager keystore, X509TrustManager system) {
+      this.mKeystore = keystore;
+      this.mSystem = system;
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+      mSystem.checkClientTrusted(chain, authType);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+      try {
+        mKeystore.checkServerTrusted(chain, authType);
+      } catch (CertificateException e) {
+        mSystem.checkServerTrusted(chain, authType);
+      }
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+      X509Certificate[] keystore = mKeystore.getAcceptedIssuers();
+      X509Certificate[] system = mSystem.getAcceptedIssuers();
+      X509Certificate[] issuers = new X509Certificate[keystore.length + system.length];
+      System.arraycopy(keystore, 0, issuers, 0, keystore.length);
+      System.arraycopy(system, 0, issuers, keystore.length, system.length);
+      return issuers;
+    }
+  }
+
+  /**
+   * Counts the sockets the pool opens and the handshakes done on them.
+   */
+  protected class CountingSocketFactory extends SSLSocketFactory {
+    protected final SSLSocketFactory mDelegate;
+
+    public CountingSocketFactory(SSLSocketFactory delegate) {
+      this.mDelegate = delegate;
+    }
+
+    protected Socket count(Socket socket, final String host) {
+      countConnection(host);
+      if (socket instanceof SSLSocket) {
+        ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+          @Override
+          public void handshakeCompleted(HandshakeCompletedEvent event) {
+            countHandshake(host, event.getSession().getId());
+          }
+        });
+      }
+      return socket;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+      return mDelegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+      return mDelegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+      return count(mDelegate.createSocket(), "unknown host");
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+      return count(mDelegate.createSocket(socket, host, port, autoClose), host);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+      return count(mDelegate.createSocket(host, port), host);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+      return count(mDelegate.createSocket(host, port, localHost, localPort), host);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+      return count(mDelegate.createSocket(host, port), host.getHostName());
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+        throws IOException {
+      return count(mDelegate.createSocket(address, port, localAddress, localPort), address.getHostName());
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package com.github.fielddb.datacollection;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -10,18 +11,11 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
+import java.security.GeneralSecurityException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManagerFactory;
-
-import org.apache.http.util.ByteArrayBuffer;
-
 import com.github.fielddb.Config;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
@@ -39,14 +33,15 @@ import android.util.Log;
 import android.widget.RemoteViews;
 
 public class NotifyingIntentService extends IntentService {
-  protected boolean useSelfSignedCertificates = false;
+  public static int RESPONSE_BUFFER_SIZE = 8192;
+  public static int MAX_LOGGED_RESPONSE_LENGTH = 1000;
   protected int notificationId;
   protected String statusMessage;
   protected Notification noti;
   protected String userFriendlyErrorMessage;
   protected JsonArray resultsJSON;
   protected Intent tryAgain;
-  protected int keystoreResourceId;
+  protected HttpTransport transport;
   protected static JsonParser jsonParser = new JsonParser();
 
   public NotifyingIntentService(String name) {
@@ -81,35 +76,25 @@ public class NotifyingIntentService extends IntentService {
     // cookieManager.setCookiePolicy(CookiePolicy.ACCEPT_ALL);
     CookieHandler.setDefault(cookieManager);
 
-    if (useSelfSignedCertificates) {
-      KeyStore trustedSelfSignedCertificates;
-      try {
-        trustedSelfSignedCertificates = KeyStore.getInstance("BKS");
-        InputStream in = getApplicationContext().getResources().openRawResource(keystoreResourceId);
-        trustedSelfSignedCertificates.load(in, Config.KEYSTORE_PASS.toCharArray());
-        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-        tmf.init(trustedSelfSignedCertificates);
-        SSLContext sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(null, tmf.getTrustManagers(), null);
-        HttpsURLConnection.setDefaultSSLSocketFactory(sslContext.getSocketFactory());
-      } catch (KeyStoreException e1) {
-        this.userFriendlyErrorMessage = "Problem opening key store to contact the server.";
-        e1.printStackTrace();
-      } catch (NoSuchAlgorithmException e1) {
-        this.userFriendlyErrorMessage = "Problem decoding key store to contact the server.";
-        e1.printStackTrace();
-      } catch (CertificateException e1) {
-        this.userFriendlyErrorMessage = "Problem opening ssl certificate to contact the server.";
-        e1.printStackTrace();
-      } catch (KeyManagementException e1) {
-        this.userFriendlyErrorMessage = "Problem opening key manager to contact the server.";
-        e1.printStackTrace();
-      } catch (IOException e) {
-        this.userFriendlyErrorMessage = "Problem reading key store to contact the server.";
-        e.printStackTrace();
-      }
+    /* The keystore is only loaded by the first service which needs it */
+    try {
+      this.transport = HttpTransport.getInstance(getApplicationContext());
+    } catch (KeyStoreException e1) {
+      this.userFriendlyErrorMessage = "Problem opening key store to contact the server.";
+      e1.printStackTrace();
+    } catch (NoSuchAlgorithmException e1) {
+      this.userFriendlyErrorMessage = "Problem decoding key store to contact the server.";
+      e1.printStackTrace();
+    } catch (CertificateException e1) {
+      this.userFriendlyErrorMessage = "Problem opening ssl certificate to contact the server.";
+      e1.printStackTrace();
+    } catch (GeneralSecurityException e1) {
+      this.userFriendlyErrorMessage = "Problem opening key manager to contact the server.";
+      e1.printStackTrace();
+    } catch (IOException e) {
+      this.userFriendlyErrorMessage = "Problem reading key store to contact the server.";
+      e.printStackTrace();
     }
-
   }
 
   /*
@@ -121,7 +106,7 @@ public class NotifyingIntentService extends IntentService {
     HttpURLConnection urlConnection;
     try {
       url = new URL(urlStringAuthenticationSession);
-      urlConnection = (HttpURLConnection) url.openConnection();
+      urlConnection = this.openConnection(url);
       urlConnection.setRequestMethod("POST");
       urlConnection.setRequestProperty("Content-Type", "application/json");
       urlConnection.setDoInput(true);
@@ -168,7 +153,61 @@ public class NotifyingIntentService extends IntentService {
     }
   }
 
+  /**
+   * Opens a connection through the shared {@link HttpTransport}, so it reuses
+   * the pooled connections and TLS sessions of the other services.
+   *
+   * @param url
+   * @return the connection
+   * @throws IOException
+   */
+  protected HttpURLConnection openConnection(URL url) throws IOException {
+    if (this.transport == null) {
+      throw new IOException("The HTTP transport isn't ready, onHandleIntent must be called first");
+    }
+    return this.transport.open(url);
+  }
+
   public String processResponse(URL url, HttpURLConnection urlConnection) {
+    InputStream in = this.openResponseStream(url, urlConnection);
+    if (in == null) {
+      return null;
+    }
+    try {
+      ByteArrayOutputStream body = new ByteArrayOutputStream(RESPONSE_BUFFER_SIZE);
+      byte[] buffer = new byte[RESPONSE_BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        body.write(buffer, 0, read);
+      }
+      String JSONResponse = body.toString("UTF-8");
+      if (Config.D) {
+        Log.d(Config.TAG, url + ":::" + truncateForLog(JSONResponse));
+      }
+      return JSONResponse;
+    } catch (IOException e) {
+      e.printStackTrace();
+      this.userFriendlyErrorMessage = "Problem writing to the server connection.";
+      return null;
+    } finally {
+      try {
+        in.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Opens the body of the response for reading, for responses which are too
+   * big to read into memory with processResponse. If the server replied with
+   * an error the userFriendlyErrorMessage is set and the stream is the error
+   * body.
+   *
+   * @return a buffered stream of the body, to be closed by the caller, or null
+   *         if it couldn't be opened
+   */
+  public InputStream openResponseStream(URL url, HttpURLConnection urlConnection) {
     if (!url.getHost().equals(urlConnection.getURL().getHost())) {
       Log.d(Config.TAG, "We were redirected! Kick the user out to the browser to sign on?");
     }
@@ -185,35 +224,34 @@ public class NotifyingIntentService extends IntentService {
       Log.d(Config.TAG, "Server status code " + status);
     }
     this.statusMessage = "Downloading.";
-    BufferedInputStream reader;
+    InputStream in;
     try {
       if (status < 400 && urlConnection.getInputStream() != null) {
-        reader = new BufferedInputStream(urlConnection.getInputStream());
+        in = urlConnection.getInputStream();
       } else {
         this.userFriendlyErrorMessage = "Server replied " + status;
-        reader = new BufferedInputStream(urlConnection.getErrorStream());
-      }
-      this.notifyUser(this.statusMessage, this.noti, notificationId, false);
-
-      ByteArrayBuffer baf = new ByteArrayBuffer(50);
-      int read = 0;
-      int bufSize = 512;
-      byte[] buffer = new byte[bufSize];
-      while (true) {
-        read = reader.read(buffer);
-        if (read == -1) {
-          break;
-        }
-        baf.append(buffer, 0, read);
+        in = urlConnection.getErrorStream();
       }
-      String JSONResponse = new String(baf.toByteArray());
-      Log.d(Config.TAG, url + ":::" + JSONResponse);
-      return JSONResponse;
     } catch (IOException e) {
       e.printStackTrace();
       this.userFriendlyErrorMessage = "Problem writing to the server connection.";
       return null;
     }
+    if (in == null) {
+      return null;
+    }
+    this.notifyUser(this.statusMessage, this.noti, notificationId, false);
+    return new BufferedInputStream(in, RESPONSE_BUFFER_SIZE);
+  }
+
+  /**
+   * Responses can be megabytes long, only the start of them is logged.
+   */
+  public static String truncateForLog(String response) {
+    if (response == null || response.length() <= MAX_LOGGED_RESPONSE_LENGTH) {
+      return response;
+    }
+    return response.substring(0, MAX_LOGGED_RESPONSE_LENGTH) + "... (" + response.length() + " characters)";
   }
 
   public void notifyUser(String message, Notification notification, int id, boolean showTryAgain) {
@@ -3,8 +3,10 @@ package com.github.fielddb.experimentation.ui;
 import com.github.fielddb.Config;
 import com.github.fielddb.database.DatumContentProvider;
 import com.github.fielddb.database.DatumContentProvider.DatumTable;
+import com.github.fielddb.database.DatumPageLoader;
 import com.github.fielddb.datacollection.AudioRecorder;
 import com.github.fielddb.lessons.ui.DatumFragmentPagerAdapter;
+import com.github.fielddb.lessons.ui.DatumPrefetcher;
 import com.github.fielddb.R;
 
 import android.content.Intent;
@@ -20,6 +22,8 @@ import android.util.Log;
 public class ProductionExperimentActivity extends FragmentActivity implements LoaderManager.LoaderCallbacks<Cursor> {
 
   private DatumFragmentPagerAdapter mPagerAdapter;
+  private DatumPageLoader mPageLoader;
+  private DatumPrefetcher mPrefetcher;
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -37,7 +41,11 @@ public class ProductionExperimentActivity extends FragmentActivity implements Lo
         + " NOT LIKE ? ";
     String[] selectionArgs = new String[] { "%" + filterStr + "%" };
 
-    CursorLoader cursorLoader = new CursorLoader(this, DatumContentProvider.CONTENT_URI, projection, selection,
+    this.mPageLoader = new DatumPageLoader(getContentResolver(), projection, selection, selectionArgs,
+        DatumContentProvider.DEFAULT_PAGE_SIZE);
+    this.mPagerAdapter.setPageLoader(this.mPageLoader);
+
+    CursorLoader cursorLoader = new CursorLoader(this, this.mPageLoader.getFirstPageUri(), projection, selection,
         selectionArgs, null);
     Cursor cursor = cursorLoader.loadInBackground();
     this.mPagerAdapter.swapCursor(cursor);
@@ -63,12 +71,23 @@ public class ProductionExperimentActivity extends FragmentActivity implements Lo
   private void initialisePaging() {
 
     this.mPagerAdapter = new DatumFragmentPagerAdapter(super.getSupportFragmentManager());
+    this.mPrefetcher = new DatumPrefetcher(this);
+    this.mPagerAdapter.setPrefetcher(this.mPrefetcher);
     this.onCreateLoader(0, null);
 
     ViewPager pager = (ViewPager) super.findViewById(R.id.viewpager);
+    pager.setOffscreenPageLimit(DatumFragmentPagerAdapter.OFFSCREEN_PAGE_LIMIT);
     pager.setAdapter(this.mPagerAdapter);
   }
 
+  @Override
+  protected void onDestroy() {
+    if (this.mPrefetcher != null) {
+      this.mPrefetcher.close();
+    }
+    super.onDestroy();
+  }
+
   @Override
   public void onBackPressed() {
     Intent audio = new Intent(this, AudioRecorder.class);
@@ -1,6 +1,7 @@
 package com.github.fielddb.lessons.ui;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -8,13 +9,12 @@ import java.util.Map.Entry;
 
 import android.annotation.SuppressLint;
 import android.app.AlertDialog;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
 import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Bundle;
@@ -39,13 +39,18 @@ import android.widget.TextView;
 import android.widget.VideoView;
 
 import com.github.fielddb.Config;
+import com.github.fielddb.database.AudioVideoContentProvider.AudioVideoTable;
 import com.github.fielddb.database.DatumContentProvider;
+import com.github.fielddb.database.DatumContentProvider.DatumMediaTable;
 import com.github.fielddb.database.DatumContentProvider.DatumTable;
+import com.github.fielddb.database.DatumEditBuffer;
 import com.github.fielddb.datacollection.AudioRecorder;
 import com.github.fielddb.datacollection.DeviceDetails;
 import com.github.fielddb.datacollection.TakePicture;
 import com.github.fielddb.datacollection.VideoRecorder;
 import com.github.fielddb.model.Datum;
+import com.github.fielddb.model.FieldDBFile;
+import com.github.fielddb.model.FieldDBFileRowMapper;
 import com.github.fielddb.service.UploadAudioVideoService;
 import com.github.fielddb.BugReporter;
 import com.github.fielddb.R;
@@ -63,6 +68,14 @@ public class DatumDetailFragment extends Fragment {
   public static final String ARG_ITEM_ID = "item_id";
 
   public static final String ARG_TOTAL_DATUM_IN_LIST = "total_datum_count_in_list";
+  protected static final String STATE_VIDEO_POSITION = "video_position";
+  public static final String[] DATUM_PROJECTION = { DatumTable.COLUMN_ORTHOGRAPHY, DatumTable.COLUMN_UTTERANCE,
+      DatumTable.COLUMN_MORPHEMES, DatumTable.COLUMN_GLOSS, DatumTable.COLUMN_TRANSLATION, DatumTable.COLUMN_CONTEXT,
+      DatumTable.COLUMN_IMAGE_FILES, DatumTable.COLUMN_AUDIO_VIDEO_FILES, DatumTable.COLUMN_TAGS };
+  public static final String[] MEDIA_PROJECTION = { DatumMediaTable.COLUMN_FILENAME, DatumMediaTable.COLUMN_KIND,
+      AudioVideoTable.COLUMN_DESCRIPTION, AudioVideoTable.COLUMN_URL };
+  /* The main image is decoded at about the width of the detail view rather than at full size */
+  public static int MAIN_IMAGE_SIZE = 512;
 
   /**
    * The content this fragment is presenting.
@@ -85,6 +98,7 @@ public class DatumDetailFragment extends Fragment {
   protected MediaPlayer mAudioPlayer;
   protected DeviceDetails mDeviceDetails;
   protected HashMap<String, Integer> mDatumEditCounts;
+  protected DatumEditBuffer mEditBuffer;
   protected ImageButton mSpeechRecognizerFeedback;
   protected TextView mSpeechRecognizerInstructions;
   protected boolean isPlaying = false;
@@ -94,12 +108,17 @@ public class DatumDetailFragment extends Fragment {
   protected int mLastDatumIndex;
 
   protected String mAudioFileName;
+  /* Where the video was when the fragment's views were destroyed, so it can resume from there */
+  protected int mVideoPosition = 0;
 
   @SuppressLint("NewApi")
   @Override
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     setHasOptionsMenu(true);
+    if (savedInstanceState != null) {
+      mVideoPosition = savedInstanceState.getInt(STATE_VIDEO_POSITION, 0);
+    }
     if (this.mDeviceDetails == null) {
       this.mDeviceDetails = new DeviceDetails(getActivity());
     }
@@ -108,36 +127,83 @@ public class DatumDetailFragment extends Fragment {
       String id = getArguments().getString(ARG_ITEM_ID);
       this.mLastDatumIndex = getArguments().getInt(ARG_TOTAL_DATUM_IN_LIST);
       Log.d(Config.TAG, "Will get id " + id);
-      String selection = null;
-      String[] selectionArgs = null;
-      String sortOrder = null;
-
-      String[] datumProjection = { DatumTable.COLUMN_ORTHOGRAPHY, DatumTable.COLUMN_UTTERANCE,
-          DatumTable.COLUMN_MORPHEMES, DatumTable.COLUMN_GLOSS, DatumTable.COLUMN_TRANSLATION,
-          DatumTable.COLUMN_CONTEXT, DatumTable.COLUMN_IMAGE_FILES, DatumTable.COLUMN_AUDIO_VIDEO_FILES,
-          DatumTable.COLUMN_TAGS };
       mUri = Uri.withAppendedPath(DatumContentProvider.CONTENT_URI, id);
-      CursorLoader cursorLoader = new CursorLoader(getActivity(), mUri, datumProjection, selection, selectionArgs,
-          sortOrder);
-
-      Cursor cursor = cursorLoader.loadInBackground();
-      if (cursor != null) {
-        cursor.moveToFirst();
-        if (cursor.getCount() > 0) {
-          mItem = new Datum(cursor);
-          cursor.close();
-          this.recordUserEvent("loadDatum", mUri.getLastPathSegment());
-          BugReporter.putCustomData("urlString", mUri.toString());
-        } else {
-          Log.e(Config.TAG, "Displaying nothing on the screen. this is a problem. ");
-          BugReporter.sendBugReport("*** couldnt open" + mUri + " ***");
-        }
-        cursor.close();
+      mEditBuffer = new DatumEditBuffer(getActivity().getContentResolver(), mUri);
+      if (mItem == null) {
+        this.loadItem();
+      }
+      if (mItem != null) {
+        this.recordUserEvent("loadDatum", mUri.getLastPathSegment());
+        BugReporter.putCustomData("urlString", mUri.toString());
+      }
+
+    }
+  }
+
+  /**
+   * Gives the fragment its datum before it is created, when the
+   * {@link DatumPrefetcher} has already loaded it, so onCreate doesn't have to
+   * query it on the main thread.
+   *
+   * @param datum
+   */
+  public void setPrefetchedItem(Datum datum) {
+    this.mItem = datum;
+  }
+
+  protected void loadItem() {
+    CursorLoader cursorLoader = new CursorLoader(getActivity(), mUri, DATUM_PROJECTION, null, null, null);
+
+    Cursor cursor = cursorLoader.loadInBackground();
+    if (cursor != null) {
+      cursor.moveToFirst();
+      if (cursor.getCount() > 0) {
+        mItem = new Datum(cursor);
+        loadMedia(getActivity().getContentResolver(), mUri.getLastPathSegment(), mItem, new FieldDBFileRowMapper());
       } else {
-        Log.e(Config.TAG, "unable to open the datums content provider. this is a problem. ");
-        BugReporter.sendBugReport("*** datumCursor is null ***");
+        Log.e(Config.TAG, "Displaying nothing on the screen. this is a problem. ");
+        BugReporter.sendBugReport("*** couldnt open" + mUri + " ***");
       }
+      cursor.close();
+    } else {
+      Log.e(Config.TAG, "unable to open the datums content provider. this is a problem. ");
+      BugReporter.sendBugReport("*** datumCursor is null ***");
+    }
+  }
 
+  /**
+   * Replaces the datum's media files, which its row only has the filenames of,
+   * with its media rows and their description and url. A datum whose media
+   * rows haven't been filled in yet keeps the filenames.
+   *
+   * @param id
+   *          the datum's id, DATUM_PROJECTION doesn't have it
+   */
+  public static void loadMedia(ContentResolver contentResolver, String id, Datum datum, FieldDBFileRowMapper mapper) {
+    Cursor cursor = contentResolver.query(DatumContentProvider.getMediaUri(id), MEDIA_PROJECTION, null, null, null);
+    if (cursor == null) {
+      return;
+    }
+    try {
+      if (cursor.getCount() == 0) {
+        return;
+      }
+      ArrayList<FieldDBFile> imageFiles = new ArrayList<FieldDBFile>();
+      ArrayList<FieldDBFile> audioVideoFiles = new ArrayList<FieldDBFile>();
+      int kindColumn = cursor.getColumnIndex(DatumMediaTable.COLUMN_KIND);
+      while (cursor.moveToNext()) {
+        FieldDBFile file = mapper.map(cursor);
+        if (DatumMediaTable.KIND_IMAGE.equals(cursor.getString(kindColumn))) {
+          imageFiles.add(file);
+        } else {
+          audioVideoFiles.add(file);
+        }
+      }
+      datum.setImageFiles(imageFiles);
+      datum.setAudioVideoFiles(audioVideoFiles);
+    } finally {
+      cursor.close();
+      mapper.unbind();
     }
   }
 
@@ -174,9 +240,7 @@ public class DatumDetailFragment extends Fragment {
         public void onTextChanged(CharSequence arg0, int arg1, int arg2, int arg3) {
           String currentText = orthographyEditText.getText().toString();
           mItem.setOrthography(currentText);
-          ContentValues values = new ContentValues();
-          values.put(DatumTable.COLUMN_ORTHOGRAPHY, currentText);
-          getActivity().getContentResolver().update(mUri, values, null, null);
+          mEditBuffer.put(DatumTable.COLUMN_ORTHOGRAPHY, currentText);
           recordUserEvent("editDatum", "orthography");
         }
       });
@@ -199,9 +263,7 @@ public class DatumDetailFragment extends Fragment {
         public void onTextChanged(CharSequence arg0, int arg1, int arg2, int arg3) {
           String currentText = morphemesEditText.getText().toString();
           mItem.setMorphemes(currentText);
-          ContentValues values = new ContentValues();
-          values.put(DatumTable.COLUMN_MORPHEMES, currentText);
-          getActivity().getContentResolver().update(mUri, values, null, null);
+          mEditBuffer.put(DatumTable.COLUMN_MORPHEMES, currentText);
           recordUserEvent("editDatum", "morphemes");
         }
       });
@@ -223,9 +285,7 @@ public class DatumDetailFragment extends Fragment {
         public void onTextChanged(CharSequence arg0, int arg1, int arg2, int arg3) {
           String currentText = glossEditText.getText().toString();
           mItem.setGloss(currentText);
-          ContentValues values = new ContentValues();
-          values.put(DatumTable.COLUMN_GLOSS, currentText);
-          getActivity().getContentResolver().update(mUri, values, null, null);
+          mEditBuffer.put(DatumTable.COLUMN_GLOSS, currentText);
           recordUserEvent("editDatum", "gloss");
         }
       });
@@ -248,9 +308,7 @@ public class DatumDetailFragment extends Fragment {
         public void onTextChanged(CharSequence arg0, int arg1, int arg2, int arg3) {
           String currentText = translationEditText.getText().toString();
           mItem.setTranslation(currentText);
-          ContentValues values = new ContentValues();
-          values.put(DatumTable.COLUMN_TRANSLATION, currentText);
-          getActivity().getContentResolver().update(mUri, values, null, null);
+          mEditBuffer.put(DatumTable.COLUMN_TRANSLATION, currentText);
           recordUserEvent("editDatum", "translation");
         }
       });
@@ -273,9 +331,7 @@ public class DatumDetailFragment extends Fragment {
         public void onTextChanged(CharSequence arg0, int arg1, int arg2, int arg3) {
           String currentText = contextEditText.getText().toString();
           mItem.setContext(currentText);
-          ContentValues values = new ContentValues();
-          values.put(DatumTable.COLUMN_CONTEXT, currentText);
-          getActivity().getContentResolver().update(mUri, values, null, null);
+          mEditBuffer.put(DatumTable.COLUMN_CONTEXT, currentText);
           recordUserEvent("editDatum", "context");
         }
       });
@@ -298,9 +354,7 @@ public class DatumDetailFragment extends Fragment {
         public void onTextChanged(CharSequence arg0, int arg1, int arg2, int arg3) {
           String currentText = tagsEditText.getText().toString();
           mItem.setTagsFromSting(currentText);
-          ContentValues values = new ContentValues();
-          values.put(DatumTable.COLUMN_TAGS, currentText);
-          getActivity().getContentResolver().update(mUri, values, null, null);
+          mEditBuffer.put(DatumTable.COLUMN_TAGS, currentText);
           recordUserEvent("editDatum", "tags");
         }
       });
@@ -527,6 +581,9 @@ public class DatumDetailFragment extends Fragment {
     }
     if (mVideoView != null) {
       mVideoView.setVideoPath(fileName);
+      if (mVideoPosition > 0) {
+        mVideoView.seekTo(mVideoPosition);
+      }
       if (fileName.endsWith(Config.DEFAULT_AUDIO_EXTENSION)) {
         loadMainImage();
       } else {
@@ -582,35 +639,24 @@ public class DatumDetailFragment extends Fragment {
     return true;
   }
 
+  /**
+   * Shows the main image, downsampled and decoded in the background (the
+   * full size photos are several megabytes each once decoded, and the pager
+   * keeps a few detail fragments alive).
+   */
   protected void loadMainImage() {
-    File image = new File(Config.DEFAULT_OUTPUT_DIRECTORY + "/" + mItem.getMainImageFile());
-    if (!image.exists()) {
-      if (mVideoView != null) {
-        mVideoView.setVisibility(View.GONE);
-      }
-      if (mImageView != null) {
-        mImageView.setVisibility(View.VISIBLE);
-      }
-      return;
+    if (mVideoView != null) {
+      mVideoView.setVisibility(View.GONE);
     }
-    Bitmap d = new BitmapDrawable(this.getResources(), image.getAbsolutePath()).getBitmap();
-    if (d == null) {
+    if (mImageView == null) {
       return;
     }
-    int nh = (int) (d.getHeight() * (512.0 / d.getWidth()));
-    Bitmap scaled = Bitmap.createScaledBitmap(d, 512, nh, true);
-    // int sdk = android.os.Build.VERSION.SDK_INT;
-    // if (falssdk >= 16) {
-    // mVideoView
-    // .setBackground(new BitmapDrawable(getResources(), scaled));
-    // } else {
-    // Log.e(Config.TAG,
-    // "Couldnt set the video background. (this might be a kindle)");
-    mImageView.setImageBitmap(scaled);
     mImageView.setVisibility(View.VISIBLE);
-    mVideoView.setVisibility(View.GONE);
-    // }
-
+    File image = new File(Config.DEFAULT_OUTPUT_DIRECTORY + "/" + mItem.getMainImageFile());
+    if (!image.exists()) {
+      return;
+    }
+    ThumbnailLoader.getInstance(getActivity()).load(mItem.getMainImageFile(), mImageView, MAIN_IMAGE_SIZE, 0);
   }
 
   @Override
@@ -683,8 +729,65 @@ public class DatumDetailFragment extends Fragment {
     return true;
   }
 
+  @Override
+  public void setUserVisibleHint(boolean isVisibleToUser) {
+    /* In the pager the fragment is not paused when the user swipes to another datum */
+    if (!isVisibleToUser && mEditBuffer != null) {
+      mEditBuffer.flush();
+    }
+    super.setUserVisibleHint(isVisibleToUser);
+  }
+
+  @Override
+  public void onSaveInstanceState(Bundle outState) {
+    /* The process can be killed any time after this, don't lose the edits */
+    if (mEditBuffer != null) {
+      mEditBuffer.flush();
+    }
+    if (mVideoView != null) {
+      mVideoPosition = mVideoView.getCurrentPosition();
+    }
+    outState.putInt(STATE_VIDEO_POSITION, mVideoPosition);
+    super.onSaveInstanceState(outState);
+  }
+
+  /**
+   * The pager destroys the views of the datum which are out of its window, so
+   * the players and the image go with them. Only the video position is kept,
+   * the rest is loaded again from the datum when the views are created.
+   */
+  @Override
+  public void onDestroyView() {
+    if (mVideoView != null) {
+      mVideoPosition = mVideoView.getCurrentPosition();
+      mVideoView.stopPlayback();
+      mVideoView.setMediaController(null);
+      mVideoView = null;
+    }
+    if (mMediaController != null) {
+      mMediaController.hide();
+      mMediaController = null;
+    }
+    if (mImageView != null) {
+      ThumbnailLoader.getInstance(getActivity()).release(mImageView);
+      mImageView = null;
+    }
+    this.releaseAudioPlayer();
+    super.onDestroyView();
+  }
+
+  protected void releaseAudioPlayer() {
+    if (mAudioPlayer != null) {
+      mAudioPlayer.release();
+      mAudioPlayer = null;
+    }
+  }
+
   @Override
   public void onPause() {
+    if (mEditBuffer != null) {
+      mEditBuffer.flush();
+    }
     if (this.mDatumEditCounts != null) {
       String edits = "";
       Iterator<Entry<String, Integer>> it = this.mDatumEditCounts.entrySet().iterator();
@@ -703,12 +806,7 @@ public class DatumDetailFragment extends Fragment {
       recordUserEvent("totalDatumEditsOnPause", edits);
     }
 
-    if (mAudioPlayer != null) {
-      // if (mPrompt.isPlaying()) {
-      // mPrompt.stop();
-      // }
-      mAudioPlayer.release();
-    }
+    this.releaseAudioPlayer();
 
     super.onPause();
   }
@@ -4,50 +4,115 @@ import java.util.ArrayList;
 
 import com.github.fielddb.Config;
 import com.github.fielddb.database.DatumContentProvider;
-import com.github.fielddb.database.UserContentProvider.UserTable;
+import com.github.fielddb.database.DatumContentProvider.DatumTable;
+import com.github.fielddb.database.DatumPageLoader;
 
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
-import android.support.v4.app.FragmentPagerAdapter;
+import android.support.v4.app.FragmentStatePagerAdapter;
 import android.util.Log;
+import android.view.ViewGroup;
+
+/**
+ * Pages through the datum of a lesson or experiment.
+ *
+ * Only the fragments of the current datum and OFFSCREEN_PAGE_LIMIT datum on
+ * each side are kept, the pager should be set to the same limit. Fragments
+ * which leave that window are destroyed (releasing their media players) and
+ * only their saved state is kept, they are created again from it if the user
+ * swipes back.
+ */
+public class DatumFragmentPagerAdapter extends FragmentStatePagerAdapter {
+  /* How close to the last loaded datum the user can swipe before the next page is loaded */
+  public static final int PAGE_PREFETCH_DISTANCE = 3;
+  /* How many datum fragments are kept on each side of the current one */
+  public static final int OFFSCREEN_PAGE_LIMIT = 1;
 
-public class DatumFragmentPagerAdapter extends FragmentPagerAdapter {
   private ArrayList<String> mDatumsIds;
-  private ArrayList<Fragment> mFragments;
+  private DatumPageLoader mPageLoader;
+  private DatumPrefetcher mPrefetcher;
+  private int mPrimaryPosition = -1;
 
   Uri mVisibleDatumUri;
 
   public DatumFragmentPagerAdapter(FragmentManager fm) {
     super(fm);
-    mFragments = new ArrayList<Fragment>();
+  }
+
+  /**
+   * Lets the adapter load the following pages of ids as the user swipes, the
+   * cursor passed to swapCursor should be the first page.
+   *
+   * @param pageLoader
+   */
+  public void setPageLoader(DatumPageLoader pageLoader) {
+    this.mPageLoader = pageLoader;
+  }
+
+  /**
+   * Lets the adapter prefetch the datum around the one the user is on.
+   *
+   * @param prefetcher
+   */
+  public void setPrefetcher(DatumPrefetcher prefetcher) {
+    this.mPrefetcher = prefetcher;
   }
 
   public void swapCursor(Cursor cursor) {
     this.mDatumsIds = new ArrayList<String>();
     this.mDatumsIds.add("instructions");
+    if (mPageLoader != null) {
+      mPageLoader.setLoadedPage(cursor);
+    }
+    this.addIds(cursor);
+  }
+
+  protected void addIds(Cursor cursor) {
     if (cursor != null && cursor.getCount() > 0) {
-      cursor.moveToFirst();
+      int idColumnIndex = cursor.getColumnIndexOrThrow(DatumTable.COLUMN_ID);
+      cursor.moveToPosition(-1);
       while (cursor.moveToNext()) {
-        String id = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_ID));
+        String id = cursor.getString(idColumnIndex);
         if (!"instructions".equals(id)) {
           this.mDatumsIds.add(id);
         }
       }
+    }
+    if (cursor != null) {
       cursor.close();
     }
   }
 
+  protected void loadNextPageIfNeeded(int position) {
+    if (mPageLoader == null || position < getCount() - PAGE_PREFETCH_DISTANCE || !mPageLoader.hasNextPage()) {
+      return;
+    }
+    new AsyncTask<Void, Void, Cursor>() {
+      @Override
+      protected Cursor doInBackground(Void... params) {
+        return mPageLoader.loadNextPage();
+      }
+
+      @Override
+      protected void onPostExecute(Cursor page) {
+        if (page == null || mDatumsIds == null) {
+          return;
+        }
+        addIds(page);
+        Log.d(Config.TAG, "Loaded another page of datum ids, there are now " + mDatumsIds.size() + " to swipe");
+        notifyDataSetChanged();
+      }
+    }.execute();
+  }
+
   @Override
   public Fragment getItem(int position) {
     Log.d(Config.TAG, "Displaying datum in position " + position);
-    if (mFragments.size() > position) {
-      if (mFragments.get(position) != null) {
-        return mFragments.get(position);
-      }
-    }
+    loadNextPageIfNeeded(position);
 
     String id = "instructions";
     if (mDatumsIds.size() > position) {
@@ -68,14 +133,21 @@ public class DatumFragmentPagerAdapter extends FragmentPagerAdapter {
 
     fragment.mTwoPane = false;
     fragment.setArguments(arguments);
-    if (mFragments.size() == position || mFragments.size() < position) {
-      mFragments.add(fragment);
-    } else {
-      mFragments.set(position, fragment);
+    if (mPrefetcher != null) {
+      fragment.setPrefetchedItem(mPrefetcher.take(id));
     }
     return fragment;
   }
 
+  @Override
+  public void setPrimaryItem(ViewGroup container, int position, Object object) {
+    super.setPrimaryItem(container, position, object);
+    if (mPrefetcher != null && position != mPrimaryPosition) {
+      mPrimaryPosition = position;
+      mPrefetcher.prefetch(mDatumsIds, position);
+    }
+  }
+
   @Override
   public int getCount() {
     if (mDatumsIds != null) {
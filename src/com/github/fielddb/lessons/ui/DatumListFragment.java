@@ -9,7 +9,8 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
-import android.support.v4.content.CursorLoader;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.Loader;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
@@ -29,9 +30,12 @@ import android.widget.Toast;
 import com.github.fielddb.Config;
 import com.github.fielddb.database.CursorRecyclerViewAdapter;
 import com.github.fielddb.database.DatumContentProvider;
+import com.github.fielddb.database.DatumPageLoader;
+import com.github.fielddb.database.DatumWindowLoader;
 import com.github.fielddb.database.DatumContentProvider.DatumTable;
 import com.github.fielddb.BugReporter;
 import com.github.fielddb.R;
+import com.github.fielddb.model.DatumPreview;
 
 /**
  * A list fragment representing a list of Datums. This fragment also supports
@@ -42,9 +46,14 @@ import com.github.fielddb.R;
  * Activities containing this fragment MUST implement the {@link Callbacks}
  * interface.
  */
-public class DatumListFragment extends Fragment implements AdapterView.OnItemClickListener {
+public class DatumListFragment extends Fragment implements AdapterView.OnItemClickListener,
+    LoaderManager.LoaderCallbacks<Cursor> {
+  private static final int DATUM_LIST_LOADER = 0;
   private RecyclerView mList;
   private CursorRecyclerViewAdapter mAdapter;
+  private DatumPageLoader mPageLoader;
+  /* When the list started loading, until the first rows are shown */
+  private long mLoadStartTime;
 
   /**
    * The serialization (saved instance state) Bundle key representing the
@@ -120,20 +129,13 @@ public class DatumListFragment extends Fragment implements AdapterView.OnItemCli
     mList.getItemAnimator().setMoveDuration(1000);
     mList.getItemAnimator().setRemoveDuration(1000);
 
-    String[] projection = { DatumTable.COLUMN_ID, DatumTable.COLUMN_ORTHOGRAPHY, DatumTable.COLUMN_TRANSLATION,
-        DatumTable.COLUMN_IMAGE_FILES };
-    CursorLoader loader = new CursorLoader(getActivity(), DatumContentProvider.CONTENT_URI, projection, null, null,
-        null);
-    Cursor cursor = loader.loadInBackground();
-
-    if (cursor == null) {
-      Log.e(Config.TAG, "The cursor is null, maybe your provider is not declared in the AndroidManifest?");
-      loader = null;
-    }
-    mAdapter = new CursorRecyclerViewAdapter(mCallbacks, cursor);
+    /* The rows are loaded in the background, see onLoadFinished */
+    mPageLoader = new DatumPageLoader(getActivity().getContentResolver(), DatumPreview.PROJECTION, null, null,
+        DatumContentProvider.DEFAULT_PAGE_SIZE);
+    mAdapter = new CursorRecyclerViewAdapter(mCallbacks, null);
+    mAdapter.setPageLoader(mPageLoader);
     // mAdapter.setOnItemClickListener(this);
     mList.setAdapter(mAdapter);
-    com.github.fielddb.model.Activity.sendActivity("loaded", "datalist");
 
     return rootView;
   }
@@ -142,6 +144,32 @@ public class DatumListFragment extends Fragment implements AdapterView.OnItemCli
   public void onActivityCreated(Bundle savedInstanceState) {
     super.onActivityCreated(savedInstanceState);
     registerForContextMenu(getView());
+    mLoadStartTime = System.currentTimeMillis();
+    getLoaderManager().initLoader(DATUM_LIST_LOADER, null, this);
+  }
+
+  @Override
+  public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+    return new DatumWindowLoader(getActivity(), mPageLoader);
+  }
+
+  @Override
+  public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+    if (cursor == null) {
+      Log.e(Config.TAG, "The cursor is null, maybe your provider is not declared in the AndroidManifest?");
+    }
+    mAdapter.swapCursor(cursor);
+    if (mLoadStartTime > 0) {
+      Log.d(Config.TAG, "The datum list showed its first rows after " + (System.currentTimeMillis() - mLoadStartTime)
+          + "ms");
+      mLoadStartTime = 0;
+      com.github.fielddb.model.Activity.sendActivity("loaded", "datalist");
+    }
+  }
+
+  @Override
+  public void onLoaderReset(Loader<Cursor> loader) {
+    mAdapter.swapCursor(null);
   }
 
   @Override
@@ -229,7 +257,7 @@ public class DatumListFragment extends Fragment implements AdapterView.OnItemCli
                   mAdapter.getCursor().getColumnIndexOrThrow(DatumTable.COLUMN_ID));
               final Uri uri = Uri.parse(DatumContentProvider.CONTENT_URI + "/" + actualId);
               getActivity().getContentResolver().delete(uri, null, null);
-              mAdapter.notifyItemRemoved(info.position);
+              /* The loader reloads the list, which removes the row */
 
               // New Option:
               // mAdapter.removeItem(info.position, uri);
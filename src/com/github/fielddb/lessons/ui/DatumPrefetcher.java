@@ -0,0 +1,174 @@
+package com.github.fielddb.lessons.ui;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.github.fielddb.Config;
+import com.github.fielddb.database.DatumContentProvider;
+import com.github.fielddb.model.Datum;
+import com.github.fielddb.model.DatumRowMapper;
+import com.github.fielddb.model.FieldDBFileRowMapper;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * Loads the datum on either side of the one the pager is showing before the
+ * user swipes to them.
+ *
+ * Each time the pager settles on a datum, the rows of the PREFETCH_DISTANCE
+ * datum before and after it are read in the background and their main image
+ * is decoded into the {@link ThumbnailLoader}'s memory cache. When the pager
+ * then creates the fragment of one of those datum it is handed the datum with
+ * take(), so the fragment can inflate right away instead of querying the
+ * provider on the main thread. The prefetched datum are dropped as soon as the
+ * datum table changes (a sync or an edit) so a fragment never shows a stale
+ * row.
+ */
+public class DatumPrefetcher {
+  /* How many datum are loaded on each side of the current one */
+  public static int PREFETCH_DISTANCE = 2;
+
+  protected ContentResolver mContentResolver;
+  protected Context mContext;
+  protected ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+  protected LruCache<String, Datum> mDatums = new LruCache<String, Datum>(PREFETCH_DISTANCE * 2 + 1);
+  /* The ids around the current datum, prefetches of other ids are skipped */
+  protected Set<String> mWanted = new HashSet<String>();
+  protected Set<String> mLoading = new HashSet<String>();
+  /* Only used on the prefetch thread */
+  protected DatumRowMapper mRowMapper = new DatumRowMapper();
+  protected FieldDBFileRowMapper mFileRowMapper = new FieldDBFileRowMapper();
+  protected ContentObserver mObserver;
+
+  public DatumPrefetcher(Context context) {
+    this.mContext = context.getApplicationContext();
+    this.mContentResolver = context.getContentResolver();
+    this.mObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+      @Override
+      public void onChange(boolean selfChange) {
+        clear();
+      }
+    };
+    this.mContentResolver.registerContentObserver(DatumContentProvider.CONTENT_URI, true, mObserver);
+  }
+
+  /**
+   * Starts loading the datum around the position which aren't already loaded
+   * or loading. Call it on the main thread.
+   *
+   * @param ids
+   *          the ids of the pages
+   * @param position
+   *          the page the user is on
+   */
+  public void prefetch(List<String> ids, int position) {
+    if (ids == null || mExecutor.isShutdown()) {
+      return;
+    }
+    Set<String> wanted = new HashSet<String>();
+    int from = Math.max(0, position - PREFETCH_DISTANCE);
+    int to = Math.min(ids.size() - 1, position + PREFETCH_DISTANCE);
+    for (int i = from; i <= to; i++) {
+      if (i != position) {
+        wanted.add(ids.get(i));
+      }
+    }
+    synchronized (this) {
+      mWanted = wanted;
+      for (final String id : wanted) {
+        if (mDatums.get(id) != null || mLoading.contains(id)) {
+          continue;
+        }
+        mLoading.add(id);
+        mExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            load(id);
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Hands over the prefetched datum, if it is ready. The datum is removed from
+   * the prefetcher, the fragment owns it from then on.
+   *
+   * @param id
+   * @return the datum, or null if it hasn't been loaded
+   */
+  public synchronized Datum take(String id) {
+    if (id == null) {
+      return null;
+    }
+    return mDatums.remove(id);
+  }
+
+  public synchronized void clear() {
+    mDatums.evictAll();
+  }
+
+  /**
+   * Stops prefetching, call it when the pager goes away.
+   */
+  public void close() {
+    mContentResolver.unregisterContentObserver(mObserver);
+    mExecutor.shutdownNow();
+    this.clear();
+  }
+
+  /**
+   * Reads the datum and decodes its main image, runs on the prefetch thread.
+   */
+  protected void load(String id) {
+    try {
+      synchronized (this) {
+        if (!mWanted.contains(id)) {
+          return;
+        }
+      }
+      long startTime = System.currentTimeMillis();
+      Datum datum = null;
+      Uri uri = Uri.withAppendedPath(DatumContentProvider.CONTENT_URI, id);
+      Cursor cursor = mContentResolver.query(uri, DatumDetailFragment.DATUM_PROJECTION, null, null, null);
+      if (cursor != null) {
+        if (cursor.moveToFirst()) {
+          datum = mRowMapper.map(cursor);
+        }
+        cursor.close();
+        mRowMapper.unbind();
+      }
+      if (datum == null) {
+        return;
+      }
+      DatumDetailFragment.loadMedia(mContentResolver, id, datum, mFileRowMapper);
+      synchronized (this) {
+        if (!mWanted.contains(id)) {
+          return;
+        }
+        mDatums.put(id, datum);
+      }
+      ThumbnailLoader.getInstance(mContext).prefetch(datum.getMainImageFile(), DatumDetailFragment.MAIN_IMAGE_SIZE);
+      if (Config.D) {
+        Log.d(Config.TAG, "Prefetched datum " + id + " in " + (System.currentTimeMillis() - startTime) + "ms");
+      }
+    } catch (Exception e) {
+      Log.w(Config.TAG, "Unable to prefetch datum " + id + " " + e);
+    } finally {
+      synchronized (this) {
+        mLoading.remove(id);
+      }
+    }
+  }
+}
@@ -1,9 +1,12 @@
 package com.github.fielddb.lessons.ui;
 
 import com.github.fielddb.database.CursorRecyclerViewAdapter;
+import com.github.fielddb.database.DatumContentProvider;
 import com.github.fielddb.Config;
 import com.github.fielddb.R;
+import com.github.fielddb.model.DatumPreview;
 
+import android.database.CharArrayBuffer;
 import android.net.Uri;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
@@ -20,6 +23,11 @@ import android.widget.TextView;
 public class DatumPreviewViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
   private int mPosition;
   private Uri mUri;
+  /* Reused for each row this view shows */
+  private final DatumPreview mPreview = new DatumPreview();
+  private String mIconFilename;
+  /* In dp, for icons which don't have a fixed size */
+  public static final int DEFAULT_ICON_SIZE_DP = 64;
   private TextView mOrthographyView;
   private TextView mTranslationView;
   private ImageView mIconView;
@@ -39,20 +47,40 @@ public class DatumPreviewViewHolder extends RecyclerView.ViewHolder implements V
 
   @Override
   public void onClick(View v) {
-    if (mUri == null) {
-      Log.w(Config.TAG, "User clicked on an item which had no uri.");
+    String id = mPreview.getId();
+    if (id == null) {
+      Log.w(Config.TAG, "User clicked on an item which had no id.");
       return;
     }
-    mAdapter.onItemHolderClick(mUri.getLastPathSegment());
+    mAdapter.onItemHolderClick(id);
   }
 
   public boolean onContextClick(View v) {
-    Log.d(Config.TAG, "context click on item " + mUri);
+    Log.d(Config.TAG, "context click on item " + getUri());
     return false;
   }
 
   public void removeThisRow() {
-    mAdapter.removeItem(mPosition, mUri);
+    mAdapter.removeItem(mPosition, getUri());
+  }
+
+  public DatumPreview getPreview() {
+    return mPreview;
+  }
+
+  /**
+   * The uri is only built when it is needed, so binding a row doesn't
+   * allocate one.
+   */
+  public Uri getUri() {
+    if (mUri != null) {
+      return mUri;
+    }
+    String id = mPreview.getId();
+    if (id == null) {
+      return null;
+    }
+    return Uri.withAppendedPath(DatumContentProvider.CONTENT_URI, id);
   }
 
   public void setPosition(int position) {
@@ -71,6 +99,14 @@ public class DatumPreviewViewHolder extends RecyclerView.ViewHolder implements V
     this.mTranslationView.setText(translation);
   }
 
+  public void setOrthography(CharArrayBuffer orthography) {
+    this.mOrthographyView.setText(orthography.data, 0, orthography.sizeCopied);
+  }
+
+  public void setTranslation(CharArrayBuffer translation) {
+    this.mTranslationView.setText(translation.data, 0, translation.sizeCopied);
+  }
+
   public void setIcon(int iconId) {
     if (mIconView == null) {
       mIconView = (ImageView) itemView.findViewById(R.id.icon);
@@ -78,11 +114,42 @@ public class DatumPreviewViewHolder extends RecyclerView.ViewHolder implements V
     this.mIconView.setImageResource(iconId);
   }
 
+  /**
+   * Shows the thumbnail of the image, it is loaded in the background unless
+   * it is already in memory. Loading the icon of a recycled view cancels the
+   * previous row's thumbnail.
+   *
+   * @param filename
+   *          the image, or null to show the default icon
+   */
   public void setIcon(String filename) {
     if (mIconView == null) {
       mIconView = (ImageView) itemView.findViewById(R.id.icon);
     }
-    Log.d(Config.TAG, "TODO set the image thumbnail with " + filename);
+    int size = (int) (DEFAULT_ICON_SIZE_DP * itemView.getResources().getDisplayMetrics().density + 0.5f);
+    if (mIconView.getLayoutParams() != null && mIconView.getLayoutParams().width > 0) {
+      size = mIconView.getLayoutParams().width;
+    }
+    ThumbnailLoader.getInstance(itemView.getContext()).load(filename, mIconView, size, R.drawable.ic_launcher);
+  }
+
+  /**
+   * Only changes the icon if the row's image is not the one already shown,
+   * which is the usual case when a row is bound again.
+   */
+  public void setIcon(CharArrayBuffer filename) {
+    if (filename.sizeCopied == 0) {
+      if (mIconFilename != null) {
+        mIconFilename = null;
+        this.setIcon((String) null);
+      }
+      return;
+    }
+    if (DatumPreview.contentEquals(filename, mIconFilename)) {
+      return;
+    }
+    mIconFilename = new String(filename.data, 0, filename.sizeCopied);
+    this.setIcon(mIconFilename);
   }
 
 }
\ No newline at end of file
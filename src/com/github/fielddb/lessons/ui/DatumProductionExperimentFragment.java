@@ -86,6 +86,7 @@ public class DatumProductionExperimentFragment extends DatumDetailFragment {
     isPlaying = true;
 
     Log.d(Config.TAG, "Playing prompting context");
+    this.releaseAudioPlayer();
     mAudioPlayer = MediaPlayer.create(getActivity(), mAudioPromptResource);
     if (mAudioPlayer != null) {
       mAudioPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
@@ -93,6 +94,9 @@ public class DatumProductionExperimentFragment extends DatumDetailFragment {
         @Override
         public void onCompletion(MediaPlayer mp) {
           mp.release();
+          if (mAudioPlayer == mp) {
+            mAudioPlayer = null;
+          }
           if (mIsInstructions) {
             autoAdvanceAfterRecordingAudio();
           }
@@ -0,0 +1,462 @@
+package com.github.fielddb.lessons.ui;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.github.fielddb.Config;
+
+import android.annotation.SuppressLint;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.widget.ImageView;
+
+/**
+ * Loads downsampled thumbnails of the datum images into image views.
+ *
+ * The full size images (in Config.DEFAULT_OUTPUT_DIRECTORY) are decoded in the
+ * background at the smallest sample size which still covers the view, and the
+ * thumbnails are kept in a memory LRU and in a disk cache so scrolling back
+ * over a row, or opening the list again, doesn't decode the image again. A
+ * view only ever shows the last thumbnail asked for it, the previous request
+ * is cancelled when a recycled view is bound to another row.
+ *
+ * Bitmaps evicted from the memory cache are reused for the following decodes
+ * where the platform allows it (API 11 and up), but only once no view shows
+ * them anymore: the loader counts the views showing each bitmap it handed
+ * out, so it must be the only one setting the image of the views it loads
+ * into, and a view which is discarded is given back with release().
+ */
+public class ThumbnailLoader {
+  /* The share of the app's memory class the thumbnails can use */
+  public static int MEMORY_CACHE_DIVIDER = 8;
+  public static long MAX_DISK_CACHE_BYTES = 10 * 1024 * 1024;
+  public static int DECODE_THREADS = 2;
+  public static int THUMBNAIL_QUALITY = 85;
+  public static final String DISK_CACHE_DIRECTORY = "thumbnails";
+
+  private static ThumbnailLoader sInstance;
+
+  protected LruCache<String, Bitmap> mMemoryCache;
+  protected File mDiskCacheDirectory;
+  protected ExecutorService mExecutor;
+  protected Handler mHandler = new Handler(Looper.getMainLooper());
+  /* The request each view is waiting for, only used on the main thread */
+  protected WeakHashMap<ImageView, Request> mRequests = new WeakHashMap<ImageView, Request>();
+  protected Set<SoftReference<Bitmap>> mReusableBitmaps;
+  /* Guards the display counts, and the handing over of bitmaps between the cache, the views and the decoder */
+  protected final Object mReuseLock = new Object();
+  /* The bitmap each view shows, and how many views show each bitmap */
+  protected WeakHashMap<ImageView, Bitmap> mShown = new WeakHashMap<ImageView, Bitmap>();
+  protected IdentityHashMap<Bitmap, Integer> mDisplayCounts = new IdentityHashMap<Bitmap, Integer>();
+  /* Bitmaps which left the memory cache while a view was showing them */
+  protected Set<Bitmap> mEvictedWhileShown = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+  protected long mDiskCacheSize;
+
+  public static synchronized ThumbnailLoader getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new ThumbnailLoader(context.getApplicationContext());
+    }
+    return sInstance;
+  }
+
+  protected ThumbnailLoader(Context context) {
+    int memoryClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+    int cacheSize = memoryClass * 1024 * 1024 / MEMORY_CACHE_DIVIDER;
+    if (Build.VERSION.SDK_INT >= 11) {
+      mReusableBitmaps = Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
+    }
+    mMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
+      @Override
+      protected int sizeOf(String key, Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+      }
+
+      @Override
+      protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+        if (oldValue == newValue) {
+          return;
+        }
+        synchronized (mReuseLock) {
+          if (mDisplayCounts.containsKey(oldValue)) {
+            mEvictedWhileShown.add(oldValue);
+          } else {
+            addReusable(oldValue);
+          }
+        }
+      }
+    };
+    mDiskCacheDirectory = new File(context.getCacheDir(), DISK_CACHE_DIRECTORY);
+    mDiskCacheDirectory.mkdirs();
+    /* The only time the disk cache is listed, unless it has to be trimmed */
+    File[] thumbnails = mDiskCacheDirectory.listFiles();
+    if (thumbnails != null) {
+      for (File thumbnail : thumbnails) {
+        mDiskCacheSize += thumbnail.length();
+      }
+    }
+    mExecutor = Executors.newFixedThreadPool(DECODE_THREADS);
+  }
+
+  /**
+   * Shows the thumbnail of the image in the view, right away if it is in
+   * memory, otherwise once it has been loaded in the background.
+   *
+   * @param filename
+   *          the image's filename in Config.DEFAULT_OUTPUT_DIRECTORY
+   * @param view
+   * @param size
+   *          the size of the view in pixels, the thumbnail is at least this
+   *          big
+   * @param placeholder
+   *          the resource to show until the thumbnail is loaded, or if there
+   *          is no image
+   */
+  public void load(String filename, ImageView view, int size, int placeholder) {
+    this.cancel(view);
+    if (filename == null || "".equals(filename)) {
+      this.show(view, null, placeholder);
+      return;
+    }
+    String key = getKey(filename, size);
+    Bitmap bitmap;
+    synchronized (mReuseLock) {
+      bitmap = mMemoryCache.get(key);
+      if (bitmap != null) {
+        this.retain(bitmap);
+      }
+    }
+    if (bitmap != null) {
+      this.show(view, bitmap, placeholder);
+      return;
+    }
+    this.show(view, null, placeholder);
+    Request request = new Request(key, filename, size, view);
+    mRequests.put(view, request);
+    request.future = mExecutor.submit(request);
+  }
+
+  /**
+   * Loads the thumbnail into the memory cache without showing it, so a view
+   * which asks for it later gets it right away.
+   *
+   * @param filename
+   * @param size
+   */
+  public void prefetch(String filename, int size) {
+    if (filename == null || "".equals(filename)) {
+      return;
+    }
+    String key = getKey(filename, size);
+    if (mMemoryCache.get(key) != null) {
+      return;
+    }
+    mExecutor.submit(new Request(key, filename, size, null));
+  }
+
+  /**
+   * Cancels the view's request and forgets the thumbnail it shows, call it
+   * when the view is discarded so its bitmap can be reused.
+   */
+  public void release(ImageView view) {
+    this.cancel(view);
+    this.show(view, null, 0);
+  }
+
+  /**
+   * Cancels the request the view is waiting for, if any. The thumbnail is not
+   * decoded if it hasn't been started yet, and isn't shown either way.
+   */
+  public void cancel(ImageView view) {
+    Request request = mRequests.remove(view);
+    if (request == null) {
+      return;
+    }
+    request.cancelled = true;
+    if (request.future != null) {
+      request.future.cancel(false);
+    }
+  }
+
+  protected class Request implements Runnable {
+    protected final String key;
+    protected final String filename;
+    protected final int size;
+    protected final ImageView view;
+    protected volatile boolean cancelled = false;
+    protected Future<?> future;
+
+    public Request(String key, String filename, int size, ImageView view) {
+      this.key = key;
+      this.filename = filename;
+      this.size = size;
+      this.view = view;
+    }
+
+    @Override
+    public void run() {
+      if (cancelled) {
+        return;
+      }
+      final Bitmap bitmap = getThumbnail(this);
+      if (bitmap == null) {
+        return;
+      }
+      synchronized (mReuseLock) {
+        /* Counted as shown right away, so it isn't reused if it is evicted before the view gets it */
+        if (view != null) {
+          retain(bitmap);
+        }
+        mMemoryCache.put(key, bitmap);
+      }
+      if (view == null) {
+        return;
+      }
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          if (cancelled || mRequests.get(view) != Request.this) {
+            synchronized (mReuseLock) {
+              releaseBitmap(bitmap);
+            }
+            return;
+          }
+          mRequests.remove(view);
+          show(view, bitmap, 0);
+        }
+      });
+    }
+  }
+
+  /**
+   * Shows the bitmap (which has been retained for the view) or the
+   * placeholder, and releases the bitmap the view showed before. Runs on the
+   * main thread.
+   */
+  protected void show(ImageView view, Bitmap bitmap, int placeholder) {
+    synchronized (mReuseLock) {
+      Bitmap previous = bitmap == null ? mShown.remove(view) : mShown.put(view, bitmap);
+      if (previous != null) {
+        this.releaseBitmap(previous);
+      }
+    }
+    if (bitmap == null) {
+      view.setImageResource(placeholder);
+    } else {
+      view.setImageBitmap(bitmap);
+    }
+  }
+
+  /* Call with the reuse lock held */
+  protected void retain(Bitmap bitmap) {
+    Integer count = mDisplayCounts.get(bitmap);
+    mDisplayCounts.put(bitmap, count == null ? 1 : count + 1);
+  }
+
+  /* Call with the reuse lock held */
+  protected void releaseBitmap(Bitmap bitmap) {
+    Integer count = mDisplayCounts.get(bitmap);
+    if (count == null) {
+      return;
+    }
+    if (count > 1) {
+      mDisplayCounts.put(bitmap, count - 1);
+      return;
+    }
+    mDisplayCounts.remove(bitmap);
+    if (mEvictedWhileShown.remove(bitmap)) {
+      this.addReusable(bitmap);
+    }
+  }
+
+  /* Call with the reuse lock held, once the bitmap is neither cached nor shown */
+  protected void addReusable(Bitmap bitmap) {
+    if (mReusableBitmaps != null && bitmap.isMutable()) {
+      mReusableBitmaps.add(new SoftReference<Bitmap>(bitmap));
+    }
+  }
+
+  /**
+   * Decodes the thumbnail from the disk cache, or from the full size image
+   * (and then adds it to the disk cache). Runs on a decode thread.
+   */
+  protected Bitmap getThumbnail(Request request) {
+    long startTime = System.currentTimeMillis();
+    File cached = new File(mDiskCacheDirectory, request.key);
+    if (cached.exists()) {
+      Bitmap bitmap = decode(cached, request.size);
+      if (bitmap != null) {
+        cached.setLastModified(System.currentTimeMillis());
+        return bitmap;
+      }
+    }
+
+    File image = new File(Config.DEFAULT_OUTPUT_DIRECTORY + "/" + request.filename);
+    if (!image.exists() || request.cancelled) {
+      return null;
+    }
+    Bitmap bitmap = decode(image, request.size);
+    if (bitmap == null) {
+      return null;
+    }
+    this.addToDiskCache(cached, bitmap);
+    if (Config.D) {
+      Log.d(Config.TAG, "Made the " + bitmap.getWidth() + "x" + bitmap.getHeight() + " thumbnail of "
+          + request.filename + " in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+    return bitmap;
+  }
+
+  /**
+   * Decodes the image at the largest power of two sample size which is still
+   * at least size pixels on its smaller side.
+   */
+  protected Bitmap decode(File file, int size) {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      return null;
+    }
+    options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, size);
+    options.inJustDecodeBounds = false;
+    this.addReusableBitmap(options);
+    try {
+      return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+    } catch (IllegalArgumentException e) {
+      /* The platform refused the bitmap to reuse, decode into a new one */
+      options.inBitmap = null;
+      return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+    } catch (OutOfMemoryError e) {
+      Log.w(Config.TAG, "Not enough memory to make the thumbnail of " + file.getName());
+      return null;
+    }
+  }
+
+  public static int getSampleSize(int width, int height, int size) {
+    int sampleSize = 1;
+    if (size <= 0) {
+      return sampleSize;
+    }
+    while (Math.min(width, height) / (sampleSize * 2) >= size) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  /**
+   * Lets the decoder reuse a bitmap evicted from the memory cache. Before
+   * KitKat only a bitmap of exactly the same size can be reused, and only when
+   * the image isn't subsampled.
+   */
+  @SuppressLint("NewApi")
+  protected void addReusableBitmap(BitmapFactory.Options options) {
+    if (mReusableBitmaps == null) {
+      return;
+    }
+    options.inMutable = true;
+    int width = options.outWidth / options.inSampleSize;
+    int height = options.outHeight / options.inSampleSize;
+    synchronized (mReuseLock) {
+      Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
+      while (iterator.hasNext()) {
+        Bitmap candidate = iterator.next().get();
+        if (candidate == null || !candidate.isMutable() || candidate.isRecycled()) {
+          iterator.remove();
+          continue;
+        }
+        boolean fits;
+        if (Build.VERSION.SDK_INT >= 19) {
+          fits = width * height * 4 <= candidate.getAllocationByteCount();
+        } else {
+          fits = options.inSampleSize == 1 && candidate.getWidth() == width && candidate.getHeight() == height;
+        }
+        if (fits) {
+          options.inBitmap = candidate;
+          iterator.remove();
+          return;
+        }
+      }
+    }
+  }
+
+  protected void addToDiskCache(File cached, Bitmap bitmap) {
+    FileOutputStream output = null;
+    try {
+      output = new FileOutputStream(cached);
+      bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, output);
+    } catch (IOException e) {
+      Log.w(Config.TAG, "Unable to cache the thumbnail " + cached.getName() + " " + e);
+      cached.delete();
+      return;
+    } finally {
+      if (output != null) {
+        try {
+          output.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+    this.trimDiskCache(cached.length());
+  }
+
+  /**
+   * Counts the thumbnail which was just written, and deletes the least
+   * recently used thumbnails once the disk cache is bigger than
+   * MAX_DISK_CACHE_BYTES. The directory is only listed when it has to be
+   * trimmed.
+   */
+  protected synchronized void trimDiskCache(long addedBytes) {
+    mDiskCacheSize += addedBytes;
+    if (mDiskCacheSize <= MAX_DISK_CACHE_BYTES) {
+      return;
+    }
+    File[] thumbnails = mDiskCacheDirectory.listFiles();
+    if (thumbnails == null) {
+      return;
+    }
+    long total = 0;
+    for (File thumbnail : thumbnails) {
+      total += thumbnail.length();
+    }
+    Arrays.sort(thumbnails, new Comparator<File>() {
+      @Override
+      public int compare(File lhs, File rhs) {
+        long difference = lhs.lastModified() - rhs.lastModified();
+        return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+      }
+    });
+    for (File thumbnail : thumbnails) {
+      if (total <= MAX_DISK_CACHE_BYTES * 3 / 4) {
+        break;
+      }
+      total -= thumbnail.length();
+      thumbnail.delete();
+    }
+    mDiskCacheSize = total;
+  }
+
+  protected static String getKey(String filename, int size) {
+    return filename.replaceAll("[^A-Za-z0-9._-]", "_") + "_" + size + ".jpg";
+  }
+}
@@ -4,7 +4,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 
 import com.github.fielddb.Config;
-import com.github.fielddb.database.DatumContentProvider.DatumTable;
+import com.github.fielddb.database.FieldDBJsonCodec;
 
 import android.database.Cursor;
 import android.util.Log;
@@ -29,6 +29,8 @@ public class Datum {
   protected ArrayList<String> validationStati;
   protected ArrayList<String> coments;
   protected String actualJSON;
+  /* The encoded actualJSON as read from the database, only decoded if it is used */
+  protected byte[] encodedActualJSON;
 
   public Datum(String id, String rev, DatumField utterance, DatumField morphemes, DatumField gloss,
       DatumField translation, DatumField orthography, DatumField context, ArrayList<FieldDBFile> imageFiles,
@@ -135,66 +137,20 @@ public class Datum {
     this.actualJSON = "";
   }
 
+  /**
+   * Reads the row the cursor is on. To read many rows hold a
+   * {@link DatumRowMapper} instead, which looks the columns up only once.
+   */
   public Datum(Cursor cursor) {
     super();
+    new DatumRowMapper().map(cursor, this);
+  }
 
-    int currentColumnIndex = cursor.getColumnIndex(DatumTable.COLUMN_ID);
-    if (currentColumnIndex > -1) {
-      this._id = cursor.getString(currentColumnIndex);
-    }
-
-    currentColumnIndex = cursor.getColumnIndex(DatumTable.COLUMN_UTTERANCE);
-    if (currentColumnIndex > -1) {
-      this.utterance = new DatumField("utterance", cursor.getString(currentColumnIndex));
-    }
-
-    currentColumnIndex = cursor.getColumnIndex(DatumTable.COLUMN_MORPHEMES);
-    if (currentColumnIndex > -1) {
-      this.morphemes = new DatumField("morphemes", cursor.getString(currentColumnIndex));
-    }
-
-    currentColumnIndex = cursor.getColumnIndex(DatumTable.COLUMN_GLOSS);
-    if (currentColumnIndex > -1) {
-      this.gloss = new DatumField("gloss", cursor.getString(currentColumnIndex));
-    }
-
-    currentColumnIndex = cursor.getColumnIndex(DatumTable.COLUMN_TRANSLATION);
-    if (currentColumnIndex > -1) {
-      this.translation = new DatumField("translation", cursor.getString(currentColumnIndex));
-    }
-
-    currentColumnIndex = cursor.getColumnIndex(DatumTable.COLUMN_ORTHOGRAPHY);
-    if (currentColumnIndex > -1) {
-      this.orthography = new DatumField("orthography", cursor.getString(currentColumnIndex));
-    }
-
-    currentColumnIndex = cursor.getColumnIndex(DatumTable.COLUMN_CONTEXT);
-    if (currentColumnIndex > -1) {
-      this.context = new DatumField("context", cursor.getString(currentColumnIndex));
-    }
-
-    currentColumnIndex = cursor.getColumnIndex(DatumTable.COLUMN_CONTEXT);
-    if (currentColumnIndex > -1) {
-      this.context = new DatumField("context", cursor.getString(currentColumnIndex));
-    }
-
-    currentColumnIndex = cursor.getColumnIndex(DatumTable.COLUMN_IMAGE_FILES);
-    if (currentColumnIndex > -1) {
-      this.setImageFiles(cursor.getString(currentColumnIndex));
-    }
-
-    currentColumnIndex = cursor.getColumnIndex(DatumTable.COLUMN_AUDIO_VIDEO_FILES);
-    if (currentColumnIndex > -1) {
-      this.setAudioVideoFiles(cursor.getString(currentColumnIndex));
-    }
-
-    this.locations = new ArrayList<String>();
-    this.related = new ArrayList<String>();
-    this.reminders = new ArrayList<String>();
-    this.tags = new ArrayList<String>();
-    this.validationStati = new ArrayList<String>();
-    this.coments = new ArrayList<String>();
-    this.actualJSON = "";
+  /**
+   * An empty datum, for a row mapper to fill.
+   */
+  protected Datum(DatumRowMapper mapper) {
+    super();
   }
 
   public String getId() {
@@ -398,11 +354,16 @@ public class Datum {
   }
 
   public String getActualJSON() {
+    if (actualJSON == null && encodedActualJSON != null) {
+      actualJSON = FieldDBJsonCodec.decode(encodedActualJSON);
+      encodedActualJSON = null;
+    }
     return actualJSON;
   }
 
   public void setActualJSON(String actualJSON) {
     this.actualJSON = actualJSON;
+    this.encodedActualJSON = null;
   }
 
   public void addImageFile(String filename) {
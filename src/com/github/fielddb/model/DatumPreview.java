@@ -0,0 +1,68 @@
+package com.github.fielddb.model;
+
+import com.github.fielddb.database.DatumContentProvider.DatumTable;
+
+import android.database.CharArrayBuffer;
+
+/**
+ * The few columns of a datum which the list shows (orthography, translation
+ * and the icon), as opposed to a full {@link Datum}.
+ *
+ * A preview is meant to be reused: the list keeps one per row view and fills
+ * it again each time the view is bound (see {@link DatumPreviewRowMapper}).
+ * The values are copied out of the cursor into char buffers which grow to fit
+ * and are then reused, so binding a row doesn't allocate.
+ */
+public class DatumPreview {
+  public static final String[] PROJECTION = { DatumTable.COLUMN_ID, DatumTable.COLUMN_ORTHOGRAPHY,
+      DatumTable.COLUMN_TRANSLATION, DatumTable.COLUMN_MAIN_IMAGE_FILE };
+  protected static final int INITIAL_BUFFER_SIZE = 64;
+
+  protected final CharArrayBuffer id = new CharArrayBuffer(INITIAL_BUFFER_SIZE);
+  protected final CharArrayBuffer orthography = new CharArrayBuffer(INITIAL_BUFFER_SIZE);
+  protected final CharArrayBuffer translation = new CharArrayBuffer(INITIAL_BUFFER_SIZE);
+  protected final CharArrayBuffer mainImageFile = new CharArrayBuffer(INITIAL_BUFFER_SIZE);
+
+  public CharArrayBuffer getOrthography() {
+    return orthography;
+  }
+
+  public CharArrayBuffer getTranslation() {
+    return translation;
+  }
+
+  public CharArrayBuffer getMainImageFile() {
+    return mainImageFile;
+  }
+
+  public boolean hasMainImageFile() {
+    return mainImageFile.sizeCopied > 0;
+  }
+
+  /**
+   * Builds the id as a String, which allocates so it is for when the row is
+   * used (clicked), not while it is bound.
+   */
+  public String getId() {
+    if (id.sizeCopied == 0) {
+      return null;
+    }
+    return new String(id.data, 0, id.sizeCopied);
+  }
+
+  /**
+   * Compares the contents of a buffer with a string without building a new
+   * String.
+   */
+  public static boolean contentEquals(CharArrayBuffer buffer, String value) {
+    if (value == null || value.length() != buffer.sizeCopied) {
+      return false;
+    }
+    for (int i = 0; i < buffer.sizeCopied; i++) {
+      if (buffer.data[i] != value.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
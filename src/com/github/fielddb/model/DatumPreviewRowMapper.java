@@ -0,0 +1,37 @@
+package com.github.fielddb.model;
+
+import com.github.fielddb.database.CursorRowMapper;
+import com.github.fielddb.database.DatumContentProvider.DatumTable;
+
+import android.database.Cursor;
+
+/**
+ * Maps datum rows into reused {@link DatumPreview}s, without allocating.
+ */
+public class DatumPreviewRowMapper extends CursorRowMapper<DatumPreview> {
+  protected int mIdColumn;
+  protected int mOrthographyColumn;
+  protected int mTranslationColumn;
+  protected int mMainImageFileColumn;
+
+  @Override
+  protected void bindColumns(Cursor cursor) {
+    mIdColumn = cursor.getColumnIndex(DatumTable.COLUMN_ID);
+    mOrthographyColumn = cursor.getColumnIndex(DatumTable.COLUMN_ORTHOGRAPHY);
+    mTranslationColumn = cursor.getColumnIndex(DatumTable.COLUMN_TRANSLATION);
+    mMainImageFileColumn = cursor.getColumnIndex(DatumTable.COLUMN_MAIN_IMAGE_FILE);
+  }
+
+  @Override
+  protected DatumPreview newRow() {
+    return new DatumPreview();
+  }
+
+  @Override
+  protected void fillRow(Cursor cursor, DatumPreview preview) {
+    copyString(cursor, mIdColumn, preview.id);
+    copyString(cursor, mOrthographyColumn, preview.orthography);
+    copyString(cursor, mTranslationColumn, preview.translation);
+    copyString(cursor, mMainImageFileColumn, preview.mainImageFile);
+  }
+}
@@ -0,0 +1,96 @@
+package com.github.fielddb.model;
+
+import java.util.ArrayList;
+
+import com.github.fielddb.database.CursorRowMapper;
+import com.github.fielddb.database.DatumContentProvider.DatumTable;
+
+import android.database.Cursor;
+
+/**
+ * Maps datum rows to {@link Datum}s.
+ */
+public class DatumRowMapper extends CursorRowMapper<Datum> {
+  protected int mIdColumn;
+  protected int mRevColumn;
+  protected int mUtteranceColumn;
+  protected int mMorphemesColumn;
+  protected int mGlossColumn;
+  protected int mTranslationColumn;
+  protected int mOrthographyColumn;
+  protected int mContextColumn;
+  protected int mImageFilesColumn;
+  protected int mMainImageFileColumn;
+  protected int mAudioVideoFilesColumn;
+  protected int mActualJSONColumn;
+
+  @Override
+  protected void bindColumns(Cursor cursor) {
+    mIdColumn = cursor.getColumnIndex(DatumTable.COLUMN_ID);
+    mRevColumn = cursor.getColumnIndex(DatumTable.COLUMN_REV);
+    mUtteranceColumn = cursor.getColumnIndex(DatumTable.COLUMN_UTTERANCE);
+    mMorphemesColumn = cursor.getColumnIndex(DatumTable.COLUMN_MORPHEMES);
+    mGlossColumn = cursor.getColumnIndex(DatumTable.COLUMN_GLOSS);
+    mTranslationColumn = cursor.getColumnIndex(DatumTable.COLUMN_TRANSLATION);
+    mOrthographyColumn = cursor.getColumnIndex(DatumTable.COLUMN_ORTHOGRAPHY);
+    mContextColumn = cursor.getColumnIndex(DatumTable.COLUMN_CONTEXT);
+    mImageFilesColumn = cursor.getColumnIndex(DatumTable.COLUMN_IMAGE_FILES);
+    mMainImageFileColumn = cursor.getColumnIndex(DatumTable.COLUMN_MAIN_IMAGE_FILE);
+    mAudioVideoFilesColumn = cursor.getColumnIndex(DatumTable.COLUMN_AUDIO_VIDEO_FILES);
+    mActualJSONColumn = cursor.getColumnIndex(DatumTable.COLUMN_ACTUAL_JSON);
+  }
+
+  @Override
+  protected Datum newRow() {
+    return new Datum(this);
+  }
+
+  @Override
+  protected void fillRow(Cursor cursor, Datum datum) {
+    datum._id = getString(cursor, mIdColumn);
+    datum._rev = getString(cursor, mRevColumn);
+    datum.utterance = getField(cursor, mUtteranceColumn, "utterance");
+    datum.morphemes = getField(cursor, mMorphemesColumn, "morphemes");
+    datum.gloss = getField(cursor, mGlossColumn, "gloss");
+    datum.translation = getField(cursor, mTranslationColumn, "translation");
+    datum.orthography = getField(cursor, mOrthographyColumn, "orthography");
+    datum.context = getField(cursor, mContextColumn, "context");
+
+    datum.imageFiles = null;
+    if (mImageFilesColumn > -1) {
+      datum.setImageFiles(cursor.getString(mImageFilesColumn));
+    } else if (mMainImageFileColumn > -1) {
+      /* The preview projection only asks for the main image */
+      datum.imageFiles = new ArrayList<FieldDBFile>();
+      if (!cursor.isNull(mMainImageFileColumn)) {
+        datum.addImageFile(cursor.getString(mMainImageFileColumn));
+      }
+    }
+    datum.audioVideoFiles = null;
+    if (mAudioVideoFilesColumn > -1) {
+      datum.setAudioVideoFiles(cursor.getString(mAudioVideoFilesColumn));
+    }
+
+    datum.locations = new ArrayList<String>();
+    datum.related = new ArrayList<String>();
+    datum.reminders = new ArrayList<String>();
+    datum.tags = new ArrayList<String>();
+    datum.validationStati = new ArrayList<String>();
+    datum.coments = new ArrayList<String>();
+
+    /* The actualJSON is only decoded if it is used */
+    datum.actualJSON = "";
+    datum.encodedActualJSON = null;
+    if (mActualJSONColumn > -1 && !cursor.isNull(mActualJSONColumn)) {
+      datum.actualJSON = null;
+      datum.encodedActualJSON = cursor.getBlob(mActualJSONColumn);
+    }
+  }
+
+  protected static DatumField getField(Cursor cursor, int columnIndex, String label) {
+    if (columnIndex < 0) {
+      return null;
+    }
+    return new DatumField(label, cursor.getString(columnIndex));
+  }
+}
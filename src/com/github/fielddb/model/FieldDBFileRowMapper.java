@@ -0,0 +1,43 @@
+package com.github.fielddb.model;
+
+import com.github.fielddb.database.AudioVideoContentProvider.AudioVideoTable;
+import com.github.fielddb.database.CursorRowMapper;
+
+import android.database.Cursor;
+
+/**
+ * Maps audio/video rows, or the media rows of a datum
+ * (DatumContentProvider.getMediaUri), to {@link FieldDBFile}s. A media row
+ * whose file has no audio/video row yet (the join's columns are null) gets
+ * the same description and url as new FieldDBFile(filename).
+ */
+public class FieldDBFileRowMapper extends CursorRowMapper<FieldDBFile> {
+  protected int mFilenameColumn;
+  protected int mDescriptionColumn;
+  protected int mURLColumn;
+
+  @Override
+  protected void bindColumns(Cursor cursor) {
+    mFilenameColumn = cursor.getColumnIndex(AudioVideoTable.COLUMN_FILENAME);
+    mDescriptionColumn = cursor.getColumnIndex(AudioVideoTable.COLUMN_DESCRIPTION);
+    mURLColumn = cursor.getColumnIndex(AudioVideoTable.COLUMN_URL);
+  }
+
+  @Override
+  protected FieldDBFile newRow() {
+    return new FieldDBFile(null, null, null);
+  }
+
+  @Override
+  protected void fillRow(Cursor cursor, FieldDBFile file) {
+    file.filename = getString(cursor, mFilenameColumn);
+    file.description = getString(cursor, mDescriptionColumn);
+    if (file.description == null) {
+      file.description = "";
+    }
+    file.URL = getString(cursor, mURLColumn);
+    if (file.URL == null) {
+      file.URL = file.filename;
+    }
+  }
+}
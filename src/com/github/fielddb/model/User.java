@@ -14,6 +14,8 @@ public class User {
   protected String researchInterest;
   protected String description;
   protected String subtitle;
+  protected String generatedPassword;
+  protected String appVersionsWhenModified;
   protected ArrayList<String> coments;
   protected String actualJSON;
 
@@ -124,6 +126,22 @@ public class User {
     this.subtitle = subtitle;
   }
 
+  public String getGeneratedPassword() {
+    return generatedPassword;
+  }
+
+  public void setGeneratedPassword(String generatedPassword) {
+    this.generatedPassword = generatedPassword;
+  }
+
+  public String getAppVersionsWhenModified() {
+    return appVersionsWhenModified;
+  }
+
+  public void setAppVersionsWhenModified(String appVersionsWhenModified) {
+    this.appVersionsWhenModified = appVersionsWhenModified;
+  }
+
   public ArrayList<String> getComents() {
     return coments;
   }
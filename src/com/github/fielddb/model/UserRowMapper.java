@@ -0,0 +1,64 @@
+package com.github.fielddb.model;
+
+import com.github.fielddb.database.CursorRowMapper;
+import com.github.fielddb.database.UserContentProvider.UserTable;
+
+import android.database.Cursor;
+
+/**
+ * Maps user rows to {@link User}s.
+ */
+public class UserRowMapper extends CursorRowMapper<User> {
+  protected int mIdColumn;
+  protected int mRevColumn;
+  protected int mUsernameColumn;
+  protected int mFirstnameColumn;
+  protected int mLastnameColumn;
+  protected int mEmailColumn;
+  protected int mGravatarColumn;
+  protected int mAffiliationColumn;
+  protected int mResearchInterestColumn;
+  protected int mDescriptionColumn;
+  protected int mSubtitleColumn;
+  protected int mGeneratedPasswordColumn;
+  protected int mAppVersionsWhenModifiedColumn;
+
+  @Override
+  protected void bindColumns(Cursor cursor) {
+    mIdColumn = cursor.getColumnIndex(UserTable.COLUMN_ID);
+    mRevColumn = cursor.getColumnIndex(UserTable.COLUMN_REV);
+    mUsernameColumn = cursor.getColumnIndex(UserTable.COLUMN_USERNAME);
+    mFirstnameColumn = cursor.getColumnIndex(UserTable.COLUMN_FIRSTNAME);
+    mLastnameColumn = cursor.getColumnIndex(UserTable.COLUMN_LASTNAME);
+    mEmailColumn = cursor.getColumnIndex(UserTable.COLUMN_EMAIL);
+    mGravatarColumn = cursor.getColumnIndex(UserTable.COLUMN_GRAVATAR);
+    mAffiliationColumn = cursor.getColumnIndex(UserTable.COLUMN_AFFILIATION);
+    mResearchInterestColumn = cursor.getColumnIndex(UserTable.COLUMN_RESEARCH_INTEREST);
+    mDescriptionColumn = cursor.getColumnIndex(UserTable.COLUMN_DESCRIPTION);
+    mSubtitleColumn = cursor.getColumnIndex(UserTable.COLUMN_SUBTITLE);
+    mGeneratedPasswordColumn = cursor.getColumnIndex(UserTable.COLUMN_GENERATED_PASSWORD);
+    mAppVersionsWhenModifiedColumn = cursor.getColumnIndex(UserTable.COLUMN_APP_VERSIONS_WHEN_MODIFIED);
+  }
+
+  @Override
+  protected User newRow() {
+    return new User(null, null, null, null, null, null, null, null, null, null, null, null, "");
+  }
+
+  @Override
+  protected void fillRow(Cursor cursor, User user) {
+    user._id = getString(cursor, mIdColumn);
+    user._rev = getString(cursor, mRevColumn);
+    user.username = getString(cursor, mUsernameColumn);
+    user.firstname = getString(cursor, mFirstnameColumn);
+    user.lastname = getString(cursor, mLastnameColumn);
+    user.email = getString(cursor, mEmailColumn);
+    user.gravatar = getString(cursor, mGravatarColumn);
+    user.affiliation = getString(cursor, mAffiliationColumn);
+    user.researchInterest = getString(cursor, mResearchInterestColumn);
+    user.description = getString(cursor, mDescriptionColumn);
+    user.subtitle = getString(cursor, mSubtitleColumn);
+    user.generatedPassword = getString(cursor, mGeneratedPasswordColumn);
+    user.appVersionsWhenModified = getString(cursor, mAppVersionsWhenModifiedColumn);
+  }
+}
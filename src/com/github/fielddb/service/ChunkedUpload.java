@@ -0,0 +1,324 @@
+package com.github.fielddb.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.UUID;
+
+import com.github.fielddb.Config;
+import com.github.fielddb.datacollection.HttpTransport;
+import com.github.fielddb.database.AudioVideoContentProvider;
+import com.github.fielddb.database.AudioVideoContentProvider.UploadProgressTable;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * Uploads a recording in chunks which the server acknowledges one at a time,
+ * so a lost connection only costs the chunk which was being sent.
+ *
+ * The upload server is asked (relative to its upload url):
+ * <ul>
+ * <li>POST chunks with the filename, size and upload id: opens the upload, or
+ * finds the one with this id, and replies with the number of bytes it already
+ * has {"offset": n}</li>
+ * <li>PUT chunks/{uploadId} with a Content-Range and the Content-MD5 of the
+ * chunk: the server checks the chunk and replies with its new offset</li>
+ * <li>POST chunks/{uploadId}/complete with the same fields as the single POST
+ * upload: replies the same way the single POST upload does</li>
+ * </ul>
+ * The offset the server acknowledged is saved in the upload progress table
+ * after each chunk, so the upload continues from there after the app was
+ * killed, unless the file has changed since. A server which doesn't know the
+ * chunks url replies 404 or 405, in which case UnsupportedException is thrown
+ * and the caller uploads the file in one POST instead.
+ */
+public class ChunkedUpload {
+  public static int CHUNK_SIZE = 256 * 1024;
+  public static int MAX_CHUNK_ATTEMPTS = 3;
+  public static final String CHUNKS_PATH = "/chunks";
+
+  protected ContentResolver mContentResolver;
+  protected HttpTransport mTransport;
+  protected String mChunksUrl;
+  protected File mFile;
+  protected Uri mProgressUri;
+  protected String mUploadId;
+  protected long mOffset;
+  protected JsonParser mJsonParser = new JsonParser();
+
+  /**
+   * Thrown when the server can't take chunked uploads.
+   */
+  public static class UnsupportedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public UnsupportedException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * @param contentResolver
+   *          to save the progress of the upload
+   * @param transport
+   * @param uploadUrl
+   *          the url the file would be POSTed to in one piece
+   * @param file
+   */
+  public ChunkedUpload(ContentResolver contentResolver, HttpTransport transport, String uploadUrl, File file) {
+    this.mContentResolver = contentResolver;
+    this.mTransport = transport;
+    this.mChunksUrl = uploadUrl + CHUNKS_PATH;
+    this.mFile = file;
+    this.mProgressUri = AudioVideoContentProvider.getUploadUri(file.getName());
+  }
+
+  /**
+   * Sends the rest of the file then completes the upload.
+   *
+   * @param fields
+   *          sent with the completion, as the multipart fields of the single
+   *          POST upload would be
+   * @return the server's response to the completion
+   * @throws UnsupportedException
+   *           if the server doesn't take chunked uploads
+   * @throws IOException
+   *           if the upload stopped, the progress is kept for next time
+   */
+  public String upload(Map<String, String> fields) throws IOException {
+    long startTime = System.currentTimeMillis();
+    this.start();
+    long resumedFrom = mOffset;
+
+    long size = mFile.length();
+    byte[] chunk = new byte[CHUNK_SIZE];
+    int stalledCount = 0;
+    RandomAccessFile input = new RandomAccessFile(mFile, "r");
+    try {
+      while (mOffset < size) {
+        long previousOffset = mOffset;
+        int length = (int) Math.min(CHUNK_SIZE, size - mOffset);
+        input.seek(mOffset);
+        input.readFully(chunk, 0, length);
+        this.sendChunk(chunk, length);
+        /* A server which keeps acknowledging without moving forward would never let the loop end */
+        stalledCount = mOffset > previousOffset ? 0 : stalledCount + 1;
+        if (stalledCount >= MAX_CHUNK_ATTEMPTS) {
+          throw new IOException("the server is not taking the chunks of " + mFile.getName() + " at " + mOffset);
+        }
+      }
+    } finally {
+      input.close();
+    }
+
+    String response = this.complete(fields);
+    mContentResolver.delete(mProgressUri, null, null);
+    Log.d(Config.TAG, "Uploaded " + mFile.getName() + " (" + size + " bytes, resumed from " + resumedFrom + ") in "
+        + (System.currentTimeMillis() - startTime) + "ms");
+    return response;
+  }
+
+  /**
+   * Opens the upload, reusing the saved one if the file hasn't changed since.
+   * The server's offset wins over the saved one, it may have lost the chunks
+   * which weren't acknowledged yet.
+   */
+  protected void start() throws IOException {
+    mUploadId = null;
+    Cursor cursor = mContentResolver.query(mProgressUri, new String[] { UploadProgressTable.COLUMN_UPLOAD_ID,
+        UploadProgressTable.COLUMN_SIZE, UploadProgressTable.COLUMN_MODIFIED }, null, null, null);
+    if (cursor != null) {
+      if (cursor.moveToFirst() && cursor.getLong(1) == mFile.length() && cursor.getLong(2) == mFile.lastModified()) {
+        mUploadId = cursor.getString(0);
+      }
+      cursor.close();
+    }
+    if (mUploadId == null) {
+      mUploadId = UUID.randomUUID().toString();
+    }
+
+    byte[] body = ("filename=" + encode(mFile.getName()) + "&size=" + mFile.length() + "&uploadId="
+        + encode(mUploadId)).getBytes("UTF-8");
+    HttpURLConnection connection = this.open(mChunksUrl, "POST");
+    try {
+      connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+      this.write(connection, body, body.length);
+      int status = connection.getResponseCode();
+      if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_BAD_METHOD) {
+        throw new UnsupportedException("the server replied " + status + " to " + mChunksUrl);
+      }
+      if (status / 100 != 2) {
+        throw new IOException("the server replied " + status + " when starting the upload of " + mFile.getName());
+      }
+      mOffset = this.readOffset(connection);
+    } finally {
+      HttpTransport.release(connection);
+    }
+    this.saveProgress();
+  }
+
+  /**
+   * Sends the chunk at the current offset, trying again a few times if it
+   * doesn't arrive intact. A 409 means the server has a different offset than
+   * the one the chunk was for, the upload carries on from the server's.
+   */
+  protected void sendChunk(byte[] chunk, int length) throws IOException {
+    String checksum = Base64.encodeToString(md5(chunk, length), Base64.NO_WRAP);
+    String contentRange = "bytes " + mOffset + "-" + (mOffset + length - 1) + "/" + mFile.length();
+    IOException lastError = null;
+    for (int attempt = 1; attempt <= MAX_CHUNK_ATTEMPTS; attempt++) {
+      HttpURLConnection connection = null;
+      try {
+        connection = this.open(mChunksUrl + "/" + encode(mUploadId), "PUT");
+        connection.setRequestProperty("Content-Type", "application/octet-stream");
+        connection.setRequestProperty("Content-Range", contentRange);
+        connection.setRequestProperty("Content-MD5", checksum);
+        connection.setFixedLengthStreamingMode(length);
+        this.write(connection, chunk, length);
+        int status = connection.getResponseCode();
+        if (status / 100 == 2 || status == HttpURLConnection.HTTP_CONFLICT) {
+          long offset = this.readOffset(connection);
+          if (Config.D) {
+            Log.d(Config.TAG, "Sent " + contentRange + " of " + mFile.getName() + ", the server is at " + offset);
+          }
+          mOffset = offset;
+          this.saveProgress();
+          return;
+        }
+        lastError = new IOException("the server replied " + status + " to " + contentRange);
+      } catch (IOException e) {
+        lastError = e;
+      } finally {
+        if (connection != null) {
+          HttpTransport.release(connection);
+        }
+      }
+      Log.w(Config.TAG, "Attempt " + attempt + " to send " + contentRange + " of " + mFile.getName() + " failed "
+          + lastError);
+    }
+    throw lastError;
+  }
+
+  protected String complete(Map<String, String> fields) throws IOException {
+    StringBuilder body = new StringBuilder();
+    for (Map.Entry<String, String> field : fields.entrySet()) {
+      if (body.length() > 0) {
+        body.append('&');
+      }
+      body.append(encode(field.getKey())).append('=').append(encode(field.getValue()));
+    }
+    byte[] bytes = body.toString().getBytes("UTF-8");
+    HttpURLConnection connection = this.open(mChunksUrl + "/" + encode(mUploadId) + "/complete", "POST");
+    try {
+      connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+      this.write(connection, bytes, bytes.length);
+      int status = connection.getResponseCode();
+      if (status / 100 != 2) {
+        throw new IOException("the server replied " + status + " when completing the upload of " + mFile.getName());
+      }
+      return read(connection.getInputStream());
+    } finally {
+      HttpTransport.release(connection);
+    }
+  }
+
+  protected void saveProgress() {
+    ContentValues values = new ContentValues();
+    values.put(UploadProgressTable.COLUMN_UPLOAD_ID, mUploadId);
+    values.put(UploadProgressTable.COLUMN_SIZE, mFile.length());
+    values.put(UploadProgressTable.COLUMN_MODIFIED, mFile.lastModified());
+    values.put(UploadProgressTable.COLUMN_OFFSET, mOffset);
+    mContentResolver.update(mProgressUri, values, null, null);
+  }
+
+  protected HttpURLConnection open(String url, String method) throws IOException {
+    HttpURLConnection connection = mTransport.open(new URL(url), HttpTransport.UPLOAD_READ_TIMEOUT_MILLIS);
+    connection.setRequestMethod(method);
+    connection.setRequestProperty("Accept", "application/json");
+    connection.setUseCaches(false);
+    connection.setDoOutput(true);
+    return connection;
+  }
+
+  protected void write(HttpURLConnection connection, byte[] bytes, int length) throws IOException {
+    OutputStream output = connection.getOutputStream();
+    try {
+      output.write(bytes, 0, length);
+    } finally {
+      output.close();
+    }
+  }
+
+  /**
+   * @return the offset the server replied with, which can't be past the end of
+   *         the file nor behind the start
+   */
+  protected long readOffset(HttpURLConnection connection) throws IOException {
+    InputStream in = connection.getResponseCode() / 100 == 2 ? connection.getInputStream() : connection
+        .getErrorStream();
+    if (in == null) {
+      throw new IOException("the server didn't say which offset it is at");
+    }
+    String response = read(in);
+    long offset;
+    try {
+      JsonElement json = mJsonParser.parse(response);
+      JsonElement offsetJson = json.isJsonObject() ? json.getAsJsonObject().get("offset") : null;
+      if (offsetJson == null || !offsetJson.isJsonPrimitive() || !offsetJson.getAsJsonPrimitive().isNumber()) {
+        throw new IOException("the server replied without an offset: " + response);
+      }
+      offset = offsetJson.getAsLong();
+    } catch (RuntimeException e) {
+      throw new IOException("the server's reply was not understood: " + response);
+    }
+    if (offset < 0 || offset > mFile.length()) {
+      throw new IOException("the server replied an invalid offset: " + response);
+    }
+    return offset;
+  }
+
+  public static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    try {
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        response.write(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    return response.toString("UTF-8");
+  }
+
+  public static byte[] md5(byte[] bytes, int length) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      digest.update(bytes, 0, length);
+      return digest.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("MD5 is not available", e);
+    }
+  }
+
+  protected static String encode(String value) throws UnsupportedEncodingException {
+    return URLEncoder.encode(value == null ? "" : value, "UTF-8");
+  }
+}
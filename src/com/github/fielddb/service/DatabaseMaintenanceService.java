@@ -0,0 +1,96 @@
+package com.github.fielddb.service;
+
+import com.github.fielddb.Config;
+import com.github.fielddb.database.AudioVideoContentProvider;
+import com.github.fielddb.database.DatumContentProvider;
+import com.github.fielddb.database.FieldDBContentProvider;
+
+import android.annotation.SuppressLint;
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps the database small: purges the datum which have been in the trash
+ * long enough (see DatumContentProvider.purge), removes the audio/video rows
+ * which no datum has used for a while (see AudioVideoContentProvider.purge),
+ * then gives the free pages back to the file system and refreshes the query
+ * planner statistics. Runs about once a day, the results of the last run are
+ * kept in the preferences.
+ */
+public class DatabaseMaintenanceService extends IntentService {
+  public static final String PREFERENCE_LAST_RUN_AT = "lastMaintenanceRunAt";
+  public static final String PREFERENCE_LAST_RUN_ROWS_PURGED = "lastMaintenanceRowsPurged";
+  public static final String PREFERENCE_LAST_RUN_BYTES_RECLAIMED = "lastMaintenanceBytesReclaimed";
+  public static final String PREFERENCE_LAST_RUN_DURATION = "lastMaintenanceDuration";
+
+  public DatabaseMaintenanceService(String name) {
+    super(name);
+  }
+
+  public DatabaseMaintenanceService() {
+    super("DatabaseMaintenanceService");
+  }
+
+  /**
+   * Schedules the maintenance once a day, when the device is awake anyway.
+   * Scheduling again replaces the previous schedule.
+   *
+   * @param context
+   */
+  public static void schedule(Context context) {
+    Intent maintenance = new Intent(context, DatabaseMaintenanceService.class);
+    PendingIntent pendingIntent = PendingIntent.getService(context, 0, maintenance,
+        PendingIntent.FLAG_UPDATE_CURRENT);
+    AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime()
+        + AlarmManager.INTERVAL_HOUR, AlarmManager.INTERVAL_DAY, pendingIntent);
+  }
+
+  @SuppressLint("NewApi")
+  @Override
+  protected void onHandleIntent(Intent intent) {
+    if (Build.VERSION.SDK_INT < 11) {
+      Log.d(Config.TAG, "Database maintenance needs ContentProvider.call, not running it on this device.");
+      return;
+    }
+    long startTime = System.currentTimeMillis();
+    Bundle extras = new Bundle();
+
+    /* The datum are purged first, their media files are then orphaned */
+    Bundle datumResult = getContentResolver().call(DatumContentProvider.CONTENT_URI,
+        FieldDBContentProvider.METHOD_RUN_MAINTENANCE, null, extras);
+    Bundle audioVideoResult = getContentResolver().call(AudioVideoContentProvider.CONTENT_URI,
+        FieldDBContentProvider.METHOD_RUN_MAINTENANCE, null, extras);
+
+    int rowsPurged = 0;
+    long bytesReclaimed = 0;
+    for (Bundle result : new Bundle[] { datumResult, audioVideoResult }) {
+      if (result != null) {
+        rowsPurged += result.getInt(FieldDBContentProvider.EXTRA_ROWS_PURGED);
+        bytesReclaimed += result.getLong(FieldDBContentProvider.EXTRA_BYTES_RECLAIMED);
+      }
+    }
+    long duration = System.currentTimeMillis() - startTime;
+
+    SharedPreferences prefs = getSharedPreferences(Config.PREFERENCE_NAME, MODE_PRIVATE);
+    SharedPreferences.Editor editor = prefs.edit();
+    editor.putLong(PREFERENCE_LAST_RUN_AT, startTime);
+    editor.putInt(PREFERENCE_LAST_RUN_ROWS_PURGED, rowsPurged);
+    editor.putLong(PREFERENCE_LAST_RUN_BYTES_RECLAIMED, bytesReclaimed);
+    editor.putLong(PREFERENCE_LAST_RUN_DURATION, duration);
+    editor.commit();
+
+    Log.d(Config.TAG, "Database maintenance purged " + rowsPurged + " rows and reclaimed " + bytesReclaimed
+        + " bytes in " + duration + "ms");
+    com.github.fielddb.model.Activity.sendActivity("databaseMaintenance", rowsPurged + " rows " + bytesReclaimed
+        + " bytes " + duration + "ms");
+  }
+}
@@ -1,36 +1,45 @@
 package com.github.fielddb.service;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 
 import com.github.fielddb.Config;
 import com.github.fielddb.database.AudioVideoContentProvider;
 import com.github.fielddb.database.DatumContentProvider;
 import com.github.fielddb.database.AudioVideoContentProvider.AudioVideoTable;
 import com.github.fielddb.database.DatumContentProvider.DatumTable;
+import com.github.fielddb.database.DatumContentProvider.SyncCheckpointTable;
 import com.github.fielddb.datacollection.NotifyingIntentService;
 import com.github.fielddb.BugReporter;
-import com.github.fielddb.R;
-import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
 
 import android.annotation.SuppressLint;
 import android.app.NotificationManager;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.CursorLoader;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.RemoteException;
 import android.util.Log;
 
 /**
@@ -39,12 +48,30 @@ import android.util.Log;
  * IF you want to download even when not on wifi you must pass -
  * Config.EXTRA_CONNECTIVITY set to "all"
  * 
+ * With Config.EXTRA_INCREMENTAL_SYNC set to true only the datum which were
+ * added, changed or deleted since the last sync are downloaded, from the
+ * corpus' _changes feed (filtered by the sample data view) and from the
+ * unfiltered _changes feed, which has their deletions.
  */
 public class DownloadDatumsService extends NotifyingIntentService {
+  /* How many new samples are held in memory before they are saved */
+  public static int INGEST_BATCH_SIZE = 100;
+  /* How long the sync waits for the media downloads, the rest are resumed next time */
+  public static long MEDIA_DOWNLOADS_TIMEOUT_MILLIS = 10 * 60 * 1000;
+  /* The design doc and view which pick the sample data out of the corpus */
+  public static final String SAMPLE_DATA_VIEW = "learnx/byTag";
+  /* Added to the _changes url for the checkpoint of the deletions, which are read from the unfiltered feed */
+  public static final String DELETIONS_CHECKPOINT_SUFFIX = "#deletions";
   String datumTagToDownload;
   String urlStringSampleDataDownload;
-  JsonArray resultsJSON;
-  ArrayList<String> additionalDownloads;
+  String urlStringChangesDownload;
+  int additionalDownloadsCount;
+  int insertedCount;
+  int updatedCount;
+  int unchangedCount;
+  /* The media urls of the datum in the batch being saved, by id */
+  HashMap<String, String> pendingMedia = new HashMap<String, String>();
+  MediaDownloadPool mediaDownloads;
 
   public DownloadDatumsService(String name) {
     super(name);
@@ -73,7 +100,6 @@ public class DownloadDatumsService extends NotifyingIntentService {
 
     this.statusMessage = "Downloading samples " + Config.USER_FRIENDLY_DATA_NAME;
     this.tryAgain = intent;
-    this.keystoreResourceId = R.raw.sslkeystore;
     if (Config.D) {
       Log.d(Config.TAG, "Inside DownloadDatumsService intent");
     }
@@ -105,14 +131,20 @@ public class DownloadDatumsService extends NotifyingIntentService {
       return;
     }
 
-    this.getSampleData();
-    if (!"".equals(this.userFriendlyErrorMessage)) {
-      this.notifyUser(" " + this.userFriendlyErrorMessage, this.noti, this.notificationId, true);
-      BugReporter.sendBugReport(this.userFriendlyErrorMessage);
-      return;
+    this.mediaDownloads = new MediaDownloadPool(new File(Config.DEFAULT_OUTPUT_DIRECTORY), this.transport);
+    try {
+      if (intent.getBooleanExtra(Config.EXTRA_INCREMENTAL_SYNC, false)) {
+        this.urlStringChangesDownload = Config.DEFAULT_SAMPLE_DATA_CHANGES_URL;
+        this.syncChanges();
+      } else {
+        this.getSampleData();
+      }
+    } finally {
+      /* The service stops once this returns, let the media downloads finish */
+      this.mediaDownloads.finish(MEDIA_DOWNLOADS_TIMEOUT_MILLIS);
+      this.mediaDownloads = null;
+      this.transport.logStatistics("Sample data sync");
     }
-
-    this.processCouchDBMapResponse();
     if (!"".equals(this.userFriendlyErrorMessage)) {
       this.notifyUser(" " + this.userFriendlyErrorMessage, this.noti, this.notificationId, true);
       BugReporter.sendBugReport(this.userFriendlyErrorMessage);
@@ -121,10 +153,32 @@ public class DownloadDatumsService extends NotifyingIntentService {
 
     /* Success: remove the notification */
     ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).cancel(this.notificationId);
-    com.github.fielddb.model.Activity.sendActivity("downloadDatums:::" + datumTagToDownload, "{}",
+    com.github.fielddb.model.Activity.sendActivity("downloadDatums:::" + datumTagToDownload, this.getCountsAsJson(),
         "*** Downloaded data sucessfully ***");
   }
 
+  protected void resetCounts() {
+    this.additionalDownloadsCount = 0;
+    this.insertedCount = 0;
+    this.updatedCount = 0;
+    this.unchangedCount = 0;
+  }
+
+  /**
+   * @return how many datum the sync inserted, updated and left unchanged
+   */
+  public String getCountsAsJson() {
+    JsonObject counts = new JsonObject();
+    counts.addProperty("inserted", this.insertedCount);
+    counts.addProperty("updated", this.updatedCount);
+    counts.addProperty("unchanged", this.unchangedCount);
+    return counts.toString();
+  }
+
+  /**
+   * Downloads the sample data and saves it as it is read, one row at a time,
+   * so the response never has to fit in memory.
+   */
   public void getSampleData() {
     URL url;
     try {
@@ -138,7 +192,7 @@ public class DownloadDatumsService extends NotifyingIntentService {
     this.notifyUser(this.statusMessage, this.noti, notificationId, false);
     HttpURLConnection urlConnection;
     try {
-      urlConnection = (HttpURLConnection) url.openConnection();
+      urlConnection = this.openConnection(url);
       urlConnection.setRequestMethod("GET");
       urlConnection.connect();
     } catch (IOException e) {
@@ -147,84 +201,86 @@ public class DownloadDatumsService extends NotifyingIntentService {
       return;
     }
 
-    String JSONResponse = this.processResponse(url, urlConnection);
-    if (!"".equals(this.userFriendlyErrorMessage)) {
+    InputStream in = this.openResponseStream(url, urlConnection);
+    if (in == null) {
+      if ("".equals(this.userFriendlyErrorMessage)) {
+        this.userFriendlyErrorMessage = "Unknown error reading sample data from server";
+      }
       return;
     }
-    if (JSONResponse == null) {
-      this.userFriendlyErrorMessage = "Unknown error reading sample data from server";
-      return;
+    try {
+      if (!"".equals(this.userFriendlyErrorMessage)) {
+        return;
+      }
+      this.processCouchDBMapResponse(new JsonReader(new InputStreamReader(in, "UTF-8")));
+    } catch (IOException e) {
+      e.printStackTrace();
+      this.userFriendlyErrorMessage = "Problem reading the sample data from the server.";
+    } catch (JsonParseException e) {
+      e.printStackTrace();
+      this.userFriendlyErrorMessage = "The sample data from the server was not readable, please report this.";
+    } catch (IllegalStateException e) {
+      e.printStackTrace();
+      this.userFriendlyErrorMessage = "The sample data from the server was not readable, please report this.";
+    } finally {
+      try {
+        in.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
     }
-    JsonObject json = (JsonObject) DownloadDatumsService.jsonParser.parse(JSONResponse);
-    this.resultsJSON = json.getAsJsonArray("rows");
-    return;
   }
 
-  public void processCouchDBMapResponse() {
-    if (this.resultsJSON == null || this.resultsJSON.size() == 0) {
-      this.userFriendlyErrorMessage = "The sample data was empty, please report this.";
-      return;
-    }
+  /**
+   * Reads the rows of a CouchDB map response as they arrive and saves them in
+   * batches of INGEST_BATCH_SIZE, so only one batch is ever held in memory
+   * whatever the size of the response (see saveDatums).
+   *
+   * @param reader
+   *          positioned at the start of the response
+   * @throws IOException
+   */
+  public void processCouchDBMapResponse(JsonReader reader) throws IOException {
     this.statusMessage = "Processing response...";
     this.notifyUser(this.statusMessage, this.noti, notificationId, false);
 
-    JsonObject datumJson;
-    String id = "";
-    Uri uri;
-    String[] datumProjection = { DatumTable.COLUMN_ID };
-    Cursor cursor;
-    String mediaFilesAsString = "";
-    ContentValues datumAsValues;
-    additionalDownloads = new ArrayList<String>();
-    for (int row = 0; row < this.resultsJSON.size(); row++) {
-      datumJson = (JsonObject) this.resultsJSON.get(row);
-      datumJson = datumJson.getAsJsonObject("value");
-      id = datumJson.get("_id").getAsString();
-      uri = Uri.withAppendedPath(DatumContentProvider.CONTENT_URI, id);
-      cursor = getContentResolver().query(uri, datumProjection, null, null, null);
-
-      // TODO instead, update it, without losing info
-      if (cursor == null || cursor.getCount() <= 0) {
-        /* save it */
-        try {
-          datumAsValues = new ContentValues();
-          datumAsValues.put(DatumTable.COLUMN_ID, id);
-          datumAsValues.put(DatumTable.COLUMN_REV, datumJson.get("_rev").getAsString());
-          datumAsValues.put(DatumTable.COLUMN_CREATED_AT, datumJson.get("created_at").getAsString());
-          datumAsValues.put(DatumTable.COLUMN_UPDATED_AT, datumJson.get("updated_at").getAsString());
-          datumAsValues.put(DatumTable.COLUMN_APP_VERSIONS_WHEN_MODIFIED, datumJson.get("appVersionsWhenModified")
-              .getAsString());
-          datumAsValues.put(DatumTable.COLUMN_RELATED, datumJson.get("related").getAsString());
-
-          datumAsValues.put(DatumTable.COLUMN_UTTERANCE, datumJson.get("utterance").getAsString());
-          datumAsValues.put(DatumTable.COLUMN_MORPHEMES, datumJson.get("morphemes").getAsString());
-          datumAsValues.put(DatumTable.COLUMN_GLOSS, datumJson.get("gloss").getAsString());
-          datumAsValues.put(DatumTable.COLUMN_TRANSLATION, datumJson.get("translation").getAsString());
-          datumAsValues.put(DatumTable.COLUMN_ORTHOGRAPHY, datumJson.get("orthography").getAsString());
-          datumAsValues.put(DatumTable.COLUMN_CONTEXT, datumJson.get("context").getAsString());
-          datumAsValues.put(DatumTable.COLUMN_TAGS, datumJson.get("tags").getAsString());
-          datumAsValues.put(DatumTable.COLUMN_VALIDATION_STATUS, datumJson.get("validationStatus").getAsString());
-          datumAsValues.put(DatumTable.COLUMN_ENTERED_BY_USER, datumJson.get("enteredByUser").getAsString());
-          datumAsValues.put(DatumTable.COLUMN_MODIFIED_BY_USER, datumJson.get("modifiedByUser").getAsString());
-          datumAsValues.put(DatumTable.COLUMN_COMMENTS, datumJson.get("comments").getAsString());
-
-          mediaFilesAsString = datumJson.get("images").getAsString();
-          mediaFilesAsString = this.addAdditionalDownloads(mediaFilesAsString);
-          datumAsValues.put(DatumTable.COLUMN_IMAGE_FILES, mediaFilesAsString);
-
-          mediaFilesAsString = datumJson.get("audioVideo").getAsString();
-          mediaFilesAsString = this.addAdditionalDownloads(mediaFilesAsString);
-          datumAsValues.put(DatumTable.COLUMN_AUDIO_VIDEO_FILES, mediaFilesAsString);
-
-          uri = getContentResolver().insert(DatumContentProvider.CONTENT_URI, datumAsValues);
-        } catch (Exception e) {
-          Log.d(Config.TAG, "Failed to insert this sample most likely something was missing from the server...");
-          e.printStackTrace();
+    long startTime = System.currentTimeMillis();
+    int rowCount = 0;
+    this.resetCounts();
+    ArrayList<ContentValues> datums = new ArrayList<ContentValues>(INGEST_BATCH_SIZE);
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (!"rows".equals(reader.nextName())) {
+        reader.skipValue();
+        continue;
+      }
+      reader.beginArray();
+      while (reader.hasNext()) {
+        JsonObject row = jsonParser.parse(reader).getAsJsonObject();
+        rowCount++;
+        ContentValues datumAsValues = this.getDatumValues(row.getAsJsonObject("value"));
+        if (datumAsValues != null) {
+          datums.add(datumAsValues);
+        }
+        if (datums.size() >= INGEST_BATCH_SIZE) {
+          this.saveDatums(datums);
+          this.notifyUser("Processed " + rowCount + " " + Config.USER_FRIENDLY_DATA_NAME, this.noti,
+              notificationId, false);
         }
       }
+      reader.endArray();
     }
+    reader.endObject();
+    this.saveDatums(datums);
 
-    if (this.additionalDownloads.size() > 0) {
+    if (rowCount == 0) {
+      this.userFriendlyErrorMessage = "The sample data was empty, please report this.";
+      return;
+    }
+    Log.d(Config.TAG, "Read " + rowCount + " rows in " + (System.currentTimeMillis() - startTime) + "ms, "
+        + this.getCountsAsJson());
+
+    if (this.additionalDownloadsCount > 0) {
       Log.d(Config.TAG, "TODO download the image and audio files through a filter that makes them smaller... ");
     }
     // BugReporter.handleException(
@@ -232,89 +288,588 @@ public class DownloadDatumsService extends NotifyingIntentService {
     return;
   }
 
-  public void downloadMediaFile(String mediaFileUrl) {
-    if (mediaFileUrl == null || "".equals(mediaFileUrl)) {
-      Log.d(Config.TAG, "Not re-requesting download of media file, it is a blank string");
+  /**
+   * @param datumJson
+   *          a datum as the sample data view or the _changes feed return it
+   * @return the datum as values to save, or null if it couldn't be read
+   */
+  protected ContentValues getDatumValues(JsonObject datumJson) {
+    try {
+      ContentValues datumAsValues = new ContentValues();
+      datumAsValues.put(DatumTable.COLUMN_ID, datumJson.get("_id").getAsString());
+      datumAsValues.put(DatumTable.COLUMN_REV, datumJson.get("_rev").getAsString());
+      datumAsValues.put(DatumTable.COLUMN_CREATED_AT, getString(datumJson, "created_at"));
+      datumAsValues.put(DatumTable.COLUMN_UPDATED_AT, getString(datumJson, "updated_at"));
+      datumAsValues.put(DatumTable.COLUMN_APP_VERSIONS_WHEN_MODIFIED, getString(datumJson, "appVersionsWhenModified"));
+      datumAsValues.put(DatumTable.COLUMN_RELATED, getString(datumJson, "related"));
+
+      datumAsValues.put(DatumTable.COLUMN_UTTERANCE, getString(datumJson, "utterance"));
+      datumAsValues.put(DatumTable.COLUMN_MORPHEMES, getString(datumJson, "morphemes"));
+      datumAsValues.put(DatumTable.COLUMN_GLOSS, getString(datumJson, "gloss"));
+      datumAsValues.put(DatumTable.COLUMN_TRANSLATION, getString(datumJson, "translation"));
+      datumAsValues.put(DatumTable.COLUMN_ORTHOGRAPHY, getString(datumJson, "orthography"));
+      datumAsValues.put(DatumTable.COLUMN_CONTEXT, getString(datumJson, "context"));
+      datumAsValues.put(DatumTable.COLUMN_TAGS, getString(datumJson, "tags"));
+      datumAsValues.put(DatumTable.COLUMN_VALIDATION_STATUS, getString(datumJson, "validationStatus"));
+      datumAsValues.put(DatumTable.COLUMN_ENTERED_BY_USER, getString(datumJson, "enteredByUser"));
+      datumAsValues.put(DatumTable.COLUMN_MODIFIED_BY_USER, getString(datumJson, "modifiedByUser"));
+      datumAsValues.put(DatumTable.COLUMN_COMMENTS, getString(datumJson, "comments"));
+
+      /* The media are downloaded once the datum is saved, if it changed */
+      String imageUrls = getString(datumJson, "images");
+      String audioVideoUrls = getString(datumJson, "audioVideo");
+      datumAsValues.put(DatumTable.COLUMN_IMAGE_FILES, "".equals(imageUrls) ? "" : getFilenames(imageUrls));
+      datumAsValues.put(DatumTable.COLUMN_AUDIO_VIDEO_FILES, "".equals(audioVideoUrls) ? ""
+          : getFilenames(audioVideoUrls));
+      String mediaUrls = imageUrls;
+      if (!"".equals(audioVideoUrls)) {
+        mediaUrls = "".equals(mediaUrls) ? audioVideoUrls : mediaUrls + "," + audioVideoUrls;
+      }
+      this.pendingMedia.put(datumAsValues.getAsString(DatumTable.COLUMN_ID), mediaUrls);
+      /* Keep the whole document, the provider stores it compressed */
+      datumAsValues.put(DatumTable.COLUMN_ACTUAL_JSON, datumJson.toString());
+      return datumAsValues;
+    } catch (Exception e) {
+      Log.d(Config.TAG, "Failed to insert this sample most likely something was missing from the server...");
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Reads a field as a string whichever way the server wrote it: lists of
+   * files (or of strings) are joined with commas, missing fields are blank.
+   */
+  public static String getString(JsonObject json, String field) {
+    JsonElement value = json.get(field);
+    if (value == null || value.isJsonNull()) {
+      return "";
+    }
+    if (value.isJsonPrimitive()) {
+      return value.getAsString();
+    }
+    if (!value.isJsonArray()) {
+      return value.toString();
+    }
+    StringBuilder joined = new StringBuilder();
+    for (JsonElement item : value.getAsJsonArray()) {
+      String itemAsString = null;
+      if (item.isJsonPrimitive()) {
+        itemAsString = item.getAsString();
+      } else if (item.isJsonObject() && item.getAsJsonObject().has("filename")) {
+        itemAsString = item.getAsJsonObject().get("filename").getAsString();
+      }
+      if (itemAsString == null || "".equals(itemAsString)) {
+        continue;
+      }
+      if (joined.length() > 0) {
+        joined.append(",");
+      }
+      joined.append(itemAsString);
+    }
+    return joined.toString();
+  }
+
+  /**
+   * Saves a batch of samples and empties it: new samples are inserted, the
+   * ones whose revision changed on the server are updated and the others are
+   * left alone, in one transaction. Then the media of the saved samples are
+   * downloaded.
+   */
+  @SuppressLint("NewApi")
+  protected void saveDatums(ArrayList<ContentValues> datums) {
+    if (datums.size() == 0) {
       return;
     }
-    /*
-     * TODO sanitize url and filename and size or something... to ensure its not
-     * dangerous
-     */
-    String filename = Uri.parse(mediaFileUrl).getLastPathSegment();
+    ContentValues[] rows = datums.toArray(new ContentValues[datums.size()]);
+    datums.clear();
+    if (Build.VERSION.SDK_INT < 11) {
+      /* ContentResolver.call needs Android 3.0, older devices only get the new samples */
+      ArrayList<ContentValues> newDatums = new ArrayList<ContentValues>();
+      ArrayList<String> newIds = new ArrayList<String>();
+      for (ContentValues row : rows) {
+        String id = row.getAsString(DatumTable.COLUMN_ID);
+        if (!this.isSaved(Uri.withAppendedPath(DatumContentProvider.CONTENT_URI, id))) {
+          newDatums.add(row);
+          newIds.add(id);
+        }
+      }
+      int insertedCount = 0;
+      if (newDatums.size() > 0) {
+        insertedCount = getContentResolver().bulkInsert(DatumContentProvider.CONTENT_URI,
+            newDatums.toArray(new ContentValues[newDatums.size()]));
+      }
+      this.insertedCount += insertedCount;
+      this.unchangedCount += rows.length - newDatums.size();
+      this.downloadMedia(newIds);
+      return;
+    }
+
+    Bundle extras = new Bundle();
+    extras.putParcelableArray(DatumContentProvider.EXTRA_VALUES, rows);
+    Bundle result = getContentResolver().call(DatumContentProvider.CONTENT_URI, DatumContentProvider.METHOD_UPSERT,
+        null, extras);
+    if (result == null) {
+      this.pendingMedia.clear();
+      return;
+    }
+    this.insertedCount += result.getInt(DatumContentProvider.EXTRA_INSERTED);
+    this.updatedCount += result.getInt(DatumContentProvider.EXTRA_UPDATED);
+    this.unchangedCount += result.getInt(DatumContentProvider.EXTRA_UNCHANGED);
+    this.downloadMedia(result.getStringArrayList(DatumContentProvider.EXTRA_SAVED_IDS));
+  }
+
+  /**
+   * Downloads the media files of the datum which were saved, the media of the
+   * datum which were unchanged are already there.
+   *
+   * @param savedIds
+   */
+  protected void downloadMedia(Collection<String> savedIds) {
+    if (savedIds != null) {
+      for (String id : savedIds) {
+        String urls = this.pendingMedia.get(id);
+        if (urls != null && !"".equals(urls)) {
+          this.addAdditionalDownloads(urls);
+        }
+      }
+    }
+    this.pendingMedia.clear();
+  }
+
+  /**
+   * @return the filenames of the comma separated media urls, as they are
+   *         saved in the datum
+   */
+  public static String getFilenames(String commadelimitedUrls) {
+    String filenames = "";
+    for (String url : commadelimitedUrls.split(",")) {
+      url = url.replaceAll("SERVER_URL", Config.DEFAULT_DATA_SERVER_URL);
+      if (!"".equals(filenames)) {
+        filenames = filenames + ",";
+      }
+      filenames = filenames + Uri.parse(url).getLastPathSegment();
+    }
+    return filenames;
+  }
 
-    if ((new File(Config.DEFAULT_OUTPUT_DIRECTORY + "/" + filename)).exists()) {
-      Log.d(Config.TAG, "Not re-requesting download of " + mediaFileUrl + " a file with this name already exists...");
+  /**
+   * Incremental sync: reads the corpus' _changes feed from the checkpoint of
+   * the last sync, and saves the datum which were added, changed or deleted
+   * since then. A sync with nothing new only downloads the feed's last_seq.
+   *
+   * The feed is filtered by the sample data view, which a deleted document
+   * doesn't emit anything in, so the view filtered feed never has the
+   * deletions. They are read from a second feed, see syncDeletions.
+   */
+  public void syncChanges() {
+    this.resetCounts();
+    String since = this.getCheckpoint(this.urlStringChangesDownload);
+    URL url;
+    try {
+      url = new URL(this.urlStringChangesDownload + "?filter=_view&view=" + SAMPLE_DATA_VIEW
+          + "&include_docs=true&since=" + URLEncoder.encode(since, "UTF-8"));
+    } catch (Exception e) {
+      e.printStackTrace();
+      this.userFriendlyErrorMessage = "Problem determining which server to contact, please report this error.";
+      return;
+    }
+    if (Config.D) {
+      Log.d(Config.TAG, "Syncing changes since " + since);
+    }
+    this.readChangesFeed(url, this.urlStringChangesDownload);
+    if (!"".equals(this.userFriendlyErrorMessage)) {
       return;
     }
+    /*
+     * Nothing was saved before the first sync, so the deletions before the end
+     * of its view filtered feed don't matter
+     */
+    this.syncDeletions("0".equals(since) ? this.getCheckpoint(this.urlStringChangesDownload) : since);
+  }
 
+  /**
+   * Reads the deletions from the unfiltered _changes feed, from its own
+   * checkpoint. Without include_docs each change is only its id, seq and revs,
+   * so a sync with nothing new only downloads the feed's last_seq. The
+   * deletions of datum which aren't saved are left out by the provider, which
+   * only trashes the saved datum.
+   *
+   * This runs after the view filtered feed, so its checkpoint is never ahead
+   * of the other: a datum which the view filtered feed saves was either
+   * deleted after the view filtered feed's checkpoint or not at all.
+   *
+   * @param defaultSince
+   *          where the feed starts if it has no checkpoint yet
+   */
+  public void syncDeletions(String defaultSince) {
+    String source = this.urlStringChangesDownload + DELETIONS_CHECKPOINT_SUFFIX;
+    String since = this.getCheckpoint(source, defaultSince);
     URL url;
     try {
-      url = new URL(mediaFileUrl);
-    } catch (MalformedURLException e) {
+      url = new URL(this.urlStringChangesDownload + "?since=" + URLEncoder.encode(since, "UTF-8"));
+    } catch (Exception e) {
       e.printStackTrace();
-      this.userFriendlyErrorMessage = "Problem determining which server to contact for media data, please report this error."
-          + mediaFileUrl;
+      this.userFriendlyErrorMessage = "Problem determining which server to contact, please report this error.";
       return;
     }
+    if (Config.D) {
+      Log.d(Config.TAG, "Syncing deletions since " + since);
+    }
+    this.readChangesFeed(url, source);
+  }
+
+  /**
+   * Requests a _changes feed and applies the changes as they arrive (see
+   * processChangesResponse).
+   *
+   * @param source
+   *          the feed, which the checkpoint is saved under
+   */
+  protected void readChangesFeed(URL url, String source) {
     this.statusMessage = "Contacting server...";
     this.notifyUser(this.statusMessage, this.noti, notificationId, false);
     HttpURLConnection urlConnection;
     try {
-      urlConnection = (HttpURLConnection) url.openConnection();
+      urlConnection = this.openConnection(url);
       urlConnection.setRequestMethod("GET");
       urlConnection.connect();
     } catch (IOException e) {
       e.printStackTrace();
-      this.userFriendlyErrorMessage = "Problem contacting the server to download media data.";
+      this.userFriendlyErrorMessage = "Problem contacting the server to download sample data.";
       return;
     }
-    if (!url.getHost().equals(urlConnection.getURL().getHost())) {
-      Log.d(Config.TAG, "We were redirected! Kick the user out to the browser to sign on?");
-    }
 
-    /* Open the input or error stream */
-    int status;
+    InputStream in = this.openResponseStream(url, urlConnection);
+    if (in == null) {
+      if ("".equals(this.userFriendlyErrorMessage)) {
+        this.userFriendlyErrorMessage = "Unknown error reading sample data from server";
+      }
+      return;
+    }
     try {
-      status = urlConnection.getResponseCode();
+      if (!"".equals(this.userFriendlyErrorMessage)) {
+        return;
+      }
+      this.processChangesResponse(new JsonReader(new InputStreamReader(in, "UTF-8")), source);
     } catch (IOException e) {
       e.printStackTrace();
-      this.userFriendlyErrorMessage = "Problem getting server resonse code for media file.";
-      return;
-    }
-    if (Config.D) {
-      Log.d(Config.TAG, "Server status code " + status);
+      this.userFriendlyErrorMessage = "Problem reading the sample data from the server.";
+    } catch (JsonParseException e) {
+      e.printStackTrace();
+      this.userFriendlyErrorMessage = "The sample data from the server was not readable, please report this.";
+    } catch (IllegalStateException e) {
+      e.printStackTrace();
+      this.userFriendlyErrorMessage = "The sample data from the server was not readable, please report this.";
+    } finally {
+      try {
+        in.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
     }
-    this.statusMessage = "Downloading...";
+  }
+
+  /**
+   * Applies the changes as they are read, INGEST_BATCH_SIZE at a time. Each
+   * batch is saved in one transaction together with the seq of its last
+   * change, so the checkpoint never gets ahead of the datum.
+   *
+   * @param reader
+   *          positioned at the start of the _changes response
+   * @param source
+   *          the feed, which the checkpoint is saved under
+   * @throws IOException
+   */
+  public void processChangesResponse(JsonReader reader, String source) throws IOException {
+    this.statusMessage = "Processing response...";
     this.notifyUser(this.statusMessage, this.noti, notificationId, false);
-    BufferedInputStream reader;
-    try {
-      if (status < 400 && urlConnection.getInputStream() != null) {
-        reader = new BufferedInputStream(urlConnection.getInputStream());
-        byte[] buffer = new byte[4096];
-        int n = -1;
-        OutputStream output = new FileOutputStream(Config.DEFAULT_OUTPUT_DIRECTORY + "/" + filename);
-        while ((n = reader.read(buffer)) != -1) {
-          if (n > 0) {
-            output.write(buffer, 0, n);
+
+    long startTime = System.currentTimeMillis();
+    int changeCount = 0;
+    int appliedCount = 0;
+    String lastSeq = null;
+    ArrayList<ContentValues> datums = new ArrayList<ContentValues>(INGEST_BATCH_SIZE);
+    ArrayList<String> deletedIds = new ArrayList<String>();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if ("results".equals(name)) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+          JsonObject change = jsonParser.parse(reader).getAsJsonObject();
+          changeCount++;
+          this.readChange(change, datums, deletedIds);
+          lastSeq = getSeq(change.get("seq"));
+          if (datums.size() + deletedIds.size() >= INGEST_BATCH_SIZE) {
+            appliedCount += this.applyChanges(datums, deletedIds, source, lastSeq);
+            if (!"".equals(this.userFriendlyErrorMessage)) {
+              return;
+            }
+            this.notifyUser("Processed " + changeCount + " changes", this.noti, notificationId, false);
           }
         }
-        output.close();
-        this.statusMessage = "Downloaded " + filename;
-        BugReporter.putCustomData("urlString", mediaFileUrl);
-        com.github.fielddb.model.Activity.sendActivity("downloadMedia:::" + filename, "{}",
-            "*** Downloaded media file sucessfully ***");
+        reader.endArray();
+      } else if ("last_seq".equals(name)) {
+        lastSeq = getSeq(jsonParser.parse(reader));
       } else {
-        this.userFriendlyErrorMessage = "Server replied " + status;
+        reader.skipValue();
       }
+    }
+    reader.endObject();
+    appliedCount += this.applyChanges(datums, deletedIds, source, lastSeq);
 
-    } catch (IOException e) {
-      e.printStackTrace();
-      this.userFriendlyErrorMessage = "Problem writing to the server connection.";
+    Log.d(Config.TAG, "Applied " + appliedCount + " of " + changeCount + " changes in "
+        + (System.currentTimeMillis() - startTime) + "ms, the checkpoint is now " + lastSeq + ", "
+        + this.getCountsAsJson());
+  }
+
+  /**
+   * Adds the datum of the change to the batch, or its id to the deleted ids.
+   * Changes which aren't about a sample datum are skipped, as are the changes
+   * without their document (the deletions feed only has the deletions).
+   */
+  protected void readChange(JsonObject change, ArrayList<ContentValues> datums, ArrayList<String> deletedIds) {
+    String id = getString(change, "id");
+    if ("".equals(id) || id.startsWith("_design/")) {
+      return;
+    }
+    if (change.has("deleted") && change.get("deleted").getAsBoolean()) {
+      /* The provider moves deleted datum to the trash */
+      deletedIds.add(id);
+      return;
+    }
+    if (!change.has("doc") || !change.get("doc").isJsonObject()) {
       return;
     }
+    JsonObject datumJson = flattenDatumFields(change.getAsJsonObject("doc"));
+    if (!getString(datumJson, "tags").contains(this.datumTagToDownload)) {
+      return;
+    }
+    ContentValues datumAsValues = this.getDatumValues(datumJson);
+    if (datumAsValues != null) {
+      datums.add(datumAsValues);
+    }
+  }
 
-    return;
+  /**
+   * Saves the batch of changes and the checkpoint in one transaction through
+   * the provider's upsert, which skips the datum whose _rev didn't change,
+   * and empties the batch. The counts only include batches which were saved.
+   *
+   * @return how many changes were applied
+   */
+  @SuppressLint("NewApi")
+  protected int applyChanges(ArrayList<ContentValues> datums, ArrayList<String> deletedIds, String source,
+      String seq) {
+    int changeCount = datums.size() + deletedIds.size();
+    if (changeCount == 0 && seq == null) {
+      return 0;
+    }
+    ContentValues[] rows = datums.toArray(new ContentValues[datums.size()]);
+    String[] deleted = deletedIds.toArray(new String[deletedIds.size()]);
+    datums.clear();
+    deletedIds.clear();
+    if (Build.VERSION.SDK_INT < 11) {
+      /* ContentResolver.call needs Android 3.0 */
+      return this.applyChangesInOperations(rows, deleted, source, seq);
+    }
+
+    Bundle extras = new Bundle();
+    extras.putParcelableArray(DatumContentProvider.EXTRA_VALUES, rows);
+    extras.putStringArray(DatumContentProvider.EXTRA_DELETED_IDS, deleted);
+    if (seq != null) {
+      extras.putString(DatumContentProvider.EXTRA_CHECKPOINT_SOURCE, source);
+      extras.putString(DatumContentProvider.EXTRA_CHECKPOINT_SINCE, seq);
+    }
+    Bundle result = null;
+    try {
+      result = getContentResolver().call(DatumContentProvider.CONTENT_URI, DatumContentProvider.METHOD_UPSERT, null,
+          extras);
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    }
+    if (result == null) {
+      this.userFriendlyErrorMessage = "Problem saving the changes from the server.";
+      this.pendingMedia.clear();
+      return 0;
+    }
+    this.insertedCount += result.getInt(DatumContentProvider.EXTRA_INSERTED);
+    this.updatedCount += result.getInt(DatumContentProvider.EXTRA_UPDATED);
+    this.unchangedCount += result.getInt(DatumContentProvider.EXTRA_UNCHANGED);
+    this.downloadMedia(result.getStringArrayList(DatumContentProvider.EXTRA_SAVED_IDS));
+    return changeCount;
+  }
+
+  /**
+   * Saves the batch of changes and the checkpoint in one applyBatch, for the
+   * devices which can't call the provider's upsert. Each datum's saved _rev is
+   * read first so the unchanged ones are left alone.
+   *
+   * @return how many changes were applied
+   */
+  protected int applyChangesInOperations(ContentValues[] rows, String[] deletedIds, String source, String seq) {
+    ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+    ArrayList<String> savedIds = new ArrayList<String>();
+    int insertedCount = 0;
+    int updatedCount = 0;
+    int unchangedCount = 0;
+    for (ContentValues row : rows) {
+      String id = row.getAsString(DatumTable.COLUMN_ID);
+      Uri uri = Uri.withAppendedPath(DatumContentProvider.CONTENT_URI, id);
+      String[] revisionProjection = { DatumTable.COLUMN_REV };
+      Cursor cursor = getContentResolver().query(uri, revisionProjection, null, null, null);
+      boolean saved = false;
+      String savedRev = null;
+      if (cursor != null) {
+        if (cursor.moveToFirst()) {
+          saved = true;
+          savedRev = cursor.getString(0);
+        }
+        cursor.close();
+      }
+      if (!saved) {
+        operations.add(ContentProviderOperation.newInsert(DatumContentProvider.CONTENT_URI).withValues(row).build());
+        insertedCount++;
+      } else if (savedRev != null && savedRev.equals(row.getAsString(DatumTable.COLUMN_REV))) {
+        unchangedCount++;
+        continue;
+      } else {
+        operations.add(ContentProviderOperation.newUpdate(uri).withValues(row).build());
+        updatedCount++;
+      }
+      savedIds.add(id);
+    }
+    for (String id : deletedIds) {
+      /* The deletions feed has the whole corpus' deletions */
+      if (!this.isSaved(Uri.withAppendedPath(DatumContentProvider.CONTENT_URI, id))) {
+        continue;
+      }
+      operations.add(ContentProviderOperation.newDelete(Uri.withAppendedPath(DatumContentProvider.CONTENT_URI, id))
+          .build());
+    }
+    if (seq != null) {
+      operations.add(ContentProviderOperation.newUpdate(DatumContentProvider.getCheckpointUri(source))
+          .withValue(SyncCheckpointTable.COLUMN_SINCE, seq).build());
+    }
+    if (operations.size() == 0) {
+      return 0;
+    }
+    try {
+      getContentResolver().applyBatch(DatumContentProvider.CONTENT_URI.getAuthority(), operations);
+    } catch (RemoteException e) {
+      e.printStackTrace();
+      this.userFriendlyErrorMessage = "Problem saving the changes from the server.";
+      this.pendingMedia.clear();
+      return 0;
+    } catch (OperationApplicationException e) {
+      e.printStackTrace();
+      this.userFriendlyErrorMessage = "Problem saving the changes from the server.";
+      this.pendingMedia.clear();
+      return 0;
+    }
+    this.insertedCount += insertedCount;
+    this.updatedCount += updatedCount;
+    this.unchangedCount += unchangedCount;
+    this.downloadMedia(savedIds);
+    return rows.length + deletedIds.length;
+  }
+
+  /**
+   * @return the seq the last sync of the feed got to, or 0 to start from the
+   *         beginning of the feed
+   */
+  protected String getCheckpoint(String source) {
+    return this.getCheckpoint(source, "0");
+  }
+
+  /**
+   * @return the seq the last sync of the feed got to, or defaultSince if the
+   *         feed was never synced
+   */
+  protected String getCheckpoint(String source, String defaultSince) {
+    String since = defaultSince;
+    String[] projection = { SyncCheckpointTable.COLUMN_SINCE };
+    Cursor cursor = getContentResolver().query(DatumContentProvider.getCheckpointUri(source), projection, null,
+        null, null);
+    if (cursor != null) {
+      if (cursor.moveToFirst() && !cursor.isNull(0)) {
+        since = cursor.getString(0);
+      }
+      cursor.close();
+    }
+    return since;
+  }
+
+  protected boolean isSaved(Uri datumUri) {
+    String[] datumProjection = { DatumTable.COLUMN_ID };
+    Cursor cursor = getContentResolver().query(datumUri, datumProjection, null, null, null);
+    if (cursor == null) {
+      return false;
+    }
+    boolean saved = cursor.getCount() > 0;
+    cursor.close();
+    return saved;
+  }
+
+  /**
+   * Depending on the CouchDB version a seq is a number, a string or a list.
+   */
+  public static String getSeq(JsonElement seq) {
+    if (seq == null || seq.isJsonNull()) {
+      return null;
+    }
+    if (seq.isJsonPrimitive()) {
+      return seq.getAsString();
+    }
+    return seq.toString();
+  }
+
+  /**
+   * Documents in the corpus keep most of their fields in a datumFields list
+   * of labels and values, rather than flattened the way the sample data view
+   * returns them. The fields are copied up so both can be read the same way.
+   */
+  public static JsonObject flattenDatumFields(JsonObject doc) {
+    if (!doc.has("datumFields") || !doc.get("datumFields").isJsonArray()) {
+      return doc;
+    }
+    for (JsonElement field : doc.getAsJsonArray("datumFields")) {
+      if (!field.isJsonObject()) {
+        continue;
+      }
+      String label = getString(field.getAsJsonObject(), "label");
+      if ("".equals(label) || doc.has(label)) {
+        continue;
+      }
+      String value = getString(field.getAsJsonObject(), "mask");
+      if ("".equals(value)) {
+        value = getString(field.getAsJsonObject(), "value");
+      }
+      doc.addProperty(label, value);
+    }
+    return doc;
+  }
+
+  /**
+   * Queues the download of the media file, it is downloaded in the background
+   * while the datum are being saved.
+   */
+  public void downloadMediaFile(String mediaFileUrl) {
+    if (mediaFileUrl == null || "".equals(mediaFileUrl)) {
+      Log.d(Config.TAG, "Not re-requesting download of media file, it is a blank string");
+      return;
+    }
+    if (this.mediaDownloads == null) {
+      Log.d(Config.TAG, "Not downloading " + mediaFileUrl + ", there is no sync running");
+      return;
+    }
+    /*
+     * TODO sanitize url and filename and size or something... to ensure its not
+     * dangerous
+     */
+    String filename = Uri.parse(mediaFileUrl).getLastPathSegment();
+    this.mediaDownloads.enqueue(mediaFileUrl, filename);
   }
 
   public Uri insertMediaFileInDB(String url) {
@@ -340,7 +895,7 @@ public class DownloadDatumsService extends NotifyingIntentService {
     String filenames = "";
     for (String url : urls) {
       url = url.replaceAll("SERVER_URL", Config.DEFAULT_DATA_SERVER_URL);
-      this.additionalDownloads.add(url);
+      this.additionalDownloadsCount++;
       this.downloadMediaFile(url);
       this.insertMediaFileInDB(url);
       if (!"".equals(filenames)) {
@@ -0,0 +1,267 @@
+package com.github.fielddb.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.fielddb.Config;
+import com.github.fielddb.datacollection.HttpTransport;
+
+import android.util.Log;
+
+/**
+ * Downloads media files in the background while the datum are being saved.
+ *
+ * Up to MAX_DOWNLOADS files are downloaded at once, and no more than
+ * MAX_DOWNLOADS_PER_HOST from the same server. A file is written to a .part
+ * file next to it and only renamed to its real name once all of its bytes
+ * have arrived (checked against the length the server announced, or the end
+ * of a chunked response when it didn't announce one), so a file with the
+ * real name is always complete. If a download is interrupted the
+ * next one asks the server for the rest of the .part file with a Range
+ * request rather than starting again (unless the server answers with another
+ * range than the one asked for).
+ */
+public class MediaDownloadPool {
+  public static int MAX_DOWNLOADS = 3;
+  public static int MAX_DOWNLOADS_PER_HOST = 2;
+  public static int BUFFER_SIZE = 64 * 1024;
+  public static final String PARTIAL_FILE_EXTENSION = ".part";
+
+  protected File mDirectory;
+  protected HttpTransport mTransport;
+  protected ExecutorService mExecutor = Executors.newFixedThreadPool(MAX_DOWNLOADS);
+  protected HashMap<String, Semaphore> mHostPermits = new HashMap<String, Semaphore>();
+  /* The files which are queued or downloading, so a file is only downloaded once */
+  protected Set<String> mQueued = new HashSet<String>();
+  protected AtomicInteger mDownloadedCount = new AtomicInteger();
+  protected AtomicInteger mResumedCount = new AtomicInteger();
+  protected AtomicInteger mFailedCount = new AtomicInteger();
+  protected long mStartTime = System.currentTimeMillis();
+
+  public MediaDownloadPool(File directory, HttpTransport transport) {
+    this.mDirectory = directory;
+    this.mTransport = transport;
+  }
+
+  /**
+   * Queues the download of the file, unless it has already been downloaded or
+   * queued.
+   *
+   * @param url
+   * @param filename
+   *          the name to save it as in the directory
+   */
+  public synchronized void enqueue(final String url, final String filename) {
+    if (url == null || "".equals(url) || filename == null || "".equals(filename) || mExecutor.isShutdown()) {
+      return;
+    }
+    if (new File(mDirectory, filename).exists() || !mQueued.add(filename)) {
+      return;
+    }
+    mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          download(url, filename);
+        } finally {
+          synchronized (MediaDownloadPool.this) {
+            mQueued.remove(filename);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Waits for the queued downloads to finish, then stops the pool.
+   *
+   * @param timeoutMillis
+   *          how long to wait at most, the downloads which are still running
+   *          then are interrupted (and resumed next time)
+   */
+  public void finish(long timeoutMillis) {
+    mExecutor.shutdown();
+    try {
+      if (!mExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        mExecutor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      mExecutor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    Log.d(Config.TAG, "Downloaded " + mDownloadedCount.get() + " media files (" + mResumedCount.get()
+        + " resumed), " + mFailedCount.get() + " failed, in " + (System.currentTimeMillis() - mStartTime) + "ms");
+  }
+
+  protected Semaphore getHostPermits(String host) {
+    synchronized (mHostPermits) {
+      Semaphore permits = mHostPermits.get(host);
+      if (permits == null) {
+        permits = new Semaphore(MAX_DOWNLOADS_PER_HOST);
+        mHostPermits.put(host, permits);
+      }
+      return permits;
+    }
+  }
+
+  /**
+   * Downloads the file into its .part file, continuing from what is already
+   * there, and renames it once it is complete. Runs on a pool thread.
+   */
+  protected void download(String urlString, String filename) {
+    long startTime = System.currentTimeMillis();
+    File target = new File(mDirectory, filename);
+    File partial = new File(mDirectory, filename + PARTIAL_FILE_EXTENSION);
+    Semaphore permits = null;
+    HttpURLConnection connection = null;
+    try {
+      URL url = new URL(urlString);
+      permits = getHostPermits(url.getHost());
+      permits.acquire();
+
+      long offset = partial.exists() ? partial.length() : 0;
+      connection = this.open(url, offset);
+      int status = connection.getResponseCode();
+      if (status == HttpURLConnection.HTTP_PARTIAL && offset > 0
+          && getRangeStart(connection.getHeaderField("Content-Range")) != offset) {
+        /* Appending another range than the one asked for would corrupt the file */
+        Log.w(Config.TAG, "Asked for " + filename + " from " + offset + " but got "
+            + connection.getHeaderField("Content-Range") + ", downloading it from the start");
+        HttpTransport.release(connection);
+        partial.delete();
+        offset = 0;
+        connection = this.open(url, offset);
+        status = connection.getResponseCode();
+      }
+      long expectedLength;
+      if (status == 416) {
+        /* Nothing left to download, the .part file may be complete already */
+        expectedLength = getTotalLength(connection.getHeaderField("Content-Range"));
+        if (expectedLength != offset) {
+          partial.delete();
+          throw new IOException("the server can't resume " + filename + ", it will start again next time");
+        }
+      } else if (status == HttpURLConnection.HTTP_PARTIAL && offset > 0) {
+        expectedLength = getTotalLength(connection.getHeaderField("Content-Range"));
+        this.copy(connection.getInputStream(), partial, true);
+        mResumedCount.incrementAndGet();
+      } else if (status == HttpURLConnection.HTTP_OK) {
+        /* The server ignored the range, start from the beginning */
+        expectedLength = connection.getContentLength();
+        this.copy(connection.getInputStream(), partial, false);
+      } else {
+        throw new IOException("the server replied " + status);
+      }
+
+      if (expectedLength < 0 && !"chunked".equalsIgnoreCase(connection.getHeaderField("Transfer-Encoding"))) {
+        /*
+         * Without a length the response ends when the connection closes, which
+         * looks the same whether the file was complete or the network dropped
+         */
+        throw new IOException("the server didn't say how long " + filename + " is, it is kept as "
+            + partial.getName());
+      }
+      if (expectedLength >= 0 && partial.length() != expectedLength) {
+        throw new IOException("got " + partial.length() + " of " + expectedLength + " bytes of " + filename);
+      }
+      if (!partial.renameTo(target)) {
+        throw new IOException("unable to rename " + partial.getName());
+      }
+      mDownloadedCount.incrementAndGet();
+      if (Config.D) {
+        Log.d(Config.TAG, "Downloaded " + filename + " (" + target.length() + " bytes) in "
+            + (System.currentTimeMillis() - startTime) + "ms");
+      }
+    } catch (InterruptedException e) {
+      mFailedCount.incrementAndGet();
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      mFailedCount.incrementAndGet();
+      Log.w(Config.TAG, "Unable to download " + urlString + " " + e);
+    } finally {
+      if (connection != null) {
+        HttpTransport.release(connection);
+      }
+      if (permits != null) {
+        permits.release();
+      }
+    }
+  }
+
+  protected HttpURLConnection open(URL url, long offset) throws IOException {
+    HttpURLConnection connection = mTransport.open(url);
+    if (offset > 0) {
+      connection.setRequestProperty("Range", "bytes=" + offset + "-");
+    }
+    return connection;
+  }
+
+  protected void copy(InputStream in, File partial, boolean append) throws IOException {
+    FileOutputStream output = new FileOutputStream(partial, append);
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        output.write(buffer, 0, read);
+        if (Thread.interrupted()) {
+          throw new IOException("interrupted, the download will be resumed next time");
+        }
+      }
+    } finally {
+      output.close();
+      in.close();
+    }
+  }
+
+  /**
+   * @param contentRange
+   *          for example "bytes 100-199/200"
+   * @return the first byte of the range, or -1 if the server didn't say
+   */
+  public static long getRangeStart(String contentRange) {
+    if (contentRange == null || !contentRange.startsWith("bytes ")) {
+      return -1;
+    }
+    int dash = contentRange.indexOf('-');
+    if (dash < 0) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @param contentRange
+   *          for example "bytes 100-199/200" or "bytes *&#47;200"
+   * @return the length of the whole file, or -1 if the server didn't say
+   */
+  public static long getTotalLength(String contentRange) {
+    if (contentRange == null) {
+      return -1;
+    }
+    int slash = contentRange.lastIndexOf('/');
+    if (slash < 0 || slash == contentRange.length() - 1) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(contentRange.substring(slash + 1).trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
@@ -12,8 +12,9 @@ import com.github.fielddb.database.FieldDBUserContentProvider;
 import com.github.fielddb.database.UserContentProvider.UserTable;
 import com.github.fielddb.datacollection.DeviceDetails;
 import com.github.fielddb.datacollection.NotifyingIntentService;
+import com.github.fielddb.model.User;
+import com.github.fielddb.model.UserRowMapper;
 import com.github.fielddb.BugReporter;
-import com.github.fielddb.R;
 import com.google.gson.JsonObject;
 
 import android.annotation.SuppressLint;
@@ -39,7 +40,6 @@ public class RegisterUserService extends NotifyingIntentService {
   protected void onHandleIntent(Intent intent) {
     this.statusMessage = "Registering user";
     this.tryAgain = intent;
-    this.keystoreResourceId = R.raw.sslkeystore;
     if (Config.D) {
       Log.d(Config.TAG, "Inside RegisterUserService intent, not registering on server because we are in debug mode");
       return;
@@ -87,7 +87,7 @@ public class RegisterUserService extends NotifyingIntentService {
     HttpURLConnection urlConnection;
     try {
       url = new URL(loginUrl);
-      urlConnection = (HttpURLConnection) url.openConnection();
+      urlConnection = this.openConnection(url);
       urlConnection.setRequestMethod("POST");
       urlConnection.setRequestProperty("Content-Type", "application/json");
       urlConnection.setDoInput(true);
@@ -149,7 +149,9 @@ public class RegisterUserService extends NotifyingIntentService {
       return null;
     }
 
-    String _rev = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_REV));
+    User user = new UserRowMapper().map(cursor);
+    cursor.close();
+    String _rev = user.get_rev();
     if (_rev != null && !"".equals(_rev)) {
       /*
        * Success:this user has been registered at some point, remove the
@@ -158,19 +160,17 @@ public class RegisterUserService extends NotifyingIntentService {
       ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).cancel(this.notificationId);
       return null;
     }
-    String username = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_USERNAME));
-    String firstname = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_FIRSTNAME));
-    String lastname = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_LASTNAME));
-    String email = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_EMAIL));
-    String gravatar = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_GRAVATAR));
-    String affiliation = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_AFFILIATION));
-    String researchInterest = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_RESEARCH_INTEREST));
-    String description = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_DESCRIPTION));
-    String subtitle = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_SUBTITLE));
-    String generatedPassword = cursor.getString(cursor.getColumnIndexOrThrow(UserTable.COLUMN_GENERATED_PASSWORD));
-    String appVersionsWhenModified = cursor.getString(cursor
-        .getColumnIndexOrThrow(UserTable.COLUMN_APP_VERSIONS_WHEN_MODIFIED));
-    cursor.close();
+    String username = user.getUsername();
+    String firstname = user.getFirstname();
+    String lastname = user.getLastname();
+    String email = user.getEmail();
+    String gravatar = user.getGravatar();
+    String affiliation = user.getAffiliation();
+    String researchInterest = user.getResearchInterest();
+    String description = user.getDescription();
+    String subtitle = user.getSubtitle();
+    String generatedPassword = user.getGeneratedPassword();
+    String appVersionsWhenModified = user.getAppVersionsWhenModified();
 
     this.statusMessage = "Registering user " + username;
     BugReporter.putCustomData("registerUser", username);
@@ -179,7 +179,7 @@ public class RegisterUserService extends NotifyingIntentService {
     HttpURLConnection urlConnection;
     try {
       url = new URL(urlStringAuthenticationSession);
-      urlConnection = (HttpURLConnection) url.openConnection();
+      urlConnection = this.openConnection(url);
       urlConnection.setRequestMethod("POST");
       urlConnection.setRequestProperty("Content-Type", "application/json");
       urlConnection.setDoInput(true);
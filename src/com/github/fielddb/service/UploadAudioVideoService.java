@@ -1,52 +1,70 @@
 package com.github.fielddb.service;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.nio.charset.Charset;
-import java.security.KeyStore;
-
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntity;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.entity.mime.content.StringBody;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.SingleClientConnManager;
-import org.apache.http.protocol.BasicHttpContext;
-import org.apache.http.protocol.HttpContext;
 
 import com.github.fielddb.BugReporter;
 import com.github.fielddb.Config;
-import com.github.fielddb.PrivateConstants;
+import com.github.fielddb.database.AudioVideoContentProvider;
+import com.github.fielddb.database.AudioVideoContentProvider.UploadOutboxTable;
+import com.github.fielddb.database.DatumContentProvider;
 import com.github.fielddb.datacollection.NotifyingIntentService;
-import com.github.fielddb.datacollection.SecureHttpClient;
-import com.github.fielddb.R;
 import com.google.gson.JsonObject;
 
+import android.app.AlarmManager;
 import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
 import android.util.Log;
 
 /**
- * FIXME this needs to be updated to not use new http connections
+ * Uploads the audio/video recordings through a persistent outbox.
+ *
+ * Asking the service to upload a file adds it to the upload outbox (once, even
+ * if it is asked again) and then drains the outbox. Draining uploads the files
+ * which are due, DRAIN_BATCH_SIZE at a time, as long as there is wifi. A file
+ * which fails stays in the outbox and is tried again after a backoff which
+ * doubles with each attempt (up to MAX_BACKOFF_MILLIS). An alarm starts the
+ * next drain when the next file is due, and the UploadOutboxReceiver starts
+ * one when wifi comes back. The queue depth and the throughput of the last
+ * drain are kept in the preferences. All the requests go through the shared
+ * {@link com.github.fielddb.datacollection.HttpTransport}.
  */
 public class UploadAudioVideoService extends NotifyingIntentService {
+  public static final String ACTION_DRAIN_OUTBOX = "com.github.fielddb.action.DRAIN_UPLOAD_OUTBOX";
+  public static final String PREFERENCE_OUTBOX_DEPTH = "uploadOutboxDepth";
+  public static final String PREFERENCE_LAST_DRAIN_AT = "uploadOutboxLastDrainAt";
+  public static final String PREFERENCE_LAST_DRAIN_UPLOADED = "uploadOutboxLastDrainUploaded";
+  public static final String PREFERENCE_LAST_DRAIN_FAILED = "uploadOutboxLastDrainFailed";
+  public static final String PREFERENCE_LAST_DRAIN_BYTES_PER_SECOND = "uploadOutboxLastDrainBytesPerSecond";
+  public static int DRAIN_BATCH_SIZE = 10;
+  public static int MIN_FILE_SIZE = 5000;
+  public static long INITIAL_BACKOFF_MILLIS = 60 * 1000;
+  public static long MAX_BACKOFF_MILLIS = 6 * AlarmManager.INTERVAL_HOUR;
+  protected static final String[] OUTBOX_PROJECTION = { UploadOutboxTable.COLUMN_FILENAME,
+      UploadOutboxTable.COLUMN_PATH, UploadOutboxTable.COLUMN_USERNAME, UploadOutboxTable.COLUMN_DEVICE_DETAILS,
+      UploadOutboxTable.COLUMN_ATTEMPTS };
+
   protected String mDeviceDetails = "{}";
   protected String mUsername = "default";
 
@@ -58,6 +76,52 @@ public class UploadAudioVideoService extends NotifyingIntentService {
     super("UploadAudioVideoService");
   }
 
+  /**
+   * Starts draining the upload outbox, for example when the app starts or wifi
+   * comes back.
+   *
+   * @param context
+   */
+  public static void startDrain(Context context) {
+    context.startService(getDrainIntent(context));
+  }
+
+  public static Intent getDrainIntent(Context context) {
+    Intent drain = new Intent(context, UploadAudioVideoService.class);
+    drain.setAction(ACTION_DRAIN_OUTBOX);
+    return drain;
+  }
+
+  /**
+   * @param context
+   * @return the number of files waiting in the upload outbox
+   */
+  public static int getQueueDepth(Context context) {
+    int depth = 0;
+    Cursor cursor = context.getContentResolver().query(AudioVideoContentProvider.OUTBOX_URI,
+        new String[] { "count(*)" }, null, null, null);
+    if (cursor != null) {
+      if (cursor.moveToFirst()) {
+        depth = cursor.getInt(0);
+      }
+      cursor.close();
+    }
+    return depth;
+  }
+
+  /**
+   * @param attempts
+   *          the number of attempts which have failed so far
+   * @return how long to wait before the next attempt
+   */
+  public static long getBackoffMillis(int attempts) {
+    long backoff = INITIAL_BACKOFF_MILLIS;
+    for (int i = 1; i < attempts && backoff < MAX_BACKOFF_MILLIS; i++) {
+      backoff *= 2;
+    }
+    return Math.min(backoff, MAX_BACKOFF_MILLIS);
+  }
+
   @Override
   protected void onHandleIntent(Intent intent) {
     if (Config.D) {
@@ -65,19 +129,16 @@ public class UploadAudioVideoService extends NotifyingIntentService {
       return;
     }
 
-    /* only upload files when connected to wifi */
-    ConnectivityManager connManager = (ConnectivityManager) getApplicationContext().getSystemService(
-        Context.CONNECTIVITY_SERVICE);
-    NetworkInfo wifi = connManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
-    if (!wifi.isConnected()) {
-      Log.d(Config.TAG, " we are not using wifi, not uploading audio/video file");
-      return;
+    if (intent != null && intent.getData() != null) {
+      this.enqueue(intent);
     }
+    this.drain(intent);
+  }
 
-    /* only upload files with content */
-    if (intent.getData() == null) {
-      return;
-    }
+  /**
+   * Adds the file the intent is about to the upload outbox.
+   */
+  protected void enqueue(Intent intent) {
     Uri uri = intent.getData();
     if (uri.getPath() == null) {
       return;
@@ -86,76 +147,260 @@ public class UploadAudioVideoService extends NotifyingIntentService {
     if (!f.exists()) {
       return;
     }
-    if (f.length() < 5000) {
+    /* only upload files with content */
+    if (f.length() < MIN_FILE_SIZE) {
       Log.d(Config.TAG, "Not uploading, " + uri.getLastPathSegment() + " was too small " + f.length());
       return;
     }
 
-    this.statusMessage = "Uploading audio video";
-    this.tryAgain = intent;
-    this.keystoreResourceId = R.raw.sslkeystore;
-    if (Config.D) {
-      Log.d(Config.TAG, "Inside UploadAudioVideoService intent");
-    }
-    BugReporter.putCustomData("action", "uploadAudioVideo:::");
-    BugReporter.putCustomData("urlString", Config.DEFAULT_UPLOAD_AUDIO_VIDEO_URL);
+    ContentValues values = new ContentValues();
+    values.put(UploadOutboxTable.COLUMN_FILENAME, f.getName());
+    values.put(UploadOutboxTable.COLUMN_PATH, f.getAbsolutePath());
+    values.put(UploadOutboxTable.COLUMN_USERNAME, intent.hasExtra(Config.EXTRA_PARTICIPANT_ID) ? intent
+        .getExtras().getString(Config.EXTRA_PARTICIPANT_ID) : mUsername);
+    values.put(UploadOutboxTable.COLUMN_DEVICE_DETAILS,
+        intent.hasExtra(Config.EXTRA_EXPERIMENT_TRIAL_INFORMATION) ? intent.getExtras().getString(
+            Config.EXTRA_EXPERIMENT_TRIAL_INFORMATION) : mDeviceDetails);
+    getContentResolver().insert(AudioVideoContentProvider.OUTBOX_URI, values);
+  }
 
-    super.onHandleIntent(intent);
+  /**
+   * Uploads the files which are due, a batch at a time, then schedules the
+   * next drain for when the next file is due.
+   */
+  protected void drain(Intent intent) {
+    long startTime = System.currentTimeMillis();
+    int uploadedCount = 0;
+    int failedCount = 0;
+    long uploadedBytes = 0;
+    boolean started = false;
+
+    while (isWifiConnected()) {
+      ArrayList<ContentValues> batch = this.getDueUploads();
+      if (batch.isEmpty()) {
+        break;
+      }
+      if (!started) {
+        this.statusMessage = "Uploading audio video";
+        this.tryAgain = getDrainIntent(this);
+        BugReporter.putCustomData("action", "uploadAudioVideo:::");
+        BugReporter.putCustomData("urlString", Config.DEFAULT_UPLOAD_AUDIO_VIDEO_URL);
+        super.onHandleIntent(intent);
+        if (!"".equals(this.userFriendlyErrorMessage)) {
+          this.notifyUser(" " + this.userFriendlyErrorMessage, this.noti, this.notificationId, true);
+          BugReporter.sendBugReport(this.userFriendlyErrorMessage);
+          break;
+        }
+        started = true;
+      }
+
+      for (ContentValues upload : batch) {
+        File file = new File(upload.getAsString(UploadOutboxTable.COLUMN_PATH));
+        if (!file.exists()) {
+          Log.d(Config.TAG, file.getName() + " is gone, removing it from the upload outbox");
+          getContentResolver().delete(
+              AudioVideoContentProvider.getOutboxUri(upload.getAsString(UploadOutboxTable.COLUMN_FILENAME)), null,
+              null);
+          continue;
+        }
+        if (this.uploadFromOutbox(upload, file)) {
+          uploadedCount++;
+          uploadedBytes += file.length();
+        } else {
+          failedCount++;
+        }
+      }
+    }
+    if (!started && Config.D) {
+      Log.d(Config.TAG, "Nothing to upload now, or not on wifi");
+    }
 
-    if (!"".equals(this.userFriendlyErrorMessage)) {
-      this.notifyUser(" " + this.userFriendlyErrorMessage, this.noti, this.notificationId, true);
-      BugReporter.sendBugReport(this.userFriendlyErrorMessage);
-      return;
+    if (started) {
+      if (failedCount == 0) {
+        /* Success: remove the notification */
+        ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).cancel(this.notificationId);
+      } else {
+        this.notifyUser(" " + failedCount + " recordings couldn't be uploaded, they will be tried again later.",
+            this.noti, this.notificationId, true);
+      }
     }
+    this.scheduleNextDrain();
+    this.saveStatistics(startTime, uploadedCount, failedCount, uploadedBytes);
+    if (started) {
+      this.transport.logStatistics("Upload outbox drain");
+    }
+  }
 
-    if (intent.hasExtra(Config.EXTRA_PARTICIPANT_ID)) {
-      mUsername = intent.getExtras().getString(Config.EXTRA_PARTICIPANT_ID);
+  /**
+   * Uploads one file of the outbox, removes it from the outbox if the server
+   * took it, otherwise counts the attempt and backs off.
+   *
+   * @return true if the file was uploaded
+   */
+  protected boolean uploadFromOutbox(ContentValues upload, File file) {
+    String filename = upload.getAsString(UploadOutboxTable.COLUMN_FILENAME);
+    Uri outboxUri = AudioVideoContentProvider.getOutboxUri(filename);
+    Uri uri = Uri.fromFile(file);
+    this.userFriendlyErrorMessage = "";
+    if (upload.getAsString(UploadOutboxTable.COLUMN_USERNAME) != null) {
+      mUsername = upload.getAsString(UploadOutboxTable.COLUMN_USERNAME);
     }
-    if (intent.hasExtra(Config.EXTRA_EXPERIMENT_TRIAL_INFORMATION)) {
-      mDeviceDetails = intent.getExtras().getString(Config.EXTRA_EXPERIMENT_TRIAL_INFORMATION);
+    if (upload.getAsString(UploadOutboxTable.COLUMN_DEVICE_DETAILS) != null) {
+      mDeviceDetails = upload.getAsString(UploadOutboxTable.COLUMN_DEVICE_DETAILS);
     }
 
-    String JSONResponse = this.upload(intent.getData());
+    String JSONResponse = this.upload(uri);
     if (JSONResponse == null && "".equals(this.userFriendlyErrorMessage)) {
       this.userFriendlyErrorMessage = "Server response was missing. Please report this.";
     }
-    if (!"".equals(this.userFriendlyErrorMessage)) {
-      this.notifyUser(" " + this.userFriendlyErrorMessage, this.noti, this.notificationId, true);
-      BugReporter.sendBugReport(this.userFriendlyErrorMessage);
-      return;
+    if ("".equals(this.userFriendlyErrorMessage)) {
+      try {
+        processUploadResponse(uri, JSONResponse);
+      } catch (RuntimeException e) {
+        this.userFriendlyErrorMessage = "The server response is very strange, please report this.";
+        e.printStackTrace();
+      }
     }
 
-    processUploadResponse(intent.getData(), JSONResponse);
-    if (!"".equals(this.userFriendlyErrorMessage)) {
-      this.notifyUser(" " + this.userFriendlyErrorMessage, this.noti, this.notificationId, true);
-      BugReporter.sendBugReport(this.userFriendlyErrorMessage);
+    if ("".equals(this.userFriendlyErrorMessage)) {
+      getContentResolver().delete(outboxUri, null, null);
+      com.github.fielddb.model.Activity.sendActivity("{\"uploaded\" : \"audio\"}", "{}",
+          "*** Uploaded audio sucessfully ***");
+      return true;
+    }
+
+    int attempts = upload.getAsInteger(UploadOutboxTable.COLUMN_ATTEMPTS) + 1;
+    long backoff = getBackoffMillis(attempts);
+    ContentValues values = new ContentValues();
+    values.put(UploadOutboxTable.COLUMN_ATTEMPTS, attempts);
+    values.put(UploadOutboxTable.COLUMN_NEXT_ATTEMPT_AT, System.currentTimeMillis() + backoff);
+    values.put(UploadOutboxTable.COLUMN_LAST_ERROR, this.userFriendlyErrorMessage);
+    getContentResolver().update(outboxUri, values, null, null);
+    Log.w(Config.TAG, "Upload " + attempts + " of " + filename + " failed, trying again in " + backoff + "ms: "
+        + this.userFriendlyErrorMessage);
+    BugReporter.sendBugReport(this.userFriendlyErrorMessage);
+    return false;
+  }
+
+  /**
+   * @return the next DRAIN_BATCH_SIZE files which are due, oldest first
+   */
+  protected ArrayList<ContentValues> getDueUploads() {
+    ArrayList<ContentValues> uploads = new ArrayList<ContentValues>();
+    Uri uri = AudioVideoContentProvider.OUTBOX_URI.buildUpon()
+        .appendQueryParameter(DatumContentProvider.QUERY_PARAMETER_LIMIT, "" + DRAIN_BATCH_SIZE).build();
+    Cursor cursor = getContentResolver().query(uri, OUTBOX_PROJECTION,
+        UploadOutboxTable.COLUMN_NEXT_ATTEMPT_AT + " <= ?", new String[] { "" + System.currentTimeMillis() },
+        UploadOutboxTable.COLUMN_CREATED_AT + " ASC");
+    if (cursor == null) {
+      return uploads;
+    }
+    while (cursor.moveToNext()) {
+      ContentValues upload = new ContentValues();
+      DatabaseUtils.cursorRowToContentValues(cursor, upload);
+      upload.put(UploadOutboxTable.COLUMN_ATTEMPTS, cursor.getInt(4));
+      uploads.add(upload);
+    }
+    cursor.close();
+    return uploads;
+  }
+
+  /**
+   * Sets an alarm to drain the outbox when its next file is due. Setting it
+   * again replaces the previous alarm.
+   */
+  protected void scheduleNextDrain() {
+    Uri uri = AudioVideoContentProvider.OUTBOX_URI.buildUpon()
+        .appendQueryParameter(DatumContentProvider.QUERY_PARAMETER_LIMIT, "1").build();
+    Cursor cursor = getContentResolver().query(uri, new String[] { UploadOutboxTable.COLUMN_NEXT_ATTEMPT_AT },
+        null, null, UploadOutboxTable.COLUMN_NEXT_ATTEMPT_AT + " ASC");
+    if (cursor == null) {
+      return;
+    }
+    long nextAttemptAt = cursor.moveToFirst() ? cursor.getLong(0) : -1;
+    cursor.close();
+
+    PendingIntent pendingIntent = PendingIntent.getService(this, 0, getDrainIntent(this),
+        PendingIntent.FLAG_UPDATE_CURRENT);
+    AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+    if (nextAttemptAt < 0) {
+      alarmManager.cancel(pendingIntent);
       return;
     }
+    alarmManager.set(AlarmManager.RTC, Math.max(nextAttemptAt, System.currentTimeMillis() + INITIAL_BACKOFF_MILLIS),
+        pendingIntent);
+  }
 
-    /* all is well, get their cookie set */
-    // this.getCouchCookie(username, generatedPassword,
-    // Config.DEFAULT_DATA_LOGIN);
+  protected void saveStatistics(long startTime, int uploadedCount, int failedCount, long uploadedBytes) {
+    long duration = System.currentTimeMillis() - startTime;
+    long bytesPerSecond = duration > 0 ? uploadedBytes * 1000 / duration : 0;
+    int depth = getQueueDepth(this);
+
+    SharedPreferences prefs = getSharedPreferences(Config.PREFERENCE_NAME, MODE_PRIVATE);
+    SharedPreferences.Editor editor = prefs.edit();
+    editor.putInt(PREFERENCE_OUTBOX_DEPTH, depth);
+    if (uploadedCount + failedCount > 0) {
+      editor.putLong(PREFERENCE_LAST_DRAIN_AT, startTime);
+      editor.putInt(PREFERENCE_LAST_DRAIN_UPLOADED, uploadedCount);
+      editor.putInt(PREFERENCE_LAST_DRAIN_FAILED, failedCount);
+      editor.putLong(PREFERENCE_LAST_DRAIN_BYTES_PER_SECOND, bytesPerSecond);
+    }
+    editor.commit();
 
-    /* Success: remove the notification */
-    ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).cancel(this.notificationId);
-    com.github.fielddb.model.Activity.sendActivity("{\"uploaded\" : \"audio\"}", "{}",
-        "*** Uploaded audio sucessfully ***");
+    Log.d(Config.TAG, "Upload outbox drained " + uploadedCount + " files (" + uploadedBytes + " bytes, "
+        + bytesPerSecond + " bytes/s), " + failedCount + " failed, " + depth + " waiting, in " + duration + "ms");
+    if (uploadedCount + failedCount > 0) {
+      com.github.fielddb.model.Activity.sendActivity("uploadOutbox", uploadedCount + " uploaded " + failedCount
+          + " failed " + depth + " waiting " + bytesPerSecond + " bytes/s");
+    }
   }
 
+  /* only upload files when connected to wifi */
+  protected boolean isWifiConnected() {
+    ConnectivityManager connManager = (ConnectivityManager) getApplicationContext().getSystemService(
+        Context.CONNECTIVITY_SERVICE);
+    NetworkInfo wifi = connManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
+    return wifi != null && wifi.isConnected();
+  }
+
+  /**
+   * Uploads the file in chunks so an interrupted upload continues where it
+   * stopped the next time, or in one POST if the server doesn't take chunks.
+   *
+   * @param uri
+   * @return the server's response, or null if the upload failed
+   */
   public String upload(Uri uri) {
-    String filePath = uri.getPath();
     this.statusMessage = "Uploading audio " + uri.getLastPathSegment();
     BugReporter.putCustomData("uploadAudio", uri.getLastPathSegment());
-    String urlStringAuthenticationSession = Config.DEFAULT_UPLOAD_AUDIO_VIDEO_URL;
 
-    /* Actually uploads the video */
-    SecureHttpClient httpClient = new SecureHttpClient(getApplicationContext());
-    httpClient.setKeystoreIdandPassword(R.raw.sslkeystore, PrivateConstants.KEYSTORE_PASS);
-    // HttpClient httpClient = new DefaultHttpClient();
+    LinkedHashMap<String, String> fields = new LinkedHashMap<String, String>();
+    fields.put("token", Config.DEFAULT_UPLOAD_TOKEN);
+    fields.put("username", mUsername);
+    fields.put("dbname", Config.DEFAULT_CORPUS);
+    fields.put("returnTextGrid", "true");
+    File file = new File(uri.getPath());
+    try {
+      return new ChunkedUpload(getContentResolver(), this.transport, Config.DEFAULT_UPLOAD_AUDIO_VIDEO_URL, file)
+          .upload(fields);
+    } catch (ChunkedUpload.UnsupportedException e) {
+      Log.d(Config.TAG, "The server doesn't take chunked uploads, uploading in one piece. " + e.getMessage());
+    } catch (IOException e) {
+      /* The offset the server acknowledged is saved, the outbox's next attempt resumes from it */
+      this.userFriendlyErrorMessage = "The upload was interrupted, it will continue from where it stopped next time.";
+      e.printStackTrace();
+      return null;
+    }
+    String JSONResponse = this.uploadInOnePiece(uri);
+    if (JSONResponse != null) {
+      /* The server has the whole file, the chunks it has are not needed anymore */
+      getContentResolver().delete(AudioVideoContentProvider.getUploadUri(file.getName()), null, null);
+    }
+    return JSONResponse;
+  }
 
-    HttpContext localContext = new BasicHttpContext();
-    String url = Config.DEFAULT_UPLOAD_AUDIO_VIDEO_URL;
-    HttpPost httpPost = new HttpPost(url);
+  public String uploadInOnePiece(Uri uri) {
+    String filePath = uri.getPath();
 
     MultipartEntity entity = new MultipartEntity(HttpMultipartMode.BROWSER_COMPATIBLE, null, Charset.forName("UTF-8"));
 
@@ -176,24 +421,31 @@ public class UploadAudioVideoService extends NotifyingIntentService {
       e.printStackTrace();
     }
 
-    httpPost.setEntity(entity);
-    String userFriendlyErrorMessage = "";
     String JSONResponse = "";
 
+    /* Actually uploads the video, through the shared transport */
     try {
-      HttpResponse response = httpClient.execute(httpPost, localContext);
-      BufferedReader reader = new BufferedReader(new InputStreamReader(response.getEntity().getContent(), "UTF-8"));
-      String newLine;
-      do {
-        newLine = reader.readLine();
-        if (newLine != null) {
-          JSONResponse += newLine;
-        }
-      } while (newLine != null);
-
-    } catch (ClientProtocolException e1) {
-      this.userFriendlyErrorMessage = "Problem using POST, please report this error.";
-      e1.printStackTrace();
+      URL url = new URL(Config.DEFAULT_UPLOAD_AUDIO_VIDEO_URL);
+      HttpURLConnection urlConnection = this.openConnection(url);
+      urlConnection.setRequestMethod("POST");
+      urlConnection.setDoOutput(true);
+      urlConnection.setRequestProperty("Content-Type", entity.getContentType().getValue());
+      long contentLength = entity.getContentLength();
+      if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+        urlConnection.setFixedLengthStreamingMode((int) contentLength);
+      } else {
+        urlConnection.setChunkedStreamingMode(0);
+      }
+      OutputStream output = urlConnection.getOutputStream();
+      try {
+        entity.writeTo(output);
+      } finally {
+        output.close();
+      }
+      JSONResponse = this.processResponse(url, urlConnection);
+      if (JSONResponse == null) {
+        JSONResponse = "";
+      }
     } catch (IOException e1) {
       this.userFriendlyErrorMessage = "Problem opening upload connection to server, please report this error.";
       e1.printStackTrace();
@@ -0,0 +1,33 @@
+package com.github.fielddb.service;
+
+import com.github.fielddb.Config;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+/**
+ * Drains the upload outbox when the device connects to wifi, so the recordings
+ * made while offline are uploaded without waiting for their backoff.
+ */
+public class UploadOutboxReceiver extends BroadcastReceiver {
+
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    if (!ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())) {
+      return;
+    }
+    ConnectivityManager connManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    NetworkInfo wifi = connManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
+    if (wifi == null || !wifi.isConnected()) {
+      return;
+    }
+    if (Config.D) {
+      Log.d(Config.TAG, "Connected to wifi, draining the upload outbox");
+    }
+    UploadAudioVideoService.startDrain(context);
+  }
+}
@@ -0,0 +1,124 @@
+package com.github.fielddb.database;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.github.fielddb.Config;
+import com.github.fielddb.database.DatumContentProvider.DatumTable;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+/**
+ * Times the queries of the list's first page from a reader thread while a
+ * sync sized ingest (INGEST_ROW_COUNT rows in one bulkInsert) writes to the
+ * same database. With write-ahead logging the reads go to their own
+ * connection and see the last committed rows instead of waiting for the
+ * ingest's transaction to end.
+ */
+public class ConcurrentReadBenchmark extends ProviderTestCase2<DatumContentProvider> {
+  public static final int INGEST_ROW_COUNT = 10000;
+  public static final int PAGE_SIZE = 20;
+  /* Queries timed before the ingest, to compare the latency with */
+  public static final int IDLE_QUERY_COUNT = 50;
+
+  public ConcurrentReadBenchmark() {
+    super(DatumContentProvider.class, DatumContentProvider.CONTENT_URI.getAuthority());
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    FieldDBDatabase.resetInstance(new RenamingDelegatingContext(getContext(), "test."));
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    FieldDBDatabase.resetInstance(null);
+  }
+
+  public void testReadsWhileTheIngestWrites() throws Exception {
+    getMockContentResolver().bulkInsert(DatumContentProvider.CONTENT_URI, newRows("first", PAGE_SIZE));
+    long idleNanos = 0;
+    for (int i = 0; i < IDLE_QUERY_COUNT; i++) {
+      idleNanos += timeQuery();
+    }
+
+    final ArrayList<Long> latencies = new ArrayList<Long>();
+    final CountDownLatch ingestStarted = new CountDownLatch(1);
+    final CountDownLatch ingestDone = new CountDownLatch(1);
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          ingestStarted.await();
+          while (ingestDone.getCount() > 0) {
+            latencies.add(timeQuery());
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, "ConcurrentReadBenchmark reader");
+    reader.start();
+
+    ContentValues[] rows = newRows("ingest", INGEST_ROW_COUNT);
+    long ingestStart = System.nanoTime();
+    ingestStarted.countDown();
+    try {
+      assertEquals(INGEST_ROW_COUNT, getMockContentResolver().bulkInsert(DatumContentProvider.CONTENT_URI, rows));
+    } finally {
+      ingestDone.countDown();
+    }
+    long ingestMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ingestStart);
+    reader.join();
+
+    long maxNanos = 0;
+    long totalNanos = 0;
+    for (long latency : latencies) {
+      maxNanos = Math.max(maxNanos, latency);
+      totalNanos += latency;
+    }
+    long maxMillis = TimeUnit.NANOSECONDS.toMillis(maxNanos);
+    Log.i(Config.TAG, "Ingested " + INGEST_ROW_COUNT + " rows in " + ingestMillis + "ms, meanwhile "
+        + latencies.size() + " reads took " + (latencies.isEmpty() ? 0 : totalNanos / latencies.size() / 1000)
+        + "us on average and " + maxMillis + "ms at most, " + idleNanos / IDLE_QUERY_COUNT / 1000
+        + "us on average before the ingest");
+    assertTrue("no read finished during the ingest", latencies.size() > 1);
+    assertTrue("a read waited " + maxMillis + "ms of the ingest's " + ingestMillis + "ms",
+        maxMillis < ingestMillis / 2);
+  }
+
+  /**
+   * @return how long reading the first page of the list took, in ns
+   */
+  protected long timeQuery() {
+    long startTime = System.nanoTime();
+    Cursor cursor = getMockContentResolver().query(DatumContentProvider.getPageUri(null, PAGE_SIZE), null, null,
+        null, null);
+    assertNotNull(cursor);
+    try {
+      assertTrue(cursor.getCount() > 0);
+    } finally {
+      cursor.close();
+    }
+    return System.nanoTime() - startTime;
+  }
+
+  protected static ContentValues[] newRows(String prefix, int count) {
+    ContentValues[] rows = new ContentValues[count];
+    for (int i = 0; i < count; i++) {
+      rows[i] = new ContentValues();
+      rows[i].put(DatumTable.COLUMN_ID, prefix + i);
+      rows[i].put(DatumTable.COLUMN_ORTHOGRAPHY, "orthography " + i);
+      rows[i].put(DatumTable.COLUMN_TRANSLATION, "translation " + i);
+      rows[i].put(DatumTable.COLUMN_TAGS, "SampleData");
+    }
+    return rows;
+  }
+}
@@ -0,0 +1,105 @@
+package com.github.fielddb.database;
+
+import com.github.fielddb.Config;
+import com.github.fielddb.database.DatumContentProvider.DatumTable;
+import com.github.fielddb.lessons.ui.DatumPreviewViewHolder;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.widget.FrameLayout;
+
+/**
+ * Binds ROW_COUNT rows of an SQLite cursor the way the list does while the
+ * user scrolls, a few recycled view holders in turn, and counts the objects
+ * the binds allocate on the main thread. The previews copy the columns into
+ * reused buffers, so scrolling shouldn't make garbage for the collector to
+ * pause the list for.
+ */
+public class CursorRecyclerViewAdapterBenchmark extends InstrumentationTestCase {
+  public static final int ROW_COUNT = 1000;
+  /* About how many rows are on the screen, plus the ones RecyclerView keeps aside */
+  public static final int HOLDER_COUNT = 12;
+
+  protected SQLiteDatabase mDatabase;
+  protected Cursor mCursor;
+  protected CursorRecyclerViewAdapter mAdapter;
+  protected DatumPreviewViewHolder[] mHolders = new DatumPreviewViewHolder[HOLDER_COUNT];
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mDatabase = SQLiteDatabase.create(null);
+    mDatabase.execSQL("CREATE TABLE " + DatumTable.TABLE_NAME + " (" + DatumTable.COLUMN_ID + " text, "
+        + DatumTable.COLUMN_ORTHOGRAPHY + " text, " + DatumTable.COLUMN_TRANSLATION + " text, "
+        + DatumTable.COLUMN_MAIN_IMAGE_FILE + " text);");
+    mDatabase.beginTransaction();
+    try {
+      ContentValues values = new ContentValues();
+      for (int i = 0; i < ROW_COUNT; i++) {
+        values.put(DatumTable.COLUMN_ID, "datum" + i);
+        values.put(DatumTable.COLUMN_ORTHOGRAPHY, "orthography of datum " + i);
+        values.put(DatumTable.COLUMN_TRANSLATION, "translation of datum " + i);
+        mDatabase.insert(DatumTable.TABLE_NAME, null, values);
+      }
+      mDatabase.setTransactionSuccessful();
+    } finally {
+      mDatabase.endTransaction();
+    }
+    mCursor = mDatabase.query(DatumTable.TABLE_NAME, null, null, null, null, null, null);
+    mAdapter = new CursorRecyclerViewAdapter(null, mCursor);
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        FrameLayout container = new FrameLayout(getInstrumentation().getTargetContext());
+        for (int i = 0; i < HOLDER_COUNT; i++) {
+          mHolders[i] = mAdapter.onCreateViewHolder(container, 0);
+        }
+      }
+    });
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mAdapter.onDestroy();
+    mCursor.close();
+    mDatabase.close();
+    super.tearDown();
+  }
+
+  @SuppressWarnings("deprecation")
+  public void testBindsTheRowsAlmostWithoutAllocating() {
+    final int[] allocations = new int[2];
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        /* The first binds fill the cursor window and grow the holders' buffers */
+        bind(0, HOLDER_COUNT * 2);
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        try {
+          bind(0, ROW_COUNT);
+          allocations[0] = Debug.getThreadAllocCount();
+          allocations[1] = Debug.getThreadAllocSize();
+        } finally {
+          Debug.stopAllocCounting();
+        }
+      }
+    });
+
+    Log.i(Config.TAG, "Binding " + ROW_COUNT + " rows allocated " + allocations[0] + " objects, " + allocations[1]
+        + " bytes");
+    assertTrue(allocations[0] + " objects for " + ROW_COUNT + " rows", allocations[0] < ROW_COUNT);
+  }
+
+  protected void bind(int from, int to) {
+    for (int position = from; position < to; position++) {
+      mAdapter.onBindViewHolder(mHolders[position % HOLDER_COUNT], position);
+    }
+  }
+}
@@ -0,0 +1,273 @@
+package com.github.fielddb.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.github.fielddb.database.AudioVideoContentProvider;
+import com.github.fielddb.database.AudioVideoContentProvider.UploadProgressTable;
+import com.github.fielddb.database.FieldDBDatabase;
+import com.github.fielddb.datacollection.HttpTransport;
+import com.github.fielddb.service.StubHttpServer.Request;
+import com.github.fielddb.service.StubHttpServer.Response;
+
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+import android.test.RenamingDelegatingContext;
+import android.util.Base64;
+
+/**
+ * Uploads a file to a StubHttpServer which speaks the chunk protocol, checking
+ * the chunks' checksums the way the upload server does.
+ */
+public class ChunkedUploadTest extends ProviderTestCase2<AudioVideoContentProvider> {
+  protected static final int CHUNK_SIZE = 1024;
+  protected static final String UPLOAD_PATH = "/upload";
+
+  protected int mDefaultChunkSize;
+  protected ChunkServer mChunks;
+  protected StubHttpServer mServer;
+  protected HttpTransport mTransport;
+  protected File mFile;
+  protected byte[] mBytes;
+
+  public ChunkedUploadTest() {
+    super(AudioVideoContentProvider.class, AudioVideoContentProvider.CONTENT_URI.getAuthority());
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    /* An empty database for the upload progress, not the app's */
+    FieldDBDatabase.resetInstance(new RenamingDelegatingContext(getContext(), "test."));
+    super.setUp();
+    mDefaultChunkSize = ChunkedUpload.CHUNK_SIZE;
+    ChunkedUpload.CHUNK_SIZE = CHUNK_SIZE;
+    mChunks = new ChunkServer();
+    mServer = new StubHttpServer(mChunks);
+    mServer.start();
+    mTransport = HttpTransport.getInstance(getContext());
+
+    mBytes = new byte[2 * CHUNK_SIZE + 500];
+    new Random(42).nextBytes(mBytes);
+    mFile = new File(getContext().getCacheDir(), "chunked_upload_test.amr");
+    FileOutputStream output = new FileOutputStream(mFile);
+    try {
+      output.write(mBytes);
+    } finally {
+      output.close();
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mServer.stop();
+    mFile.delete();
+    ChunkedUpload.CHUNK_SIZE = mDefaultChunkSize;
+    super.tearDown();
+    FieldDBDatabase.resetInstance(null);
+  }
+
+  public void testUploadsTheFileInChunks() throws Exception {
+    String response = newUpload().upload(getFields());
+
+    assertEquals(ChunkServer.COMPLETE_RESPONSE, response);
+    assertTrue(Arrays.equals(mBytes, mChunks.received.toByteArray()));
+    assertEquals(3, mChunks.acceptedChunks);
+    assertEquals("testuser", mChunks.completedFields.get("username"));
+    assertEquals(-1, getSavedOffset());
+  }
+
+  public void testResumesFromTheAcknowledgedOffset() throws Exception {
+    mChunks.dropPutsAfter = 1;
+    try {
+      newUpload().upload(getFields());
+      fail("The upload should have stopped when the server stopped answering");
+    } catch (IOException e) {
+      assertFalse(e instanceof ChunkedUpload.UnsupportedException);
+    }
+    assertEquals(CHUNK_SIZE, getSavedOffset());
+
+    mChunks.dropPutsAfter = -1;
+    int requestsBefore = mServer.getRequests().size();
+    String response = newUpload().upload(getFields());
+
+    assertEquals(ChunkServer.COMPLETE_RESPONSE, response);
+    List<Request> requests = mServer.getRequests();
+    Request firstPut = null;
+    for (Request request : requests.subList(requestsBefore, requests.size())) {
+      if ("PUT".equals(request.method)) {
+        firstPut = request;
+        break;
+      }
+    }
+    assertNotNull(firstPut);
+    assertTrue(firstPut.headers.get("content-range"), firstPut.headers.get("content-range").startsWith(
+        "bytes " + CHUNK_SIZE + "-"));
+    assertTrue(Arrays.equals(mBytes, mChunks.received.toByteArray()));
+    assertEquals(-1, getSavedOffset());
+  }
+
+  public void testSendsAChunkAgainWhenItsChecksumDoesNotMatch() throws Exception {
+    mChunks.corruptChunks = 1;
+
+    String response = newUpload().upload(getFields());
+
+    assertEquals(ChunkServer.COMPLETE_RESPONSE, response);
+    assertEquals(1, mChunks.checksumFailures);
+    assertTrue(Arrays.equals(mBytes, mChunks.received.toByteArray()));
+  }
+
+  public void testGivesUpOnAChunkWhichNeverArrivesIntact() throws Exception {
+    mChunks.corruptChunks = ChunkedUpload.MAX_CHUNK_ATTEMPTS;
+    try {
+      newUpload().upload(getFields());
+      fail("The upload should have stopped after " + ChunkedUpload.MAX_CHUNK_ATTEMPTS + " bad checksums");
+    } catch (IOException e) {
+      assertFalse(e instanceof ChunkedUpload.UnsupportedException);
+    }
+    assertEquals(ChunkedUpload.MAX_CHUNK_ATTEMPTS, mChunks.checksumFailures);
+    assertEquals(0, mChunks.received.size());
+    assertEquals(0, getSavedOffset());
+  }
+
+  public void testThrowsUnsupportedWhenTheServerHasNoChunks() throws Exception {
+    mChunks.unsupported = true;
+    try {
+      newUpload().upload(getFields());
+      fail("The server doesn't know the chunks url");
+    } catch (ChunkedUpload.UnsupportedException e) {
+      // expected, the service uploads in one piece instead
+    }
+  }
+
+  public void testStopsWhenTheServerRepliesWithoutAnOffset() throws Exception {
+    String[] replies = { "{\"offset\":null}", "{\"offset\":\"12\"}", "{\"offset\":{}}", "[1]", "not json",
+        "{\"offset\":" + (mBytes.length + 1) + "}" };
+    for (String reply : replies) {
+      mChunks.offsetReply = reply;
+      try {
+        newUpload().upload(getFields());
+        fail("The upload should have stopped on " + reply);
+      } catch (IOException e) {
+        assertFalse(reply, e instanceof ChunkedUpload.UnsupportedException);
+      }
+    }
+    assertEquals(0, mChunks.acceptedChunks);
+  }
+
+  public void testLeavesTheDefaultSocketFactoryAlone() throws Exception {
+    SSLSocketFactory defaultFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+
+    HttpURLConnection connection = mTransport.open("https://127.0.0.1/upload");
+
+    assertSame(defaultFactory, HttpsURLConnection.getDefaultSSLSocketFactory());
+    assertNotSame(defaultFactory, ((HttpsURLConnection) connection).getSSLSocketFactory());
+  }
+
+  protected ChunkedUpload newUpload() {
+    return new ChunkedUpload(getMockContentResolver(), mTransport, mServer.getUrl() + UPLOAD_PATH, mFile);
+  }
+
+  protected LinkedHashMap<String, String> getFields() {
+    LinkedHashMap<String, String> fields = new LinkedHashMap<String, String>();
+    fields.put("token", "testtoken");
+    fields.put("username", "testuser");
+    return fields;
+  }
+
+  /**
+   * @return the offset saved in the upload progress, or -1 if there is none
+   */
+  protected long getSavedOffset() {
+    Cursor cursor = getMockContentResolver().query(AudioVideoContentProvider.getUploadUri(mFile.getName()),
+        new String[] { UploadProgressTable.COLUMN_OFFSET }, null, null, null);
+    assertNotNull(cursor);
+    try {
+      return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * The upload server's side of the chunk protocol.
+   */
+  protected static class ChunkServer implements StubHttpServer.Handler {
+    static final String COMPLETE_RESPONSE = "{\"files\":[{\"fileBaseName\":\"chunked_upload_test\"}]}";
+
+    ByteArrayOutputStream received = new ByteArrayOutputStream();
+    String uploadId;
+    int acceptedChunks;
+    int checksumFailures;
+    HashMap<String, String> completedFields;
+    /* Drops the connection of every chunk once this many were taken, -1 to take them all */
+    int dropPutsAfter = -1;
+    /* How many of the next chunks arrive with a flipped bit */
+    int corruptChunks;
+    boolean unsupported;
+    /* Replaces the reply to the start of the upload, to test the replies which aren't an offset */
+    String offsetReply;
+
+    @Override
+    public synchronized Response handle(Request request) throws IOException {
+      String chunksPath = UPLOAD_PATH + ChunkedUpload.CHUNKS_PATH;
+      if (unsupported) {
+        return new Response(404, "{\"error\":\"not_found\"}");
+      }
+      if ("POST".equals(request.method) && chunksPath.equals(request.path)) {
+        String requestedId = request.getForm().get("uploadId");
+        if (!requestedId.equals(uploadId)) {
+          uploadId = requestedId;
+          received.reset();
+        }
+        if (offsetReply != null) {
+          return new Response(200, offsetReply);
+        }
+        return getOffsetResponse(200);
+      }
+      if ("PUT".equals(request.method) && (chunksPath + "/" + uploadId).equals(request.path)) {
+        if (dropPutsAfter >= 0 && acceptedChunks >= dropPutsAfter) {
+          return null;
+        }
+        String contentRange = request.headers.get("content-range");
+        long start = Long.parseLong(contentRange.substring("bytes ".length(), contentRange.indexOf('-')));
+        if (start != received.size()) {
+          return getOffsetResponse(409);
+        }
+        byte[] chunk = request.body;
+        if (corruptChunks > 0) {
+          corruptChunks--;
+          chunk = chunk.clone();
+          chunk[0] ^= 1;
+        }
+        String checksum = Base64.encodeToString(ChunkedUpload.md5(chunk, chunk.length), Base64.NO_WRAP);
+        if (!checksum.equals(request.headers.get("content-md5"))) {
+          checksumFailures++;
+          return new Response(400, "{\"error\":\"checksum\"}");
+        }
+        received.write(chunk);
+        acceptedChunks++;
+        return getOffsetResponse(200);
+      }
+      if ("POST".equals(request.method) && (chunksPath + "/" + uploadId + "/complete").equals(request.path)) {
+        completedFields = request.getForm();
+        return new Response(200, COMPLETE_RESPONSE);
+      }
+      return new Response(404, "{\"error\":\"not_found\"}");
+    }
+
+    protected Response getOffsetResponse(int status) {
+      return new Response(status, "{\"offset\":" + received.size() + "}");
+    }
+  }
+}
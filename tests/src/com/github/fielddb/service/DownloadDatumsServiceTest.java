@@ -0,0 +1,320 @@
+package com.github.fielddb.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import com.github.fielddb.database.DatumContentProvider;
+import com.github.fielddb.database.DatumContentProvider.DatumTable;
+import com.github.fielddb.database.DatumContentProvider.SyncCheckpointTable;
+import com.github.fielddb.database.FieldDBDatabase;
+import com.github.fielddb.datacollection.HttpTransport;
+import com.github.fielddb.service.StubHttpServer.Request;
+import com.github.fielddb.service.StubHttpServer.Response;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import android.app.Notification;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Runs the incremental sync against a StubHttpServer which answers the
+ * corpus' _changes feeds the way CouchDB does: the view filtered feed leaves
+ * out the deleted documents, the unfiltered feed has them.
+ */
+public class DownloadDatumsServiceTest extends ProviderTestCase2<DatumContentProvider> {
+  protected static final String CHANGES_PATH = "/corpus/_changes";
+
+  protected StubCouchDB mCouchDB;
+  protected StubHttpServer mServer;
+  protected StubbedService mService;
+
+  public DownloadDatumsServiceTest() {
+    super(DatumContentProvider.class, DatumContentProvider.CONTENT_URI.getAuthority());
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    /* The providers share FieldDBDatabase's helper, which would otherwise open the app's database */
+    FieldDBDatabase.resetInstance(new RenamingDelegatingContext(getContext(), "test."));
+    super.setUp();
+    mCouchDB = new StubCouchDB();
+    mServer = new StubHttpServer(mCouchDB);
+    mServer.start();
+    mService = new StubbedService(getMockContentResolver(), HttpTransport.getInstance(getContext()));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mServer.stop();
+    super.tearDown();
+    FieldDBDatabase.resetInstance(null);
+  }
+
+  public void testSavesTheSampleDataChanges() throws Exception {
+    mCouchDB.put("datum1", "SampleData", "one");
+    mCouchDB.put("datum2", "SampleData", "two");
+    mCouchDB.put("datum3", "Other", "three");
+
+    sync();
+
+    assertEquals("1-datum1", getSavedRevision("datum1"));
+    assertEquals("1-datum2", getSavedRevision("datum2"));
+    assertNull(getSavedRevision("datum3"));
+    assertEquals("{\"inserted\":2,\"updated\":0,\"unchanged\":0}", mService.getCountsAsJson());
+  }
+
+  public void testLeavesTheDatumWhoseRevisionDidNotChange() throws Exception {
+    mCouchDB.put("datum1", "SampleData", "one");
+    sync();
+    /* Back to the start of the feed, which has the same revision again */
+    ContentValues checkpoint = new ContentValues();
+    checkpoint.put(SyncCheckpointTable.COLUMN_SINCE, "0");
+    getMockContentResolver().update(DatumContentProvider.getCheckpointUri(mServer.getUrl() + CHANGES_PATH),
+        checkpoint, null, null);
+    sync();
+
+    assertEquals("1-datum1", getSavedRevision("datum1"));
+    assertEquals("{\"inserted\":0,\"updated\":0,\"unchanged\":1}", mService.getCountsAsJson());
+  }
+
+  public void testTrashesTheDatumDeletedOnTheServer() throws Exception {
+    mCouchDB.put("datum1", "SampleData", "one");
+    mCouchDB.put("datum2", "SampleData", "two");
+    sync();
+
+    mCouchDB.delete("datum1");
+    mCouchDB.put("datum2", "SampleData", "two again");
+    int requestsBefore = mServer.getRequests().size();
+    sync();
+
+    assertTrue(isTrashed("datum1"));
+    assertFalse(isTrashed("datum2"));
+    assertEquals("2-datum2", getSavedRevision("datum2"));
+    assertEquals("{\"inserted\":0,\"updated\":1,\"unchanged\":0}", mService.getCountsAsJson());
+    /* The view filtered feed never had the deletion, the unfiltered feed did */
+    Request deletions = null;
+    List<Request> requests = mServer.getRequests();
+    for (Request request : requests.subList(requestsBefore, requests.size())) {
+      assertFalse(request.query.toString(), "_view".equals(request.query.get("filter"))
+          && mCouchDB.lastResponse(request).contains("datum1"));
+      if (!request.query.containsKey("filter")) {
+        deletions = request;
+      }
+    }
+    assertNotNull(deletions);
+    assertEquals("GET", deletions.method);
+    assertTrue(mCouchDB.lastResponse(deletions), mCouchDB.lastResponse(deletions).contains("\"datum1\""));
+  }
+
+  public void testLeavesTheDeletionsOfTheDatumWhichWereNeverSaved() throws Exception {
+    mCouchDB.put("datum1", "SampleData", "one");
+    mCouchDB.put("datum2", "Other", "two");
+    sync();
+
+    mCouchDB.delete("datum2");
+    sync();
+
+    assertFalse(isTrashed("datum1"));
+    assertNull(getSavedRevision("datum2"));
+  }
+
+  public void testReadsTheDeletionsFromTheirOwnCheckpoint() throws Exception {
+    mCouchDB.put("datum1", "SampleData", "one");
+    sync();
+    mCouchDB.put("datum2", "Other", "two");
+    sync();
+
+    List<Request> deletions = getDeletionsRequests();
+    assertEquals(2, deletions.size());
+    /* Nothing was saved before the first sync, so its deletions start where its view filtered feed ended */
+    assertEquals("1", deletions.get(0).query.get("since"));
+    assertEquals("1", deletions.get(1).query.get("since"));
+    sync();
+    assertEquals("" + mCouchDB.seq, getDeletionsRequests().get(2).query.get("since"));
+  }
+
+  public void testDownloadsOnlyAFewBytesWhenNothingChanged() throws Exception {
+    for (int i = 0; i < 400; i++) {
+      mCouchDB.put("datum" + i, "SampleData", "utterance " + i);
+    }
+    sync();
+    int requestsBefore = mServer.getRequests().size();
+    sync();
+
+    List<Request> requests = mServer.getRequests();
+    requests = requests.subList(requestsBefore, requests.size());
+    assertEquals(2, requests.size());
+    int bytes = 0;
+    for (Request request : requests) {
+      assertEquals(0, request.body.length);
+      assertEquals("{\"results\":[],\"last_seq\":400}", mCouchDB.lastResponse(request));
+      bytes += request.length + request.responseLength;
+    }
+    /* The headers of two requests and their responses, none of the 400 ids */
+    assertTrue(bytes + " bytes", bytes < 2048);
+  }
+
+  protected List<Request> getDeletionsRequests() {
+    ArrayList<Request> deletions = new ArrayList<Request>();
+    for (Request request : mServer.getRequests()) {
+      if (!request.query.containsKey("filter")) {
+        deletions.add(request);
+      }
+    }
+    return deletions;
+  }
+
+  protected void sync() {
+    mService.sync(mServer.getUrl() + CHANGES_PATH);
+    assertEquals("", mService.getUserFriendlyErrorMessage());
+  }
+
+  protected String getSavedRevision(String id) {
+    Cursor cursor = getMockContentResolver().query(Uri.withAppendedPath(DatumContentProvider.CONTENT_URI, id),
+        new String[] { DatumTable.COLUMN_REV }, null, null, null);
+    assertNotNull(cursor);
+    try {
+      return cursor.moveToFirst() ? cursor.getString(0) : null;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  protected boolean isTrashed(String id) {
+    Cursor cursor = getMockContentResolver().query(Uri.withAppendedPath(DatumContentProvider.CONTENT_URI, id),
+        new String[] { DatumTable.COLUMN_TRASHED }, null, null, null);
+    assertNotNull(cursor);
+    try {
+      assertTrue("datum " + id + " was never saved", cursor.moveToFirst());
+      return !cursor.isNull(0);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * The service without its Android service parts: it saves through the test's
+   * content resolver and doesn't notify.
+   */
+  protected static class StubbedService extends DownloadDatumsService {
+    protected ContentResolver mContentResolver;
+
+    public StubbedService(ContentResolver contentResolver, HttpTransport transport) {
+      this.mContentResolver = contentResolver;
+      this.transport = transport;
+      this.datumTagToDownload = "SampleData";
+    }
+
+    public void sync(String changesUrl) {
+      this.userFriendlyErrorMessage = "";
+      this.urlStringChangesDownload = changesUrl;
+      this.syncChanges();
+    }
+
+    public String getUserFriendlyErrorMessage() {
+      return this.userFriendlyErrorMessage;
+    }
+
+    @Override
+    public ContentResolver getContentResolver() {
+      return mContentResolver;
+    }
+
+    @Override
+    public void notifyUser(String message, Notification notification, int id, boolean showTryAgain) {
+      // no notifications in the tests
+    }
+  }
+
+  /**
+   * The corpus, one document per id with its latest change.
+   */
+  protected static class StubCouchDB implements StubHttpServer.Handler {
+    int seq;
+    HashMap<String, JsonObject> docs = new HashMap<String, JsonObject>();
+    HashMap<String, Integer> seqs = new HashMap<String, Integer>();
+    HashMap<Request, String> responses = new HashMap<Request, String>();
+
+    synchronized void put(String id, String tags, String utterance) {
+      JsonObject previous = docs.get(id);
+      int revision = previous == null ? 1 : Integer.parseInt(previous.get("_rev").getAsString().split("-")[0]) + 1;
+      JsonObject doc = new JsonObject();
+      doc.addProperty("_id", id);
+      doc.addProperty("_rev", revision + "-" + id);
+      doc.addProperty("tags", tags);
+      doc.addProperty("utterance", utterance);
+      docs.put(id, doc);
+      seqs.put(id, ++seq);
+    }
+
+    synchronized void delete(String id) {
+      JsonObject doc = new JsonObject();
+      doc.addProperty("_id", id);
+      doc.addProperty("_rev", "9-" + id);
+      doc.addProperty("_deleted", true);
+      docs.put(id, doc);
+      seqs.put(id, ++seq);
+    }
+
+    synchronized String lastResponse(Request request) {
+      return responses.get(request);
+    }
+
+    @Override
+    public synchronized Response handle(Request request) throws IOException {
+      if (!CHANGES_PATH.equals(request.path)) {
+        return new Response(404, "{\"error\":\"not_found\"}");
+      }
+      int since = Integer.parseInt(request.query.containsKey("since") ? request.query.get("since") : "0");
+      String filter = request.query.get("filter");
+      boolean includeDocs = "true".equals(request.query.get("include_docs"));
+      boolean viewFiltered = "_view".equals(filter);
+      if (filter != null && !viewFiltered) {
+        return new Response(400, "{\"error\":\"bad_request\"}");
+      }
+
+      ArrayList<String> ids = new ArrayList<String>(docs.keySet());
+      JsonArray results = new JsonArray();
+      for (int changeSeq = since + 1; changeSeq <= seq; changeSeq++) {
+        for (String id : ids) {
+          if (seqs.get(id) != changeSeq) {
+            continue;
+          }
+          JsonObject doc = docs.get(id);
+          boolean deleted = doc.has("_deleted");
+          /* A view doesn't emit deleted documents, so the view filter drops them */
+          if (viewFiltered && (deleted || !doc.get("tags").getAsString().contains("SampleData"))) {
+            continue;
+          }
+          JsonObject change = new JsonObject();
+          change.addProperty("seq", changeSeq);
+          change.addProperty("id", id);
+          JsonArray changes = new JsonArray();
+          JsonObject rev = new JsonObject();
+          rev.addProperty("rev", doc.get("_rev").getAsString());
+          changes.add(rev);
+          change.add("changes", changes);
+          if (deleted) {
+            change.addProperty("deleted", true);
+          }
+          if (includeDocs) {
+            change.add("doc", doc);
+          }
+          results.add(change);
+        }
+      }
+      JsonObject feed = new JsonObject();
+      feed.add("results", results);
+      feed.addProperty("last_seq", seq);
+      responses.put(request, feed.toString());
+      return new Response(200, feed.toString());
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package com.github.fielddb.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A plain Java HTTP server on the loopback interface, which stands in for the
+ * FieldDB servers in the service tests.
+ *
+ * It takes one request per connection (and says so with Connection: close),
+ * hands it to the test's Handler and writes the Response back. A Handler
+ * which returns null drops the connection without replying, as a lost
+ * network would. The requests are kept in the order they arrived, so a test
+ * can check what the client sent, and how many bytes went each way.
+ */
+public class StubHttpServer {
+  public interface Handler {
+    /**
+     * @return the response, or null to drop the connection
+     */
+    Response handle(Request request) throws IOException;
+  }
+
+  public static class Request {
+    public String method;
+    public String path;
+    public HashMap<String, String> query = new HashMap<String, String>();
+    /* The header names are lower case */
+    public HashMap<String, String> headers = new HashMap<String, String>();
+    public byte[] body = new byte[0];
+    /* The bytes of the request line, headers and body, and of the whole response */
+    public int length;
+    public int responseLength;
+
+    public String getBodyAsString() throws IOException {
+      return new String(body, "UTF-8");
+    }
+
+    /**
+     * @return the fields of an application/x-www-form-urlencoded body
+     */
+    public HashMap<String, String> getForm() throws IOException {
+      return parseForm(getBodyAsString());
+    }
+  }
+
+  public static class Response {
+    public int status;
+    public String body;
+    public HashMap<String, String> headers = new HashMap<String, String>();
+
+    public Response(int status, String body) {
+      this.status = status;
+      this.body = body == null ? "" : body;
+    }
+
+    public Response header(String name, String value) {
+      headers.put(name, value);
+      return this;
+    }
+  }
+
+  protected ServerSocket mServerSocket;
+  protected Thread mThread;
+  protected Handler mHandler;
+  protected List<Request> mRequests = new ArrayList<Request>();
+
+  public StubHttpServer(Handler handler) {
+    this.mHandler = handler;
+  }
+
+  public void start() throws IOException {
+    mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    mThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!mServerSocket.isClosed()) {
+          try {
+            serve(mServerSocket.accept());
+          } catch (SocketException e) {
+            // stopped
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      }
+    }, "StubHttpServer");
+    mThread.start();
+  }
+
+  public void stop() throws IOException {
+    mServerSocket.close();
+    try {
+      mThread.join(5000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public String getUrl() {
+    return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+  }
+
+  public List<Request> getRequests() {
+    synchronized (mRequests) {
+      return new ArrayList<Request>(mRequests);
+    }
+  }
+
+  protected void serve(Socket socket) throws IOException {
+    try {
+      Request request = read(socket.getInputStream());
+      if (request == null) {
+        return;
+      }
+      synchronized (mRequests) {
+        mRequests.add(request);
+      }
+      Response response = mHandler.handle(request);
+      if (response == null) {
+        return;
+      }
+      byte[] body = response.body.getBytes("UTF-8");
+      StringBuilder head = new StringBuilder();
+      head.append("HTTP/1.1 ").append(response.status).append(" Stub\r\n");
+      head.append("Content-Type: application/json; charset=UTF-8\r\n");
+      head.append("Content-Length: ").append(body.length).append("\r\n");
+      head.append("Connection: close\r\n");
+      for (String name : response.headers.keySet()) {
+        head.append(name).append(": ").append(response.headers.get(name)).append("\r\n");
+      }
+      head.append("\r\n");
+      byte[] headBytes = head.toString().getBytes("UTF-8");
+      OutputStream output = socket.getOutputStream();
+      output.write(headBytes);
+      output.write(body);
+      output.flush();
+      request.responseLength = headBytes.length + body.length;
+    } finally {
+      socket.close();
+    }
+  }
+
+  protected static Request read(InputStream in) throws IOException {
+    String requestLine = readLine(in);
+    if (requestLine == null || "".equals(requestLine)) {
+      return null;
+    }
+    String[] parts = requestLine.split(" ");
+    Request request = new Request();
+    request.length = getLineLength(requestLine);
+    request.method = parts[0];
+    String target = parts[1];
+    int question = target.indexOf('?');
+    request.path = URLDecoder.decode(question < 0 ? target : target.substring(0, question), "UTF-8");
+    if (question >= 0) {
+      request.query = parseForm(target.substring(question + 1));
+    }
+    String line;
+    while ((line = readLine(in)) != null && !"".equals(line)) {
+      request.length += getLineLength(line);
+      int colon = line.indexOf(':');
+      request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH), line.substring(colon + 1)
+          .trim());
+    }
+    if ("chunked".equalsIgnoreCase(request.headers.get("transfer-encoding"))) {
+      throw new IOException("the stub server doesn't take chunked request bodies");
+    }
+    String contentLength = request.headers.get("content-length");
+    if (contentLength != null) {
+      request.body = new byte[Integer.parseInt(contentLength)];
+      int offset = 0;
+      while (offset < request.body.length) {
+        int read = in.read(request.body, offset, request.body.length - offset);
+        if (read == -1) {
+          throw new IOException("the request body ended after " + offset + " bytes");
+        }
+        offset += read;
+      }
+    }
+    request.length += getLineLength("") + request.body.length;
+    return request;
+  }
+
+  protected static int getLineLength(String line) throws IOException {
+    return line.getBytes("UTF-8").length + "\r\n".length();
+  }
+
+  protected static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != -1) {
+      if (b == '\n') {
+        break;
+      }
+      if (b != '\r') {
+        line.write(b);
+      }
+    }
+    if (b == -1 && line.size() == 0) {
+      return null;
+    }
+    return line.toString("UTF-8");
+  }
+
+  public static HashMap<String, String> parseForm(String form) throws IOException {
+    HashMap<String, String> fields = new HashMap<String, String>();
+    for (String field : form.split("&")) {
+      if ("".equals(field)) {
+        continue;
+      }
+      int equals = field.indexOf('=');
+      if (equals < 0) {
+        fields.put(URLDecoder.decode(field, "UTF-8"), "");
+      } else {
+        fields.put(URLDecoder.decode(field.substring(0, equals), "UTF-8"),
+            URLDecoder.decode(field.substring(equals + 1), "UTF-8"));
+      }
+    }
+    return fields;
+  }
+}